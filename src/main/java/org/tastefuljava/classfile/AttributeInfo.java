@@ -10,12 +10,17 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
 public class AttributeInfo {
     private short nameIndex;
     private byte data[];
+    /** the data when it is a slice of the class bytes, or null */
+    private ByteBuffer slice;
+    /** the bytes of the whole attribute as loaded, or null if modified */
+    private ByteBuffer original;
 
     private AttributeInfo() {
     }
@@ -31,18 +36,55 @@ public class AttributeInfo {
 
     public void setNameIndex(short newValue) {
         nameIndex = newValue;
+        original = null;
     }
 
+    /**
+     * Tells whether the attribute has been modified, or might have been,
+     * since it was loaded from a buffer. Unmodified attributes are stored by
+     * copying their original bytes. Calling getData counts as a modification,
+     * since the array can be changed by the caller.
+     */
+    public boolean isModified() {
+        return original == null;
+    }
+
+    /**
+     * Returns the data of the attribute. If the attribute has been loaded
+     * from a buffer, the data is copied from the buffer on the first call.
+     */
     public byte[] getData() {
+        if (data == null && slice != null) {
+            data = new byte[slice.remaining()];
+            slice.duplicate().get(data);
+            slice = null;
+        }
+        original = null;
         return data;
     }
 
     public void setData(byte newValue[]) {
         data = newValue;
+        slice = null;
+        original = null;
+    }
+
+    public int getLength() {
+        return slice != null ? slice.remaining() : data.length;
+    }
+
+    /**
+     * Returns a read-only view of the data of the attribute, without copying
+     * it.
+     */
+    public ByteBuffer getBuffer() {
+        return slice != null
+                ? slice.asReadOnlyBuffer()
+                : ByteBuffer.wrap(data).asReadOnlyBuffer();
     }
 
     public InputStream getInputStream() {
-        return new ByteArrayInputStream(data);
+        return new ByteArrayInputStream(getData());
     }
 
     public DataInputStream getDataInput() {
@@ -53,7 +95,7 @@ public class AttributeInfo {
         return new ByteArrayOutputStream() {
             @Override
             public void close() {
-                data = toByteArray();
+                setData(toByteArray());
             }
         };
     }
@@ -63,9 +105,21 @@ public class AttributeInfo {
     }
 
     public void load(DataInput input) throws IOException {
-        nameIndex = input.readShort();
-        data = new byte[input.readInt()];
-        input.readFully(data);
+        original = null;
+        if (input instanceof BufferInput) {
+            BufferInput bi = (BufferInput)input;
+            int start = bi.getPosition();
+            nameIndex = input.readShort();
+            int length = input.readInt();
+            data = null;
+            slice = bi.slice(length);
+            original = bi.sliceFrom(start);
+        } else {
+            nameIndex = input.readShort();
+            data = new byte[input.readInt()];
+            input.readFully(data);
+            slice = null;
+        }
     }
 
     public static List<AttributeInfo> loadList(DataInput input)
@@ -81,9 +135,45 @@ public class AttributeInfo {
     }
 
     public void store(DataOutput output) throws IOException {
+        if (original != null) {
+            BufferOutput.write(output, original);
+            return;
+        }
         output.writeShort(nameIndex);
-        output.writeInt(data.length);
-        output.write(data);
+        if (slice == null) {
+            output.writeInt(data.length);
+            output.write(data);
+        } else {
+            output.writeInt(slice.remaining());
+            BufferOutput.write(output, slice);
+        }
+    }
+
+    static boolean isModified(List<AttributeInfo> list) {
+        for (AttributeInfo attr: list) {
+            if (attr.isModified()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of bytes written by store.
+     */
+    public int sizeInBytes() {
+        return 6 + getLength();
+    }
+
+    /**
+     * Returns the number of bytes written by storeList.
+     */
+    public static int sizeInBytes(List<AttributeInfo> list) {
+        int size = 2;
+        for (AttributeInfo attr: list) {
+            size += attr.sizeInBytes();
+        }
+        return size;
     }
 
     public static void storeList(DataOutput output, List<AttributeInfo> list)
@@ -96,7 +186,7 @@ public class AttributeInfo {
 
     public void print(ConstantPool cp, PrintStream out) throws IOException {
         out.println("attribute " + cp.getUtf8(nameIndex)
-                + " length: " + data.length);
+                + " length: " + getLength());
     }
 
     public static void printList(ConstantPool cp, PrintStream out,
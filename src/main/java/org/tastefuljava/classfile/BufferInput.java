@@ -0,0 +1,172 @@
+package org.tastefuljava.classfile;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * A DataInput reading big-endian values directly from a ByteBuffer, without
+ * going through a stream.
+ */
+class BufferInput implements DataInput {
+    private final ByteBuffer buffer;
+
+    BufferInput(ByteBuffer buffer) {
+        this.buffer = buffer.duplicate();
+    }
+
+    int getPosition() {
+        return buffer.position();
+    }
+
+    void setPosition(int newValue) {
+        setPosition(buffer, newValue);
+    }
+
+    void skip(int n) throws EOFException {
+        need(n);
+        setPosition(buffer, buffer.position() + n);
+    }
+
+    /**
+     * Returns the next n bytes as a slice of the buffer, without copying
+     * them, and skips them.
+     */
+    ByteBuffer slice(int n) throws EOFException {
+        need(n);
+        ByteBuffer result = buffer.slice();
+        ((Buffer)result).limit(n);
+        setPosition(buffer, buffer.position() + n);
+        return result;
+    }
+
+    /**
+     * Returns the bytes from start to the current position as a slice of the
+     * buffer, without copying them.
+     */
+    ByteBuffer sliceFrom(int start) {
+        ByteBuffer result = buffer.duplicate();
+        ((Buffer)result).limit(buffer.position());
+        setPosition(result, start);
+        return result.slice();
+    }
+
+    /**
+     * Sets the position of a buffer. The call goes through Buffer so that the
+     * code compiled with a recent JDK still runs on Java 8.
+     */
+    static void setPosition(Buffer buffer, int newValue) {
+        buffer.position(newValue);
+    }
+
+    @Override
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        need(len);
+        buffer.get(b, off, len);
+    }
+
+    @Override
+    public int skipBytes(int n) {
+        int skipped = Math.max(0, Math.min(n, buffer.remaining()));
+        setPosition(buffer, buffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        need(1);
+        return buffer.get();
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xFF;
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        need(2);
+        return buffer.getShort();
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xFFFF;
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        need(2);
+        return buffer.getChar();
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        need(4);
+        return buffer.getInt();
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        need(8);
+        return buffer.getLong();
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        need(4);
+        return buffer.getFloat();
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        need(8);
+        return buffer.getDouble();
+    }
+
+    @Override
+    public String readLine() throws IOException {
+        if (!buffer.hasRemaining()) {
+            return null;
+        }
+        StringBuilder buf = new StringBuilder();
+        while (buffer.hasRemaining()) {
+            int c = buffer.get() & 0xFF;
+            if (c == '\n') {
+                break;
+            } else if (c == '\r') {
+                if (buffer.hasRemaining()
+                        && buffer.get(buffer.position()) == '\n') {
+                    buffer.get();
+                }
+                break;
+            }
+            buf.append((char)c);
+        }
+        return buf.toString();
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+
+    private void need(int n) throws EOFException {
+        if (buffer.remaining() < n) {
+            throw new EOFException();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package org.tastefuljava.classfile;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A DataOutput writing big-endian values directly into a ByteBuffer. The
+ * values are written through a big-endian view of the buffer, so neither the
+ * byte order nor the position of the buffer itself is changed; the position
+ * reached is returned by getPosition. Writing past the limit of the buffer
+ * throws a BufferOverflowException.
+ */
+class BufferOutput implements DataOutput {
+    private final ByteBuffer buffer;
+
+    BufferOutput(ByteBuffer buffer) {
+        this.buffer = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+    }
+
+    int getPosition() {
+        return buffer.position();
+    }
+
+    @Override
+    public void write(int b) {
+        buffer.put((byte)b);
+    }
+
+    @Override
+    public void write(byte[] b) {
+        buffer.put(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        buffer.put(b, off, len);
+    }
+
+    /**
+     * Writes the remaining bytes of another buffer, without changing its
+     * position.
+     */
+    void write(ByteBuffer b) {
+        buffer.put(b.duplicate());
+    }
+
+    /**
+     * Writes the remaining bytes of a buffer to any DataOutput, without
+     * changing its position, and without copying them when possible.
+     */
+    static void write(DataOutput output, ByteBuffer b) throws IOException {
+        if (output instanceof BufferOutput) {
+            ((BufferOutput)output).write(b);
+        } else if (b.hasArray()) {
+            output.write(b.array(), b.arrayOffset() + b.position(),
+                    b.remaining());
+        } else {
+            byte[] buf = new byte[b.remaining()];
+            b.duplicate().get(buf);
+            output.write(buf);
+        }
+    }
+
+    @Override
+    public void writeBoolean(boolean v) {
+        buffer.put(v ? (byte)1 : (byte)0);
+    }
+
+    @Override
+    public void writeByte(int v) {
+        buffer.put((byte)v);
+    }
+
+    @Override
+    public void writeShort(int v) {
+        buffer.putShort((short)v);
+    }
+
+    @Override
+    public void writeChar(int v) {
+        buffer.putChar((char)v);
+    }
+
+    @Override
+    public void writeInt(int v) {
+        buffer.putInt(v);
+    }
+
+    @Override
+    public void writeLong(long v) {
+        buffer.putLong(v);
+    }
+
+    @Override
+    public void writeFloat(float v) {
+        buffer.putFloat(v);
+    }
+
+    @Override
+    public void writeDouble(double v) {
+        buffer.putDouble(v);
+    }
+
+    @Override
+    public void writeBytes(String s) {
+        for (int i = 0; i < s.length(); ++i) {
+            buffer.put((byte)s.charAt(i));
+        }
+    }
+
+    @Override
+    public void writeChars(String s) {
+        for (int i = 0; i < s.length(); ++i) {
+            buffer.putChar(s.charAt(i));
+        }
+    }
+
+    @Override
+    public void writeUTF(String s) throws IOException {
+        byte[] buf = new byte[Utf8.maxLength(s)];
+        int length;
+        try {
+            length = Utf8.encode(s, buf, 0);
+        } catch (ClassFileException e) {
+            throw new UTFDataFormatException(e.getMessage());
+        }
+        buffer.putShort((short)length);
+        buffer.put(buf, 0, length);
+    }
+}
@@ -1,5 +1,8 @@
 package org.tastefuljava.classfile;
 
+import java.lang.reflect.Field;
+import java.util.Locale;
+
 public class ByteCode {
     public static final int NOP = 0;
     public static final int ACONST_NULL = 1;
@@ -187,7 +190,10 @@ public class ByteCode {
     public static final int INVOKESPECIAL = 183;
     public static final int INVOKESTATIC = 184;
     public static final int INVOKEINTERFACE = 185;
-    public static final int XXXUNUSEDXXX1 = 186;
+    public static final int INVOKEDYNAMIC = 186;
+    /** @deprecated opcode 186 is {@link #INVOKEDYNAMIC} */
+    @Deprecated
+    public static final int XXXUNUSEDXXX1 = INVOKEDYNAMIC;
     public static final int NEW = 187;
     public static final int NEWARRAY = 188;
     public static final int ANEWARRAY = 189;
@@ -206,4 +212,127 @@ public class ByteCode {
     public static final int BREAKPOINT = 202;
     public static final int IMPDEP1 = 254;
     public static final int IMPDEP2 = 255;
+
+    /** the mnemonics of the opcodes, built from the names of the constants */
+    private static final String[] MNEMONICS = new String[256];
+
+    static {
+        for (Field field: ByteCode.class.getFields()) {
+            try {
+                int opcode = field.getInt(null);
+                if (!field.getName().startsWith("XXX")) {
+                    MNEMONICS[opcode]
+                            = field.getName().toLowerCase(Locale.ROOT);
+                }
+            } catch (IllegalAccessException ex) {
+                throw new ExceptionInInitializerError(ex);
+            }
+        }
+    }
+
+    /**
+     * Returns the mnemonic of an opcode, as used by javap, or null if the
+     * opcode is undefined.
+     */
+    public static String mnemonic(int opcode) {
+        return MNEMONICS[opcode & 0xFF];
+    }
+
+    /**
+     * Returns the length of an instruction.
+     * @param code buffer containing the code
+     * @param start position of the start of the code in the buffer
+     * @param pc offset of the instruction in the code
+     * @return the length of the instruction in bytes
+     * @throws InvalidInstructionException if the opcode is invalid
+     */
+    public static int instructionLength(byte[] code, int start, int pc) {
+        int opcode = code[start + pc] & 0xFF;
+        switch (opcode) {
+        case BIPUSH:
+        case LDC:
+        case ILOAD:
+        case LLOAD:
+        case FLOAD:
+        case DLOAD:
+        case ALOAD:
+        case ISTORE:
+        case LSTORE:
+        case FSTORE:
+        case DSTORE:
+        case ASTORE:
+        case RET:
+        case NEWARRAY:
+            return 2;
+
+        case SIPUSH:
+        case LDC_W:
+        case LDC2_W:
+        case IINC:
+        case GETSTATIC:
+        case PUTSTATIC:
+        case GETFIELD:
+        case PUTFIELD:
+        case INVOKEVIRTUAL:
+        case INVOKESPECIAL:
+        case INVOKESTATIC:
+        case NEW:
+        case ANEWARRAY:
+        case CHECKCAST:
+        case INSTANCEOF:
+        case IFNULL:
+        case IFNONNULL:
+            return 3;
+
+        case MULTIANEWARRAY:
+            return 4;
+
+        case INVOKEINTERFACE:
+        case INVOKEDYNAMIC:
+        case GOTO_W:
+        case JSR_W:
+            return 5;
+
+        case WIDE:
+            return (code[start + pc + 1] & 0xFF) == IINC ? 6 : 4;
+
+        case TABLESWITCH: {
+            int pos = start + pc + 1 + padding(pc);
+            int low = getInt(code, pos + 4);
+            int high = getInt(code, pos + 8);
+            return pos + 12 + 4*(high - low + 1) - start - pc;
+        }
+
+        case LOOKUPSWITCH: {
+            int pos = start + pc + 1 + padding(pc);
+            int npairs = getInt(code, pos + 4);
+            return pos + 8 + 8*npairs - start - pc;
+        }
+
+        default:
+            if (opcode >= IFEQ && opcode <= JSR) {
+                return 3;
+            } else if (opcode <= DCMPG || (opcode >= IRETURN
+                    && opcode <= RETURN) || (opcode >= ARRAYLENGTH
+                    && opcode <= MONITOREXIT)) {
+                return 1;
+            }
+            throw new InvalidInstructionException(opcode);
+        }
+    }
+
+    /**
+     * Returns the number of padding bytes following a tableswitch or
+     * lookupswitch opcode.
+     */
+    static int padding(int pc) {
+        return 3 - (pc & 3);
+    }
+
+    static int getInt(byte[] code, int pos) {
+        return ((code[pos] & 0xFF) << 24)
+                | ((code[pos + 1] & 0xFF) << 16)
+                | ((code[pos + 2] & 0xFF) << 8)
+                | ((code[pos + 3] & 0xFF));
+    }
 }
@@ -0,0 +1,462 @@
+package org.tastefuljava.classfile;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Loads, transforms and stores all the classes of a jar or of a directory.
+ * <p>The entries are read in order by the calling thread, the classes are
+ * parsed, transformed and stored in parallel on a fork-join pool, and the
+ * results are written in the order of the input. At most {@link #getWindow()}
+ * entries are in flight at any time, so the memory used does not depend on
+ * the size of the input.</p>
+ * <p>A class that cannot be parsed or transformed is written unchanged, and
+ * its name is recorded in the statistics; the other classes are not
+ * affected.</p>
+ * <p>When a {@link TransformCache} is set, the result of the transformer is
+ * looked up in the cache before a class is parsed.</p>
+ */
+public class ClassBatch {
+    private static final Logger LOG
+            = Logger.getLogger(ClassBatch.class.getName());
+
+    /**
+     * A transformation applied to every class of a batch. It may be called
+     * concurrently from several threads.
+     */
+    public interface Transformer {
+        /**
+         * Transforms a class in place. Returns false if the class has not been
+         * changed, in which case its original bytes are written.
+         */
+        boolean transform(ClassFile cf) throws Exception;
+    }
+
+    private final Transformer transformer;
+    private final ForkJoinPool pool;
+    /** maximum number of entries between the reader and the writer */
+    private int window;
+    /** the cache of transformed classes, or null */
+    private TransformCache cache;
+    /** the identity of the transformer in the cache */
+    private String transformId;
+
+    public ClassBatch(Transformer transformer) {
+        this(transformer, ForkJoinPool.commonPool());
+    }
+
+    public ClassBatch(Transformer transformer, ForkJoinPool pool) {
+        this.transformer = transformer;
+        this.pool = pool;
+        this.window = 4*pool.getParallelism();
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    public void setWindow(int newValue) {
+        if (newValue < 1) {
+            throw new IllegalArgumentException("Invalid window: " + newValue);
+        }
+        window = newValue;
+    }
+
+    /**
+     * Sets the cache in which the results of the transformer are looked up
+     * before the classes are parsed.
+     * @param cache the cache, or null to disable it
+     * @param transformId the identity and version of the transformer
+     */
+    public void setCache(TransformCache cache, String transformId) {
+        this.cache = cache;
+        this.transformId = transformId;
+    }
+
+    /**
+     * Processes a jar or a directory. The output is written to a directory if
+     * output is an existing directory, and to a jar otherwise.
+     */
+    public Statistics process(Path input, Path output) throws IOException {
+        Statistics stats = new Statistics(pool.getParallelism());
+        long start = System.nanoTime();
+        try (Sink sink = Files.isDirectory(output)
+                ? new DirectorySink(output) : new JarSink(output)) {
+            Run run = new Run(sink, stats);
+            if (Files.isDirectory(input)) {
+                run.readDirectory(input);
+            } else {
+                run.readJar(input);
+            }
+            run.drain();
+        }
+        stats.elapsed = System.nanoTime() - start;
+        return stats;
+    }
+
+    private void transform(Item item, Statistics stats) {
+        byte[] original = item.data;
+        String key = null;
+        if (cache != null) {
+            long t0 = System.nanoTime();
+            key = TransformCache.key(original, transformId);
+            byte[] cached = cacheGet(key, item);
+            if (cached != null) {
+                item.data = cached;
+                stats.cache.add(System.nanoTime() - t0, original.length);
+                return;
+            }
+        }
+        try {
+            long t0 = System.nanoTime();
+            ClassFile cf = new ClassFile();
+            cf.load(item.data);
+            long t1 = System.nanoTime();
+            stats.parse.add(t1 - t0, item.data.length);
+            boolean changed = transformer.transform(cf);
+            long t2 = System.nanoTime();
+            stats.transform.add(t2 - t1, item.data.length);
+            if (changed) {
+                item.data = cf.toBytes();
+                stats.store.add(System.nanoTime() - t2, item.data.length);
+            }
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Could not transform " + item.name, e);
+            stats.failures.add(item.name);
+            item.data = original;
+            return;
+        }
+        if (cache != null) {
+            cachePut(key, original, item);
+        }
+    }
+
+    private byte[] cacheGet(String key, Item item) {
+        try {
+            return cache.get(key, item.data);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Cannot read the cache for " + item.name,
+                    e);
+            return null;
+        }
+    }
+
+    private void cachePut(String key, byte[] original, Item item) {
+        try {
+            cache.put(key, item.data == original ? null : item.data);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Cannot write the cache for " + item.name,
+                    e);
+        }
+    }
+
+    static byte[] readFully(InputStream in, long size)
+            throws IOException {
+        if (size >= 0 && size <= Integer.MAX_VALUE) {
+            byte[] data = new byte[(int)size];
+            new DataInputStream(in).readFully(data);
+            return data;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * The state of a call to process: the entries in flight, in input order.
+     */
+    private class Run {
+        private final Sink sink;
+        private final Statistics stats;
+        private final Deque<ForkJoinTask<Item>> pending = new ArrayDeque<>();
+
+        private Run(Sink sink, Statistics stats) {
+            this.sink = sink;
+            this.stats = stats;
+        }
+
+        private void readJar(Path input) throws IOException {
+            try (ZipFile zip = new ZipFile(input.toFile())) {
+                Enumeration<? extends ZipEntry> e = zip.entries();
+                while (e.hasMoreElements()) {
+                    ZipEntry entry = e.nextElement();
+                    long start = System.nanoTime();
+                    byte[] data;
+                    if (entry.isDirectory()) {
+                        data = new byte[0];
+                    } else {
+                        try (InputStream in = zip.getInputStream(entry)) {
+                            data = readFully(in, entry.getSize());
+                        }
+                    }
+                    stats.read.add(System.nanoTime() - start, data.length);
+                    submit(new Item(entry.getName(), entry.getTime(), data));
+                }
+            }
+        }
+
+        private void readDirectory(Path input) throws IOException {
+            List<Path> files;
+            try (Stream<Path> stream = Files.walk(input)) {
+                files = stream.filter(Files::isRegularFile).sorted()
+                        .collect(Collectors.toList());
+            }
+            for (Path file: files) {
+                long start = System.nanoTime();
+                String name = input.relativize(file).toString()
+                        .replace(File.separatorChar, '/');
+                long time = Files.getLastModifiedTime(file).toMillis();
+                byte[] data = Files.readAllBytes(file);
+                stats.read.add(System.nanoTime() - start, data.length);
+                submit(new Item(name, time, data));
+            }
+        }
+
+        private void submit(Item item) throws IOException {
+            if (pending.size() >= window) {
+                write(pending.removeFirst().join());
+            }
+            if (item.name.endsWith(".class")) {
+                pending.addLast(pool.submit(() -> {
+                    transform(item, stats);
+                    return item;
+                }));
+            } else {
+                ForkJoinTask<Item> done = ForkJoinTask.adapt(() -> item);
+                done.invoke();
+                pending.addLast(done);
+            }
+        }
+
+        private void drain() throws IOException {
+            while (!pending.isEmpty()) {
+                write(pending.removeFirst().join());
+            }
+        }
+
+        private void write(Item item) throws IOException {
+            long start = System.nanoTime();
+            sink.write(item);
+            stats.write.add(System.nanoTime() - start, item.data.length);
+        }
+    }
+
+    private static class Item {
+        private final String name;
+        /** last modification time, or -1 if unknown */
+        private final long time;
+        private byte[] data;
+
+        private Item(String name, long time, byte[] data) {
+            this.name = name;
+            this.time = time;
+            this.data = data;
+        }
+    }
+
+    private interface Sink extends Closeable {
+        void write(Item item) throws IOException;
+    }
+
+    private static class JarSink implements Sink {
+        private final ZipOutputStream out;
+
+        private JarSink(Path path) throws IOException {
+            out = new ZipOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(path), 0x10000));
+        }
+
+        @Override
+        public void write(Item item) throws IOException {
+            ZipEntry entry = new ZipEntry(item.name);
+            if (item.time != -1) {
+                entry.setTime(item.time);
+            }
+            out.putNextEntry(entry);
+            out.write(item.data);
+            out.closeEntry();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static class DirectorySink implements Sink {
+        private final Path dir;
+
+        private DirectorySink(Path dir) {
+            this.dir = dir.normalize();
+        }
+
+        @Override
+        public void write(Item item) throws IOException {
+            Path path = dir.resolve(item.name).normalize();
+            if (!path.startsWith(dir)) {
+                throw new ClassFileException(
+                        "Entry outside of the output directory: "
+                        + item.name);
+            }
+            if (item.name.endsWith("/")) {
+                Files.createDirectories(path);
+                return;
+            }
+            Files.createDirectories(path.getParent());
+            Files.write(path, item.data);
+            if (item.time != -1) {
+                Files.setLastModifiedTime(path, FileTime.fromMillis(item.time));
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * The time spent and the amount of data processed by one stage of a
+     * batch. The time of the parallel stages is summed over all threads.
+     */
+    public static final class Stage {
+        private final String name;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        private Stage(String name) {
+            this.name = name;
+        }
+
+        private void add(long time, int size) {
+            count.increment();
+            bytes.add(size);
+            nanos.add(time);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getBytes() {
+            return bytes.sum();
+        }
+
+        public long getNanos() {
+            return nanos.sum();
+        }
+
+        /**
+         * Returns the number of entries processed per second of stage time.
+         */
+        public double getThroughput() {
+            long time = getNanos();
+            return time == 0 ? 0 : getCount()*1e9/time;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-9s %8d entries %10.1f MB %9.3f s"
+                    + " %10.0f entries/s", name, getCount(),
+                    getBytes()/1e6, getNanos()/1e9, getThroughput());
+        }
+    }
+
+    /**
+     * The statistics of a call to {@link #process(Path, Path)}.
+     */
+    public static final class Statistics {
+        private final int parallelism;
+        private final Stage read = new Stage("read");
+        private final Stage cache = new Stage("cache");
+        private final Stage parse = new Stage("parse");
+        private final Stage transform = new Stage("transform");
+        private final Stage store = new Stage("store");
+        private final Stage write = new Stage("write");
+        private final ConcurrentLinkedQueue<String> failures
+                = new ConcurrentLinkedQueue<>();
+        /** wall clock time of the batch, in nanoseconds */
+        private long elapsed;
+
+        private Statistics(int parallelism) {
+            this.parallelism = parallelism;
+        }
+
+        public List<Stage> getStages() {
+            List<Stage> result = new ArrayList<>();
+            Collections.addAll(result, read, cache, parse, transform, store,
+                    write);
+            return result;
+        }
+
+        public Stage getStage(String name) {
+            for (Stage stage: getStages()) {
+                if (stage.getName().equals(name)) {
+                    return stage;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Returns the names of the classes that could not be transformed.
+         */
+        public List<String> getFailures() {
+            return new ArrayList<>(failures);
+        }
+
+        public long getEntryCount() {
+            return write.getCount();
+        }
+
+        public long getElapsedNanos() {
+            return elapsed;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder buf = new StringBuilder();
+            for (Stage stage: getStages()) {
+                buf.append(stage).append('\n');
+            }
+            buf.append(String.format("total     %8d entries %10.3f s"
+                    + " %10.0f entries/s on %d threads, %d failures",
+                    getEntryCount(), elapsed/1e9,
+                    elapsed == 0 ? 0 : getEntryCount()*1e9/elapsed,
+                    parallelism, failures.size()));
+            return buf.toString();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package org.tastefuljava.classfile;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A strategy to turn the bytes of a class file into a class.
+ * <p>The methods used by each strategy are looked up once, and kept as method
+ * handles. The methods that only exist in recent versions of Java are
+ * looked up at run time, so this class also runs on Java 8:</p>
+ * <ul>
+ * <li>{@link #reflective(ClassLoader)} calls ClassLoader.defineClass; on Java
+ * 9 and later, java.base/java.lang must be opened to the caller;</li>
+ * <li>{@link #lookup(MethodHandles.Lookup)} calls Lookup.defineClass on Java
+ * 9 and later, and falls back to the reflective strategy on Java 8;</li>
+ * <li>{@link #hidden(MethodHandles.Lookup, Object, boolean)} calls
+ * Lookup.defineHiddenClass, which needs Java 15, or Java 16 with class
+ * data.</li>
+ * </ul>
+ */
+public abstract class ClassDefiner {
+    private static final Logger LOG
+            = Logger.getLogger(ClassDefiner.class.getName());
+
+    /**
+     * Defines a class.
+     * @param bytes the bytes of the class file
+     * @return the new class
+     * @throws ClassFileException if the class cannot be defined
+     */
+    public abstract Class<?> define(byte[] bytes);
+
+    /**
+     * Returns a strategy defining classes in a class loader with
+     * ClassLoader.defineClass.
+     */
+    public static ClassDefiner reflective(ClassLoader cl) {
+        MethodHandle handle = Handles.DEFINE_CLASS;
+        if (handle == null) {
+            throw new ClassFileException(
+                    "ClassLoader.defineClass is not accessible");
+        }
+        MethodHandle bound = handle.bindTo(cl);
+        return new ClassDefiner() {
+            @Override
+            public Class<?> define(byte[] bytes) {
+                try {
+                    return (Class<?>)bound.invokeExact(
+                            (String)null, bytes, 0, bytes.length);
+                } catch (Throwable ex) {
+                    throw failure(ex);
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns a strategy defining classes in the package and class loader of
+     * the class of a lookup, which must have package access.
+     */
+    public static ClassDefiner lookup(MethodHandles.Lookup lookup) {
+        MethodHandle handle = Handles.LOOKUP_DEFINE_CLASS;
+        if (handle == null) {
+            return reflective(lookup.lookupClass().getClassLoader());
+        }
+        MethodHandle bound = handle.bindTo(lookup);
+        return new ClassDefiner() {
+            @Override
+            public Class<?> define(byte[] bytes) {
+                try {
+                    return (Class<?>)bound.invokeExact(bytes);
+                } catch (Throwable ex) {
+                    throw failure(ex);
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns a strategy defining hidden classes, that cannot be found by
+     * name, and are unloaded as soon as they are not used anymore.
+     * @param lookup the lookup whose class is the host of the new classes
+     * @param classData the object returned by MethodHandles.classData in the
+     * new classes, or null
+     * @param initialize true if the classes must be initialized
+     * @throws ClassFileException if hidden classes, or hidden classes with
+     * class data, are not supported; see {@link #isHiddenSupported(boolean)}
+     */
+    public static ClassDefiner hidden(MethodHandles.Lookup lookup,
+            Object classData, boolean initialize) {
+        MethodHandle handle;
+        if (classData == null) {
+            handle = Handles.DEFINE_HIDDEN_CLASS;
+        } else if (Handles.DEFINE_HIDDEN_CLASS_WITH_DATA != null) {
+            handle = MethodHandles.insertArguments(
+                    Handles.DEFINE_HIDDEN_CLASS_WITH_DATA, 2, classData);
+        } else {
+            handle = null;
+        }
+        if (handle == null) {
+            throw new ClassFileException(
+                    "Hidden classes are not supported");
+        }
+        MethodHandle bound = MethodHandles.insertArguments(handle, 0, lookup);
+        return new ClassDefiner() {
+            @Override
+            public Class<?> define(byte[] bytes) {
+                try {
+                    return ((MethodHandles.Lookup)bound.invokeExact(
+                            bytes, initialize)).lookupClass();
+                } catch (Throwable ex) {
+                    throw failure(ex);
+                }
+            }
+        };
+    }
+
+    public static boolean isLookupSupported() {
+        return Handles.LOOKUP_DEFINE_CLASS != null;
+    }
+
+    public static boolean isHiddenSupported(boolean classData) {
+        return (classData ? Handles.DEFINE_HIDDEN_CLASS_WITH_DATA
+                : Handles.DEFINE_HIDDEN_CLASS) != null;
+    }
+
+    private static ClassFileException failure(Throwable ex) {
+        if (ex instanceof ClassFileException) {
+            return (ClassFileException)ex;
+        }
+        LOG.log(Level.SEVERE, null, ex);
+        return new ClassFileException(ex.getMessage());
+    }
+
+    /**
+     * The method handles, looked up when the first strategy is created.
+     */
+    private static class Handles {
+        /** ClassLoader.defineClass(String, byte[], int, int) */
+        private static final MethodHandle DEFINE_CLASS;
+        /** Lookup.defineClass(byte[]), Java 9 */
+        private static final MethodHandle LOOKUP_DEFINE_CLASS;
+        /** Lookup.defineHiddenClass(byte[], boolean), Java 15 */
+        private static final MethodHandle DEFINE_HIDDEN_CLASS;
+        /** Lookup.defineHiddenClassWithClassData, Java 16 */
+        private static final MethodHandle DEFINE_HIDDEN_CLASS_WITH_DATA;
+
+        static {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodHandle defineClass = null;
+            try {
+                Method method = ClassLoader.class.getDeclaredMethod(
+                        "defineClass", String.class, byte[].class,
+                        int.class, int.class);
+                method.setAccessible(true);
+                defineClass = lookup.unreflect(method);
+            } catch (ReflectiveOperationException | RuntimeException ex) {
+                LOG.log(Level.FINE, "ClassLoader.defineClass", ex);
+            }
+            DEFINE_CLASS = defineClass;
+            LOOKUP_DEFINE_CLASS = find(lookup, "defineClass",
+                    MethodType.methodType(Class.class, byte[].class));
+            MethodHandle hidden = null;
+            MethodHandle hiddenWithData = null;
+            try {
+                Class<?> options = Array.newInstance(Class.forName(
+                        "java.lang.invoke.MethodHandles$Lookup$ClassOption"),
+                        0).getClass();
+                Object none = Array.newInstance(
+                        options.getComponentType(), 0);
+                hidden = find(lookup, "defineHiddenClass",
+                        MethodType.methodType(MethodHandles.Lookup.class,
+                                byte[].class, boolean.class, options));
+                if (hidden != null) {
+                    hidden = MethodHandles.insertArguments(hidden, 3, none);
+                }
+                hiddenWithData = find(lookup,
+                        "defineHiddenClassWithClassData",
+                        MethodType.methodType(MethodHandles.Lookup.class,
+                                byte[].class, Object.class, boolean.class,
+                                options));
+                if (hiddenWithData != null) {
+                    hiddenWithData = MethodHandles.insertArguments(
+                            hiddenWithData, 4, none);
+                }
+            } catch (ClassNotFoundException ex) {
+                LOG.log(Level.FINE, "Hidden classes not supported", ex);
+            }
+            DEFINE_HIDDEN_CLASS = hidden;
+            DEFINE_HIDDEN_CLASS_WITH_DATA = hiddenWithData;
+        }
+
+        private static MethodHandle find(MethodHandles.Lookup lookup,
+                String name, MethodType type) {
+            try {
+                return lookup.findVirtual(MethodHandles.Lookup.class, name,
+                        type);
+            } catch (NoSuchMethodException | IllegalAccessException ex) {
+                LOG.log(Level.FINE, name, ex);
+                return null;
+            }
+        }
+    }
+}
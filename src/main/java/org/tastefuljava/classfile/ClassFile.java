@@ -1,21 +1,24 @@
 package org.tastefuljava.classfile;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.StreamCorruptedException;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -56,6 +59,8 @@ public class ClassFile {
     List<MethodInfo> methods = new ArrayList<>();
     /** list of the attributes */
     List<AttributeInfo> attributes = new ArrayList<>();
+    /** true if the constant pool must be compacted before the class is stored */
+    private boolean compactOnStore;
 
     public ClassFile() {
         cp = new ConstantPool();
@@ -72,6 +77,31 @@ public class ClassFile {
         superClass = cp.addClass(superClassName);
     }
 
+    /**
+     * Brings the class back to the state of a new ClassFile, keeping its
+     * constant pool and lists, so that it can be reused to generate another
+     * class without allocating them again.
+     */
+    public void reset() {
+        minorVersion = 0;
+        majorVersion = 0;
+        accessFlags = ACC_PUBLIC;
+        thisClass = 0;
+        superClass = 0;
+        interfaces.clear();
+        fields.clear();
+        methods.clear();
+        attributes.clear();
+        compactOnStore = false;
+        cp.reset();
+    }
+
+    public void reset(String className, String superClassName) {
+        reset();
+        thisClass = cp.addClass(className);
+        superClass = cp.addClass(superClassName);
+    }
+
     public short getMinorVersion() {
         return minorVersion;
     }
@@ -92,6 +122,14 @@ public class ClassFile {
         return cp;
     }
 
+    public boolean getCompactOnStore() {
+        return compactOnStore;
+    }
+
+    public void setCompactOnStore(boolean newValue) {
+        compactOnStore = newValue;
+    }
+
     public short getAccessFlags() {
         return accessFlags;
     }
@@ -141,7 +179,8 @@ public class ClassFile {
     }
 
     public boolean hasInterface(String className) {
-        return hasInterface(cp.addClass(className));
+        short index = cp.findClass(className);
+        return index != 0 && hasInterface(index);
     }
 
     public FieldInfo[] getFields() {
@@ -167,6 +206,57 @@ public class ClassFile {
         methods.add(method);
     }
 
+    /**
+     * Adds a method built with another constant pool, typically a method
+     * generated on a separate thread with its own ConstantPool and
+     * CodeBuilder. The other pool is merged into the pool of this class, and
+     * the references of the method, including the operands of the
+     * instructions of its code, are renumbered in place. The constants loaded
+     * by ldc instructions are merged first, so that they remain below 256
+     * whenever possible; the ldc instructions whose constant is renumbered
+     * above 255 are widened to ldc_w, and the code is relocated.
+     * @param method the method to add
+     * @param source the constant pool the method currently refers to
+     * @throws ClassFileException if the method has an attribute of unknown
+     * format, in which case nothing is changed, or if its code becomes too
+     * large once widened, in which case the method is not changed, but the
+     * merged constants are left in the pool until it is compacted
+     */
+    public void addMethod(MethodInfo method, ConstantPool source) {
+        if (source == cp) {
+            addMethod(method);
+            return;
+        }
+        if (!ConstantRemapper.isSupported(source, method)) {
+            throw new ClassFileException(
+                    "Cannot renumber a method with unknown attributes");
+        }
+        int[] ldc = new int[source.getCount()];
+        int[] n = {0};
+        boolean[] seen = new boolean[ldc.length];
+        new ConstantRemapper(source, (index, kind) -> {
+            if (kind == ConstantRemapper.LDC && !seen[index]) {
+                seen[index] = true;
+                ldc[n[0]++] = index;
+            }
+            return index;
+        }).remap(method);
+        int[] map = cp.merge(source, Arrays.copyOf(ldc, n[0]));
+        boolean[] wide = new boolean[ldc.length];
+        boolean widen = false;
+        for (int i = 0; i < n[0]; ++i) {
+            if (map[ldc[i]] > 255) {
+                wide[ldc[i]] = true;
+                widen = true;
+            }
+        }
+        if (widen) {
+            LdcWidener.widen(source, method, wide);
+        }
+        new ConstantRemapper(source, (index, kind) -> map[index]).remap(method);
+        addMethod(method);
+    }
+
     public MethodInfo addMethod(int flags, String name, String descr) {
         MethodInfo method = new MethodInfo(
                 flags, cp.addUtf8(name), cp.addUtf8(descr));
@@ -187,7 +277,12 @@ public class ClassFile {
     }
 
     public MethodInfo findMethod(short flags, String name, String descr) {
-        return findMethod(flags, cp.addUtf8(name), cp.addUtf8(descr));
+        short nameIndex = cp.findUtf8(name);
+        short descrIndex = cp.findUtf8(descr);
+        if (nameIndex == 0 || descrIndex == 0) {
+            return null;
+        }
+        return findMethod(flags, nameIndex, descrIndex);
     }
 
     public AttributeInfo[] getAttributes() {
@@ -198,14 +293,74 @@ public class ClassFile {
         attributes.add(attr);
     }
 
+    public AttributeInfo findAttribute(short nameIndex) {
+        for (AttributeInfo attr: attributes) {
+            if (attr.getNameIndex() == nameIndex) {
+                return attr;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds a bootstrap method to the BootstrapMethods attribute, creating the
+     * attribute if needed.
+     * @param methodHandleIndex index of the MethodHandle entry of the
+     * bootstrap method
+     * @param args indices of the static arguments in the constant pool
+     * @return the index of the bootstrap method, to be used in Dynamic and
+     * InvokeDynamic entries
+     */
+    public short addBootstrapMethod(short methodHandleIndex, short... args) {
+        short nameIndex = cp.addUtf8("BootstrapMethods");
+        AttributeInfo attr = findAttribute(nameIndex);
+        if (attr == null) {
+            attr = new AttributeInfo(nameIndex, new byte[] {0, 0});
+            addAttribute(attr);
+        }
+        short[] method = new short[args.length + 1];
+        method[0] = methodHandleIndex;
+        System.arraycopy(args, 0, method, 1, args.length);
+        try {
+            List<short[]> list = new ArrayList<>();
+            DataInput input = attr.getDataInput();
+            int count = input.readShort() & 0xFFFF;
+            for (int i = 0; i < count; ++i) {
+                short mh = input.readShort();
+                short[] bsm = new short[(input.readShort() & 0xFFFF) + 1];
+                bsm[0] = mh;
+                for (int j = 1; j < bsm.length; ++j) {
+                    bsm[j] = input.readShort();
+                }
+                if (Arrays.equals(bsm, method)) {
+                    return (short)i;
+                }
+                list.add(bsm);
+            }
+            list.add(method);
+            try (DataOutputStream output = attr.getDataOutput()) {
+                output.writeShort(list.size());
+                for (short[] bsm: list) {
+                    output.writeShort(bsm[0]);
+                    output.writeShort(bsm.length - 1);
+                    for (int j = 1; j < bsm.length; ++j) {
+                        output.writeShort(bsm[j]);
+                    }
+                }
+            }
+            return (short)count;
+        } catch (IOException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+            throw new ClassFileException(ex.getMessage());
+        }
+    }
+
     public void load(String fileName) throws IOException {
         load(new File(fileName));
     }
 
     public void load(File file) throws IOException {
-        try (InputStream stream = new FileInputStream(file)) {
-            load(stream);
-        }
+        load(Files.readAllBytes(file.toPath()));
     }
 
     public void load(InputStream stream) throws IOException {
@@ -216,6 +371,59 @@ public class ClassFile {
         minorVersion = input.readShort();
         majorVersion = input.readShort();
         cp.load(input);
+        loadBody(input);
+    }
+
+    /**
+     * Loads the class from its bytes. The constant pool is loaded lazily: its
+     * entries are decoded from the bytes only when they are accessed.
+     * <p>The array is not copied, and must not be modified afterwards: the
+     * Utf8 entries of the constant pool and the attributes that are written
+     * back unchanged refer to it.</p>
+     * @param data the bytes of the class file
+     * @throws IOException if the class file is invalid
+     */
+    public void load(byte[] data) throws IOException {
+        load(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Loads the class from a buffer, starting at its current position, which
+     * is advanced past the class. Nothing is copied: the constant pool is
+     * decoded lazily from the buffer, its Utf8 entries may be slices of it,
+     * and the attributes written back unchanged are slices of it too, so the
+     * content of the buffer must not be modified afterwards.
+     * @param buffer the bytes of the class file
+     * @throws IOException if the class file is invalid
+     */
+    public void load(ByteBuffer buffer) throws IOException {
+        BufferInput input = new BufferInput(buffer);
+        if (input.readInt() != MAGIC) {
+            throw new StreamCorruptedException("no magic number found");
+        }
+        minorVersion = input.readShort();
+        majorVersion = input.readShort();
+        BufferInput.setPosition(buffer, input.getPosition());
+        cp.load(buffer);
+        input.setPosition(buffer.position());
+        loadBody(input);
+        BufferInput.setPosition(buffer, input.getPosition());
+    }
+
+    /**
+     * Loads a class file by mapping it in memory. See load(ByteBuffer).
+     * @param path the class file
+     * @throws IOException if the file cannot be read or is invalid
+     */
+    public void load(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.READ)) {
+            load(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size()));
+        }
+    }
+
+    private void loadBody(DataInput input) throws IOException {
         accessFlags = input.readShort();
         thisClass = input.readShort();
         superClass = input.readShort();
@@ -236,7 +444,44 @@ public class ClassFile {
     }
 
     public void store(OutputStream stream) throws IOException {
-        DataOutput output = new DataOutputStream(stream);
+        if (compactOnStore) {
+            compact();
+        }
+        storeClass(new DataOutputStream(stream));
+    }
+
+    /**
+     * Writes the class into a buffer, starting at its position, which is
+     * advanced past the class.
+     * @param buffer the buffer, which must have at least sizeInBytes()
+     * bytes remaining
+     * @throws java.nio.BufferOverflowException if the buffer is too small
+     */
+    public void store(ByteBuffer buffer) throws IOException {
+        if (compactOnStore) {
+            compact();
+        }
+        BufferOutput output = new BufferOutput(buffer);
+        storeClass(output);
+        BufferInput.setPosition(buffer, output.getPosition());
+    }
+
+    /**
+     * Returns the size of the class file, as written by store.
+     */
+    public int sizeInBytes() {
+        int size = 8 + cp.sizeInBytes() + 6 + 2 + 2*interfaces.size() + 2;
+        for (FieldInfo fi: fields) {
+            size += fi.sizeInBytes();
+        }
+        size += 2;
+        for (MethodInfo mi: methods) {
+            size += mi.sizeInBytes();
+        }
+        return size + AttributeInfo.sizeInBytes(attributes);
+    }
+
+    private void storeClass(DataOutput output) throws IOException {
         output.writeInt(MAGIC);
         output.writeShort(minorVersion);
         output.writeShort(majorVersion);
@@ -250,10 +495,74 @@ public class ClassFile {
         storeAttributes(output);
     }
 
+    /**
+     * Removes the unused entries from the constant pool, and renumbers all the
+     * references to the constant pool in the class. The constants loaded by
+     * ldc instructions are placed first, the most used first, followed by the
+     * constants loaded by ldc_w, so that the code added later can use ldc as
+     * often as possible.
+     * <p>Any index into the constant pool obtained before the compaction
+     * becomes invalid.</p>
+     * @return true if the pool has been compacted, false if the class has an
+     * attribute of unknown format, or if the pool is frozen, in which case
+     * nothing is changed.
+     */
+    public boolean compact() {
+        if (cp.isFrozen() || !ConstantRemapper.isSupported(cp, this)) {
+            return false;
+        }
+        int count = cp.getCount();
+        boolean[] used = new boolean[count];
+        int[] ldc = new int[count];
+        int[] ldcW = new int[count];
+        new ConstantRemapper(cp, (index, kind) -> {
+            used[index] = true;
+            if (kind == ConstantRemapper.LDC) {
+                ++ldc[index];
+            } else if (kind == ConstantRemapper.LDC_W) {
+                ++ldcW[index];
+            }
+            return index;
+        }).remap(this);
+        cp.markReferences(used);
+        List<Integer> first = new ArrayList<>();
+        List<Integer> second = new ArrayList<>();
+        List<Integer> others = new ArrayList<>();
+        for (int i = 1; i < count; ++i) {
+            if (ldc[i] > 0) {
+                first.add(i);
+            } else if (ldcW[i] > 0) {
+                second.add(i);
+            } else if (used[i]) {
+                others.add(i);
+            }
+        }
+        first.sort((a, b) -> ldc[b] - ldc[a]);
+        second.sort((a, b) -> ldcW[b] - ldcW[a]);
+        int[] order = new int[first.size() + second.size() + others.size()];
+        int n = 0;
+        for (List<Integer> list: Arrays.asList(first, second, others)) {
+            for (int i: list) {
+                order[n++] = i;
+            }
+        }
+        int[] map = cp.mapIndices(order);
+        new ConstantRemapper(cp, (index, kind) -> map[index]).remap(this);
+        cp.rebuild(order, map);
+        return true;
+    }
+
+    /**
+     * Returns the bytes of the class file, written directly into an array of
+     * the exact size.
+     */
     public byte[] toBytes() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        store(baos);
-        return baos.toByteArray();
+        if (compactOnStore) {
+            compact();
+        }
+        byte[] result = new byte[sizeInBytes()];
+        storeClass(new BufferOutput(ByteBuffer.wrap(result)));
+        return result;
     }
 
     public Class<?> define() {
@@ -261,21 +570,34 @@ public class ClassFile {
     }
 
     public Class<?> define(ClassLoader cl) {
+        return define(ClassDefiner.reflective(cl));
+    }
+
+    /**
+     * Defines the class in the package of the class of a lookup, with
+     * Lookup.defineClass where available.
+     */
+    public Class<?> define(MethodHandles.Lookup lookup) {
+        return define(ClassDefiner.lookup(lookup));
+    }
+
+    public Class<?> define(ClassDefiner definer) {
         try {
-            Method method = ClassLoader.class.getDeclaredMethod("defineClass",
-                    String.class, byte[].class, int.class, int.class);
-            method.setAccessible(true);
-            byte[] buf = toBytes();
-            return (Class<?>)method.invoke(
-                    cl, getClassName(), buf, 0, buf.length);
-        } catch (NoSuchMethodException | SecurityException | IOException
-                | IllegalAccessException | IllegalArgumentException
-                | InvocationTargetException ex) {
+            return definer.define(toBytes());
+        } catch (IOException ex) {
             LOG.log(Level.SEVERE, null, ex);
             throw new ClassFileException(ex.getMessage());
         }
     }
 
+    /**
+     * Writes a javap-style listing of the class, with its decoded code.
+     * @see Disassembler
+     */
+    public void disassemble(Appendable out) throws IOException {
+        new Disassembler(out).disassemble(toBytes());
+    }
+
     public void print(PrintStream out) throws IOException {
         out.println("minor_version = " + majorVersion);
         out.println("major_version = " + minorVersion);
@@ -0,0 +1,52 @@
+package org.tastefuljava.classfile;
+
+/**
+ * A ClassFile and a CodeBuilder per thread, reset and reused for each
+ * generated class, so that a generator creating many classes does not
+ * allocate new constant pools, lists and code buffers for each of them.
+ * <p>The objects returned by a pool are only valid until the next call to
+ * the same method on the same thread: a class must be stored, for instance
+ * with {@link ClassFile#toBytes()}, before the next one is started, and the
+ * code of a method must be committed before the next method is started.</p>
+ */
+public final class ClassFilePool {
+    private static final ThreadLocal<ClassFilePool> POOL
+            = ThreadLocal.withInitial(ClassFilePool::new);
+
+    private final ClassFile classFile = new ClassFile();
+    private final CodeBuilder code
+            = new CodeBuilder(classFile.getConstantPool(), 0);
+
+    private ClassFilePool() {
+    }
+
+    /**
+     * Returns the pool of the current thread.
+     */
+    public static ClassFilePool get() {
+        return POOL.get();
+    }
+
+    /**
+     * Returns the class of the current thread, reset to an empty class with
+     * the given name and super class.
+     */
+    public ClassFile newClassFile(String className, String superClassName) {
+        classFile.reset(className, superClassName);
+        return classFile;
+    }
+
+    public ClassFile newClassFile(String className) {
+        return newClassFile(className, "java/lang/Object");
+    }
+
+    /**
+     * Returns the code builder of the current thread, reset to an empty
+     * method. It shares the constant pool of the class returned by
+     * newClassFile.
+     */
+    public CodeBuilder newCodeBuilder(int locals) {
+        code.reset(locals);
+        return code;
+    }
+}
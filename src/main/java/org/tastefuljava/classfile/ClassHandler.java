@@ -0,0 +1,115 @@
+package org.tastefuljava.classfile;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the events of a ClassParser, in the order of the class file. All
+ * the methods do nothing by default; the methods returning a boolean return
+ * false by default, telling the parser to skip the corresponding content
+ * without decoding it.
+ */
+public interface ClassHandler {
+    /**
+     * Called first.
+     * @param cp the constant pool of the class, decoded lazily
+     */
+    default void header(int minorVersion, int majorVersion, ConstantPool cp) {
+    }
+
+    /**
+     * @return true to receive a constant event for each entry of the
+     * constant pool
+     */
+    default boolean constants() {
+        return false;
+    }
+
+    /**
+     * @param index the index of the entry
+     * @param tag the tag of the entry, one of the ConstantPool.CP_ constants
+     */
+    default void constant(int index, int tag) {
+    }
+
+    default void declaration(int accessFlags, short thisClass,
+            short superClass) {
+    }
+
+    default void implement(short classIndex) {
+    }
+
+    /**
+     * @return true to receive the attributes of the field, followed by
+     * endField
+     */
+    default boolean field(int accessFlags, short nameIndex, short typeIndex) {
+        return false;
+    }
+
+    default void endField() {
+    }
+
+    /**
+     * @return true to receive the attributes of the method, followed by
+     * endMethod
+     */
+    default boolean method(int accessFlags, short nameIndex,
+            short descrIndex) {
+        return false;
+    }
+
+    default void endMethod() {
+    }
+
+    /**
+     * Called for each attribute of the class, of a field, of a method or of a
+     * Code attribute, except for the Code attributes themselves unless
+     * rawCode returns true.
+     * @param data a read-only slice of the class bytes
+     */
+    default void attribute(short nameIndex, ByteBuffer data) {
+    }
+
+    /**
+     * @return true to receive the Code attributes of the methods undecoded,
+     * through attribute, like the other attributes
+     */
+    default boolean rawCode() {
+        return false;
+    }
+
+    /**
+     * Called for the Code attribute of a method, unless rawCode returns true.
+     * @return true to receive the instructions, the exception handlers and
+     * the attributes of the code, followed by endCode
+     */
+    default boolean code(int maxStack, int maxLocals, int codeLength) {
+        return false;
+    }
+
+    /**
+     * @param pc the address of the instruction
+     * @param opcode the opcode; for wide instructions, the opcode of the
+     * widened instruction
+     * @param operand the index into the constant pool for instructions
+     * referring to a constant, the local variable for iinc, ret, and the
+     * loads and stores that have an operand, the address of the target for
+     * jumps, the default target for switches, the value for bipush and
+     * sipush, the type for newarray, or zero
+     */
+    default void instruction(int pc, int opcode, int operand) {
+    }
+
+    default void exception(int startPc, int endPc, int handlerPc,
+            short catchType) {
+    }
+
+    default void endCode() {
+    }
+
+    /**
+     * Called last.
+     */
+    default void end() {
+    }
+}
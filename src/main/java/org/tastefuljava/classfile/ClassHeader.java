@@ -0,0 +1,155 @@
+package org.tastefuljava.classfile;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The name, super class, interfaces and access flags of a class, read by a
+ * scan that stops right after the interfaces table. Only the position of the
+ * constant pool entries is recorded while skipping them, and only the entries
+ * needed to resolve the class names are decoded. Instances are immutable.
+ */
+public final class ClassHeader {
+    private static final String[] NO_INTERFACES = {};
+
+    private final int minorVersion;
+    private final int majorVersion;
+    private final int accessFlags;
+    private final String className;
+    /** name of the super class, or null for java/lang/Object */
+    private final String superClassName;
+    private final String[] interfaces;
+
+    private ClassHeader(int minorVersion, int majorVersion, int accessFlags,
+            String className, String superClassName, String[] interfaces) {
+        this.minorVersion = minorVersion;
+        this.majorVersion = majorVersion;
+        this.accessFlags = accessFlags;
+        this.className = className;
+        this.superClassName = superClassName;
+        this.interfaces = interfaces;
+    }
+
+    public static ClassHeader scan(byte[] data) throws IOException {
+        return scan(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Scans the header of a class file. The file is mapped in memory, so only
+     * the pages up to the end of the interfaces table are read.
+     */
+    public static ClassHeader scan(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.READ)) {
+            return scan(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size()));
+        }
+    }
+
+    /**
+     * Scans the header of a class starting at the position of a buffer. The
+     * position of the buffer is not changed.
+     */
+    public static ClassHeader scan(ByteBuffer buffer) throws IOException {
+        BufferInput input = new BufferInput(buffer);
+        if (input.readInt() != ClassFile.MAGIC) {
+            throw new StreamCorruptedException("no magic number found");
+        }
+        int minorVersion = input.readUnsignedShort();
+        int majorVersion = input.readUnsignedShort();
+        int count = input.readUnsignedShort();
+        int[] offsets = new int[count];
+        for (int i = 1; i < count; ++i) {
+            offsets[i] = input.getPosition();
+            if (ConstantPool.skipEntry(input)) {
+                ++i;
+            }
+        }
+        int accessFlags = input.readUnsignedShort();
+        int thisClass = input.readUnsignedShort();
+        int superClass = input.readUnsignedShort();
+        int n = input.readUnsignedShort();
+        int[] interfaceIndices = new int[n];
+        for (int i = 0; i < n; ++i) {
+            interfaceIndices[i] = input.readUnsignedShort();
+        }
+        String[] interfaces = n == 0 ? NO_INTERFACES : new String[n];
+        for (int i = 0; i < n; ++i) {
+            interfaces[i] = className(input, offsets, interfaceIndices[i]);
+        }
+        return new ClassHeader(minorVersion, majorVersion, accessFlags,
+                className(input, offsets, thisClass),
+                superClass == 0 ? null : className(input, offsets, superClass),
+                interfaces);
+    }
+
+    public int getMinorVersion() {
+        return minorVersion;
+    }
+
+    public int getMajorVersion() {
+        return majorVersion;
+    }
+
+    public int getAccessFlags() {
+        return accessFlags;
+    }
+
+    /**
+     * Returns the internal name of the class, such as java/lang/String.
+     */
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * Returns the internal name of the super class, or null if there is none.
+     */
+    public String getSuperClassName() {
+        return superClassName;
+    }
+
+    public String[] getInterfaces() {
+        return interfaces.length == 0 ? interfaces : interfaces.clone();
+    }
+
+    public boolean isInterface() {
+        return (accessFlags & ClassFile.ACC_INTERFACE) != 0;
+    }
+
+    @Override
+    public String toString() {
+        return className + " extends " + superClassName
+                + " implements " + Arrays.toString(interfaces);
+    }
+
+    private static String className(BufferInput input, int[] offsets,
+            int index) throws IOException {
+        entry(input, offsets, index, ConstantPool.CP_CLASS);
+        entry(input, offsets, input.readUnsignedShort(), ConstantPool.CP_UTF8);
+        return input.readUTF();
+    }
+
+    /**
+     * Positions the input right after the tag of an entry, which must have
+     * the given tag.
+     */
+    private static void entry(BufferInput input, int[] offsets, int index,
+            int tag) throws IOException {
+        if (index <= 0 || index >= offsets.length || offsets[index] == 0) {
+            throw new StreamCorruptedException(
+                    "invalid constant pool index: " + index);
+        }
+        input.setPosition(offsets[index]);
+        int actual = input.readUnsignedByte();
+        if (actual != tag) {
+            throw new StreamCorruptedException("constant pool entry " + index
+                    + " has tag " + actual + ", expected " + tag);
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package org.tastefuljava.classfile;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * An index of the super classes and interfaces of all the classes of a
+ * classpath.
+ * <p>The index is built from the headers of the classes (see
+ * {@link ClassHeader}), and can be saved to a file and loaded back. Each jar
+ * and each class file of a directory is a source of the index: when the index
+ * is updated, only the sources whose size or modification time have changed
+ * are scanned again.</p>
+ * <p>Queries only read the index, and can be made concurrently, but not while
+ * the index is updated.</p>
+ */
+public class ClassHierarchy {
+    private static final int MAGIC = 0x43484958; // "CHIX"
+    private static final int VERSION = 1;
+    private static final String OBJECT = "java/lang/Object";
+    private static final String[] NO_NAMES = {};
+
+    /** the sources, in classpath order, by absolute path */
+    private Map<String,Source> sources = new LinkedHashMap<>();
+    /** the classes, by internal name; the first source defining a name wins */
+    private final Map<String,Node> classes = new HashMap<>();
+    /** the direct subtypes of the classes, by internal name */
+    private final Map<String,List<String>> subtypes = new HashMap<>();
+
+    public ClassHierarchy() {
+    }
+
+    /**
+     * Loads an index saved by {@link #save(Path)}. The file is mapped in
+     * memory and read in one pass.
+     */
+    public static ClassHierarchy load(Path path) throws IOException {
+        ClassHierarchy result = new ClassHierarchy();
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.READ)) {
+            result.load(new BufferInput(channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size())));
+        }
+        return result;
+    }
+
+    /**
+     * Saves the index to a file. The file is replaced atomically, so that a
+     * concurrent load sees either the old or the new index.
+     */
+    public void save(Path path) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            store(out);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Updates the index to match a classpath of jars and directories. The
+     * sources that have not changed since the last update are not scanned.
+     * @return true if the index has changed
+     */
+    public boolean update(List<Path> classpath) throws IOException {
+        Map<String,Source> result = new LinkedHashMap<>();
+        boolean changed = false;
+        for (Path element: classpath) {
+            if (Files.isDirectory(element)) {
+                List<Path> files;
+                try (Stream<Path> stream = Files.walk(element)) {
+                    files = stream
+                            .filter((p) -> p.toString().endsWith(".class"))
+                            .sorted().collect(Collectors.toList());
+                }
+                for (Path file: files) {
+                    changed |= update(file, result);
+                }
+            } else if (Files.isRegularFile(element)) {
+                changed |= update(element, result);
+            }
+        }
+        changed |= !new ArrayList<>(result.keySet()).equals(
+                new ArrayList<>(sources.keySet()));
+        sources = result;
+        if (changed) {
+            link();
+        }
+        return changed;
+    }
+
+    public int size() {
+        return classes.size();
+    }
+
+    public boolean contains(String className) {
+        return classes.containsKey(className);
+    }
+
+    /**
+     * Returns the internal name of the super class of a class, or null if the
+     * class is java/lang/Object or is not in the index.
+     */
+    public String getSuperClass(String className) {
+        Node node = classes.get(className);
+        return node == null ? null : node.superName;
+    }
+
+    /**
+     * Returns the internal names of the interfaces directly implemented by a
+     * class, or an empty array if the class is not in the index.
+     */
+    public String[] getInterfaces(String className) {
+        Node node = classes.get(className);
+        return node == null || node.interfaces.length == 0
+                ? NO_NAMES : node.interfaces.clone();
+    }
+
+    /**
+     * Tests whether a class is an interface; classes that are not in the index
+     * are not.
+     */
+    public boolean isInterface(String className) {
+        Node node = classes.get(className);
+        return node != null && (node.flags & ClassFile.ACC_INTERFACE) != 0;
+    }
+
+    /**
+     * Returns the classes of the index that directly extend or implement a
+     * class or interface.
+     */
+    public List<String> getDirectSubtypes(String className) {
+        List<String> list = subtypes.get(className);
+        return list == null
+                ? Collections.emptyList() : Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Tests whether a class is, extends or implements another. Classes that
+     * are not in the index have no known super types. The super types are
+     * walked iteratively, and each one is visited once, so that a cycle in
+     * an inconsistent classpath does not recurse forever.
+     */
+    public boolean isSubtype(String className, String superName) {
+        if (superName.equals(OBJECT)) {
+            return true;
+        }
+        Set<String> visited = new HashSet<>();
+        Deque<String> pending = new ArrayDeque<>();
+        pending.push(className);
+        while (!pending.isEmpty()) {
+            String name = pending.pop();
+            if (name.equals(superName)) {
+                return true;
+            }
+            Node node = classes.get(name);
+            if (node == null || !visited.add(name)) {
+                continue;
+            }
+            for (String itf: node.interfaces) {
+                pending.push(itf);
+            }
+            if (node.superName != null) {
+                pending.push(node.superName);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the most specific common super class of two classes, as needed
+     * to compute stack map frames. Interfaces have java/lang/Object as their
+     * common super class with any other type.
+     */
+    public String getCommonSuperClass(String type1, String type2) {
+        if (isSubtype(type1, type2)) {
+            return type2;
+        } else if (isSubtype(type2, type1)) {
+            return type1;
+        } else if (isInterface(type1) || isInterface(type2)) {
+            return OBJECT;
+        }
+        Set<String> visited = new HashSet<>();
+        for (String s = getSuperClass(type1); s != null && visited.add(s);
+                s = getSuperClass(s)) {
+            if (isSubtype(type2, s)) {
+                return s;
+            }
+        }
+        return OBJECT;
+    }
+
+    private boolean update(Path path, Map<String,Source> result)
+            throws IOException {
+        String key = path.toAbsolutePath().toString();
+        BasicFileAttributes attrs = Files.readAttributes(path,
+                BasicFileAttributes.class);
+        long size = attrs.size();
+        long time = attrs.lastModifiedTime().toMillis();
+        Source source = sources.get(key);
+        if (source != null && source.size == size && source.time == time) {
+            result.put(key, source);
+            return false;
+        }
+        source = new Source(key, size, time);
+        if (key.endsWith(".class")) {
+            source.classes.add(new Node(ClassHeader.scan(path)));
+        } else {
+            scanJar(path, source.classes);
+        }
+        result.put(key, source);
+        return true;
+    }
+
+    private static void scanJar(Path path, List<Node> list)
+            throws IOException {
+        try (ZipFile zip = new ZipFile(path.toFile())) {
+            Enumeration<? extends ZipEntry> e = zip.entries();
+            while (e.hasMoreElements()) {
+                ZipEntry entry = e.nextElement();
+                String name = entry.getName();
+                if (name.endsWith(".class") && !name.startsWith("META-INF/")
+                        && !name.endsWith("module-info.class")) {
+                    try (InputStream in = zip.getInputStream(entry)) {
+                        list.add(new Node(ClassHeader.scan(
+                                ClassBatch.readFully(in, entry.getSize()))));
+                    }
+                }
+            }
+        }
+    }
+
+    private void link() {
+        classes.clear();
+        subtypes.clear();
+        for (Source source: sources.values()) {
+            for (Node node: source.classes) {
+                classes.putIfAbsent(node.name, node);
+            }
+        }
+        for (Node node: classes.values()) {
+            if (node.superName != null) {
+                addSubtype(node.superName, node.name);
+            }
+            for (String itf: node.interfaces) {
+                addSubtype(itf, node.name);
+            }
+        }
+    }
+
+    private void addSubtype(String superName, String name) {
+        subtypes.computeIfAbsent(superName, (k) -> new ArrayList<>())
+                .add(name);
+    }
+
+    private void load(BufferInput input) throws IOException {
+        if (input.readInt() != MAGIC) {
+            throw new StreamCorruptedException("no magic number found");
+        }
+        int version = input.readInt();
+        if (version != VERSION) {
+            throw new StreamCorruptedException(
+                    "unsupported version: " + version);
+        }
+        String[] strings = new String[input.readInt()];
+        for (int i = 0; i < strings.length; ++i) {
+            strings[i] = input.readUTF();
+        }
+        int count = input.readInt();
+        for (int i = 0; i < count; ++i) {
+            Source source = new Source(input.readUTF(), input.readLong(),
+                    input.readLong());
+            int n = input.readInt();
+            for (int j = 0; j < n; ++j) {
+                String name = strings[input.readInt()];
+                int flags = input.readUnsignedShort();
+                int superIndex = input.readInt();
+                String[] interfaces = new String[input.readUnsignedShort()];
+                for (int k = 0; k < interfaces.length; ++k) {
+                    interfaces[k] = strings[input.readInt()];
+                }
+                source.classes.add(new Node(name, flags,
+                        superIndex < 0 ? null : strings[superIndex],
+                        interfaces));
+            }
+            sources.put(source.path, source);
+        }
+        link();
+    }
+
+    private void store(DataOutputStream out) throws IOException {
+        Map<String,Integer> index = new LinkedHashMap<>();
+        for (Source source: sources.values()) {
+            for (Node node: source.classes) {
+                index.putIfAbsent(node.name, index.size());
+                if (node.superName != null) {
+                    index.putIfAbsent(node.superName, index.size());
+                }
+                for (String itf: node.interfaces) {
+                    index.putIfAbsent(itf, index.size());
+                }
+            }
+        }
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(index.size());
+        for (String s: index.keySet()) {
+            out.writeUTF(s);
+        }
+        out.writeInt(sources.size());
+        for (Source source: sources.values()) {
+            out.writeUTF(source.path);
+            out.writeLong(source.size);
+            out.writeLong(source.time);
+            out.writeInt(source.classes.size());
+            for (Node node: source.classes) {
+                out.writeInt(index.get(node.name));
+                out.writeShort(node.flags);
+                out.writeInt(node.superName == null
+                        ? -1 : index.get(node.superName));
+                out.writeShort(node.interfaces.length);
+                for (String itf: node.interfaces) {
+                    out.writeInt(index.get(itf));
+                }
+            }
+        }
+    }
+
+    private static final class Source {
+        private final String path;
+        private final long size;
+        /** last modification time, in milliseconds */
+        private final long time;
+        private final List<Node> classes = new ArrayList<>();
+
+        private Source(String path, long size, long time) {
+            this.path = path;
+            this.size = size;
+            this.time = time;
+        }
+    }
+
+    private static final class Node {
+        private final String name;
+        private final int flags;
+        private final String superName;
+        private final String[] interfaces;
+
+        private Node(ClassHeader header) {
+            this(header.getClassName(), header.getAccessFlags(),
+                    header.getSuperClassName(), header.getInterfaces());
+        }
+
+        private Node(String name, int flags, String superName,
+                String[] interfaces) {
+            this.name = name;
+            this.flags = flags;
+            this.superName = superName;
+            this.interfaces = interfaces;
+        }
+    }
+}
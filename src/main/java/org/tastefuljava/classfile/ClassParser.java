@@ -0,0 +1,242 @@
+package org.tastefuljava.classfile;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Walks the bytes of a class file once, and reports what it finds to a
+ * ClassHandler, without building any FieldInfo, MethodInfo or AttributeInfo.
+ * The content the handler is not interested in is skipped using the lengths
+ * recorded in the class file. A parser can be reused for several classes, but
+ * not from several threads at the same time.
+ */
+public class ClassParser {
+    private final ClassHandler handler;
+    /** copy of the code, when the class is not in a heap buffer */
+    private byte[] codeBuf = new byte[0];
+    /** constant pool of the class being parsed */
+    private ConstantPool cp;
+    /** index of the "Code" Utf8 entry, once found */
+    private short codeIndex;
+
+    public ClassParser(ClassHandler handler) {
+        this.handler = handler;
+    }
+
+    public void parse(byte[] data) throws IOException {
+        parse(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Parses a class file mapped in memory.
+     */
+    public void parse(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.READ)) {
+            parse(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size()));
+        }
+    }
+
+    /**
+     * Parses a class starting at the position of a buffer, which is advanced
+     * past the class.
+     */
+    public void parse(ByteBuffer buffer) throws IOException {
+        BufferInput input = new BufferInput(buffer);
+        if (input.readInt() != ClassFile.MAGIC) {
+            throw new StreamCorruptedException("no magic number found");
+        }
+        int minorVersion = input.readUnsignedShort();
+        int majorVersion = input.readUnsignedShort();
+        cp = new ConstantPool();
+        codeIndex = 0;
+        BufferInput.setPosition(buffer, input.getPosition());
+        cp.load(buffer);
+        input.setPosition(buffer.position());
+        try {
+            handler.header(minorVersion, majorVersion, cp);
+            if (handler.constants()) {
+                for (int i = 1; i < cp.getCount(); ++i) {
+                    int tag = cp.getTag((short)i);
+                    if (tag != 0) {
+                        handler.constant(i, tag);
+                    }
+                }
+            }
+            handler.declaration(input.readUnsignedShort(), input.readShort(),
+                    input.readShort());
+            for (int i = 0, n = input.readUnsignedShort(); i < n; ++i) {
+                handler.implement(input.readShort());
+            }
+            for (int i = 0, n = input.readUnsignedShort(); i < n; ++i) {
+                if (handler.field(input.readUnsignedShort(),
+                        input.readShort(), input.readShort())) {
+                    attributes(input, false);
+                    handler.endField();
+                } else {
+                    skipAttributes(input);
+                }
+            }
+            for (int i = 0, n = input.readUnsignedShort(); i < n; ++i) {
+                if (handler.method(input.readUnsignedShort(),
+                        input.readShort(), input.readShort())) {
+                    attributes(input, true);
+                    handler.endMethod();
+                } else {
+                    skipAttributes(input);
+                }
+            }
+            attributes(input, false);
+            handler.end();
+        } finally {
+            cp = null;
+        }
+        BufferInput.setPosition(buffer, input.getPosition());
+    }
+
+    private void attributes(BufferInput input, boolean method)
+            throws IOException {
+        for (int i = 0, n = input.readUnsignedShort(); i < n; ++i) {
+            short nameIndex = input.readShort();
+            int length = input.readInt();
+            if (method && !handler.rawCode() && isCode(nameIndex)) {
+                code(input, length);
+            } else {
+                handler.attribute(nameIndex,
+                        input.slice(length).asReadOnlyBuffer());
+            }
+        }
+    }
+
+    private static void skipAttributes(BufferInput input) throws IOException {
+        for (int i = 0, n = input.readUnsignedShort(); i < n; ++i) {
+            input.skip(2);
+            input.skip(input.readInt());
+        }
+    }
+
+    private boolean isCode(short nameIndex) {
+        if (codeIndex != 0) {
+            return nameIndex == codeIndex;
+        } else if (cp.getUtf8(nameIndex).equals("Code")) {
+            codeIndex = nameIndex;
+            return true;
+        }
+        return false;
+    }
+
+    private void code(BufferInput input, int length) throws IOException {
+        int end = input.getPosition() + length;
+        int maxStack = input.readUnsignedShort();
+        int maxLocals = input.readUnsignedShort();
+        int codeLength = input.readInt();
+        if (!handler.code(maxStack, maxLocals, codeLength)) {
+            input.setPosition(end);
+            return;
+        }
+        ByteBuffer code = input.slice(codeLength);
+        byte[] array;
+        int start;
+        if (code.hasArray()) {
+            array = code.array();
+            start = code.arrayOffset() + code.position();
+        } else {
+            if (codeBuf.length < codeLength) {
+                codeBuf = new byte[codeLength];
+            }
+            code.get(codeBuf, 0, codeLength);
+            array = codeBuf;
+            start = 0;
+        }
+        for (int pc = 0; pc < codeLength;
+                pc += ByteCode.instructionLength(array, start, pc)) {
+            int opcode = array[start + pc] & 0xFF;
+            if (opcode == ByteCode.WIDE) {
+                handler.instruction(pc, array[start + pc + 1] & 0xFF,
+                        getShort(array, start + pc + 2) & 0xFFFF);
+            } else {
+                handler.instruction(pc, opcode,
+                        operand(array, start, pc, opcode));
+            }
+        }
+        for (int i = 0, n = input.readUnsignedShort(); i < n; ++i) {
+            handler.exception(input.readUnsignedShort(),
+                    input.readUnsignedShort(), input.readUnsignedShort(),
+                    input.readShort());
+        }
+        attributes(input, false);
+        handler.endCode();
+    }
+
+    private static int operand(byte[] code, int start, int pc, int opcode) {
+        int pos = start + pc + 1;
+        switch (opcode) {
+        case ByteCode.BIPUSH:
+            return code[pos];
+
+        case ByteCode.SIPUSH:
+            return getShort(code, pos);
+
+        case ByteCode.LDC:
+        case ByteCode.NEWARRAY:
+        case ByteCode.ILOAD:
+        case ByteCode.LLOAD:
+        case ByteCode.FLOAD:
+        case ByteCode.DLOAD:
+        case ByteCode.ALOAD:
+        case ByteCode.ISTORE:
+        case ByteCode.LSTORE:
+        case ByteCode.FSTORE:
+        case ByteCode.DSTORE:
+        case ByteCode.ASTORE:
+        case ByteCode.IINC:
+        case ByteCode.RET:
+            return code[pos] & 0xFF;
+
+        case ByteCode.LDC_W:
+        case ByteCode.LDC2_W:
+        case ByteCode.GETSTATIC:
+        case ByteCode.PUTSTATIC:
+        case ByteCode.GETFIELD:
+        case ByteCode.PUTFIELD:
+        case ByteCode.INVOKEVIRTUAL:
+        case ByteCode.INVOKESPECIAL:
+        case ByteCode.INVOKESTATIC:
+        case ByteCode.INVOKEINTERFACE:
+        case ByteCode.INVOKEDYNAMIC:
+        case ByteCode.NEW:
+        case ByteCode.ANEWARRAY:
+        case ByteCode.CHECKCAST:
+        case ByteCode.INSTANCEOF:
+        case ByteCode.MULTIANEWARRAY:
+            return getShort(code, pos) & 0xFFFF;
+
+        case ByteCode.IFNULL:
+        case ByteCode.IFNONNULL:
+            return pc + getShort(code, pos);
+
+        case ByteCode.GOTO_W:
+        case ByteCode.JSR_W:
+            return pc + ByteCode.getInt(code, pos);
+
+        case ByteCode.TABLESWITCH:
+        case ByteCode.LOOKUPSWITCH:
+            return pc + ByteCode.getInt(code, pos + ByteCode.padding(pc));
+
+        default:
+            if (opcode >= ByteCode.IFEQ && opcode <= ByteCode.JSR) {
+                return pc + getShort(code, pos);
+            }
+            return 0;
+        }
+    }
+
+    private static short getShort(byte[] code, int pos) {
+        return (short)(((code[pos] & 0xFF) << 8) | (code[pos + 1] & 0xFF));
+    }
+}
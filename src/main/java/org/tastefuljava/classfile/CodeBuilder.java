@@ -1,10 +1,9 @@
 package org.tastefuljava.classfile;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataOutput;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -16,14 +15,19 @@ public class CodeBuilder extends CodeSegment {
         super(cp, null, locals);
     }
 
+    @Override
+    public void reset(int locals) {
+        super.reset(locals);
+        exceptions.clear();
+        attributes.clear();
+    }
+
     public void load(DataInput input) throws IOException {
         stackMax = input.readShort();
         stackTop = 0;
         localMax = input.readShort();
         localTop = 0;
-        buf = new byte[input.readInt()];
-        input.readFully(buf);
-        count = buf.length;
+        readCode(input, input.readInt());
         exceptions.clear();
         int n = input.readShort() & 0xFFFF;
         for (int i = 0; i < n; ++i) {
@@ -38,10 +42,34 @@ public class CodeBuilder extends CodeSegment {
     public void store(DataOutput output) throws IOException {
         /* fixup label references */
         commit();
+        storeCode(output);
+    }
+
+    /**
+     * Returns the number of bytes written by store, once the code is
+     * committed.
+     */
+    public int sizeInBytes() {
+        return 8 + count + 2 + 8*exceptions.size()
+                + AttributeInfo.sizeInBytes(attributes);
+    }
+
+    /**
+     * Returns the content of the Code attribute, written directly into an
+     * array of the exact size.
+     */
+    public byte[] getBytes() throws IOException {
+        commit();
+        byte[] result = new byte[sizeInBytes()];
+        storeCode(new BufferOutput(ByteBuffer.wrap(result)));
+        return result;
+    }
+
+    private void storeCode(DataOutput output) throws IOException {
         output.writeShort(stackMax);
         output.writeShort(localMax);
         output.writeInt(count);
-        output.write(buf, 0, count);
+        writeCode(output);
         output.writeShort(exceptions.size());
         for (ExceptionInfo ei: exceptions) {
             ei.store(output);
@@ -49,14 +77,6 @@ public class CodeBuilder extends CodeSegment {
         AttributeInfo.storeList(output, attributes);
     }
 
-    public byte[] getBytes() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try (final DataOutputStream dos = new DataOutputStream(baos)) {
-            store(dos);
-        }
-        return baos.toByteArray();
-    }
-
     public void addException(ExceptionInfo ei) {
         exceptions.add(ei);
     }
@@ -1,17 +1,36 @@
 package org.tastefuljava.classfile;
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
-import java.io.Reader;
-import java.io.StringReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
+/**
+ * A segment of the code of a method.
+ * <p>The code is kept in a list of chunks: the chunks of bytes written in
+ * this segment, and the child segments committed into it, which are
+ * referenced rather than copied. Committing a child segment is therefore
+ * done in constant time, whatever the depth of the tree of segments, and the
+ * code is only copied once, when it is written out.</p>
+ * <p>Unlike the methods of ByteArrayOutputStream, the methods writing the
+ * code are not synchronized: a segment must only be used by one thread at a
+ * time. Each instruction is written with a single check of the room left in
+ * the last chunk, and is never split across chunks.</p>
+ * <p>The buf field inherited from ByteArrayOutputStream is not used, and
+ * count only holds the size of the segment: all the methods reading the
+ * bytes are overridden to read the chunks, and subclasses must use them
+ * too.</p>
+ */
 public class CodeSegment extends ByteArrayOutputStream {
-    private static final Logger LOG
-            = Logger.getLogger(CodeSegment.class.getName());
+    /** size of the first chunk of bytes of a segment */
+    private static final int MIN_CHUNK_SIZE = 64;
+    /** maximum size of a chunk of bytes */
+    private static final int MAX_CHUNK_SIZE = 8192;
 
     protected final ConstantPool cp;
     protected short localTop;
@@ -19,15 +38,42 @@ public class CodeSegment extends ByteArrayOutputStream {
     protected short stackTop;
     protected short stackMax;
     protected final List<Label> labels = new ArrayList<>();
-    private final List<LabelRef> fixups = new ArrayList<>();
     private final CodeSegment parent;
+    /** the chunks of the segment, in order */
+    private final List<Chunk> chunks = new ArrayList<>();
+    /** the last chunk, or null if the segment is empty */
+    private Chunk last;
+    /** the size of the next chunk of bytes */
+    private int chunkSize = MIN_CHUNK_SIZE;
+    /** the largest array of a previous reset, reused for the next chunk */
+    private byte[] spare;
+    /** the position of the segment in its parent, or -1 if not committed */
+    private int offset = -1;
 
     protected CodeSegment(ConstantPool cp, CodeSegment parent, int locals) {
+        super(0);
         this.cp = cp;
         this.parent = parent;
         this.localTop = this.localMax = (short)locals;
     }
 
+    /**
+     * Discards the code and the labels of this segment, keeping its largest
+     * buffer.
+     */
+    @Override
+    public void reset() {
+        reset(0);
+    }
+
+    public void reset(int locals) {
+        clearChunks();
+        offset = -1;
+        localTop = localMax = (short)locals;
+        stackTop = stackMax = 0;
+        labels.clear();
+    }
+
     public short getLocalMax() {
         return localMax;
     }
@@ -74,55 +120,256 @@ public class CodeSegment extends ByteArrayOutputStream {
         return count;
     }
 
+    /**
+     * Moves the current location, truncating the code or padding it with
+     * zeroes. The code of a committed child segment cannot be truncated.
+     */
     public void setLocation(int newValue) {
-        count = newValue;
+        while (count < newValue) {
+            write(0);
+        }
+        while (count > newValue) {
+            Chunk chunk = last;
+            if (chunk.start >= newValue) {
+                chunks.remove(chunks.size() - 1);
+                last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+                count = chunk.start;
+            } else if (chunk.data == null) {
+                throw new ClassFileException(
+                        "Cannot truncate a committed segment");
+            } else {
+                chunk.length = newValue - chunk.start;
+                count = newValue;
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public void write(int b) {
+        int pos = reserve(1);
+        last.data[pos] = (byte)b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        while (len > 0) {
+            Chunk chunk = last;
+            if (chunk == null || chunk.data == null
+                    || chunk.length == chunk.data.length) {
+                chunk = newChunk(len);
+            }
+            int n = Math.min(len, chunk.data.length - chunk.length);
+            System.arraycopy(b, off, chunk.data, chunk.length, n);
+            chunk.length += n;
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Returns a copy of the code, with the code of the child segments.
+     */
+    @Override
+    public byte[] toByteArray() {
+        byte[] result = new byte[count];
+        copyTo(result, 0);
+        return result;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        for (Chunk chunk: chunks) {
+            if (chunk.data != null) {
+                out.write(chunk.data, 0, chunk.length);
+            } else {
+                chunk.child.writeTo(out);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new String(toByteArray());
+    }
+
+    @Override
+    public String toString(String charsetName)
+            throws UnsupportedEncodingException {
+        return new String(toByteArray(), charsetName);
+    }
+
+    /**
+     * Overrides ByteArrayOutputStream.toString(Charset) on Java 10 and later.
+     */
+    public String toString(Charset charset) {
+        return new String(toByteArray(), charset);
+    }
+
+    @Override
+    @Deprecated
+    @SuppressWarnings("deprecation")
+    public String toString(int hibyte) {
+        return new String(toByteArray(), hibyte);
+    }
+
+    /**
+     * Writes the code, with the code of the child segments.
+     */
+    protected void writeCode(DataOutput output) throws IOException {
+        for (Chunk chunk: chunks) {
+            if (chunk.data != null) {
+                output.write(chunk.data, 0, chunk.length);
+            } else {
+                chunk.child.writeCode(output);
+            }
+        }
+    }
+
+    /**
+     * Replaces the code with length bytes read from an input.
+     */
+    protected void readCode(DataInput input, int length) throws IOException {
+        clearChunks();
+        Chunk chunk = newChunk(length);
+        input.readFully(chunk.data, 0, length);
+        chunk.length = length;
+        count = length;
+    }
+
+    /**
+     * Returns the position of this segment in one of its ancestors, in which
+     * it must have been committed, directly or through other segments.
+     */
+    int offsetIn(CodeSegment ancestor) {
+        int result = 0;
+        for (CodeSegment s = this; s != ancestor; s = s.parent) {
+            if (s.offset < 0) {
+                throw new ClassFileException("Label referenced from a"
+                        + " segment not committed into the segment of the"
+                        + " label");
+            }
+            result += s.offset;
+        }
+        return result;
     }
 
     private void append(CodeSegment other) {
-        try {
-            localMax = (short)Math.max(localMax, other.localMax);
-            stackMax = (short)Math.max(stackMax, stackTop + other.stackMax);
-            stackTop += other.stackTop;
-            write(other.toByteArray());
-            int offset = getLocation();
-            for (LabelRef ref: other.fixups) {
-                fixups.add(ref.copy(offset));
+        localMax = (short)Math.max(localMax, other.localMax);
+        stackMax = (short)Math.max(stackMax, stackTop + other.stackMax);
+        stackTop += other.stackTop;
+        other.offset = count;
+        last = new Chunk(count, null, other);
+        last.length = other.count;
+        chunks.add(last);
+        count += other.count;
+    }
+
+    private void clearChunks() {
+        for (Chunk chunk: chunks) {
+            if (chunk.data != null && (spare == null
+                    || chunk.data.length > spare.length)) {
+                spare = chunk.data;
+            }
+        }
+        chunks.clear();
+        last = null;
+        chunkSize = MIN_CHUNK_SIZE;
+        count = 0;
+    }
+
+    private Chunk newChunk(int min) {
+        int size = Math.max(min, chunkSize);
+        byte[] data;
+        if (spare != null && spare.length >= size) {
+            data = spare;
+            spare = null;
+        } else {
+            data = new byte[size];
+        }
+        chunkSize = Math.min(MAX_CHUNK_SIZE, 2*chunkSize);
+        last = new Chunk(count, data, null);
+        chunks.add(last);
+        return last;
+    }
+
+    private void copyTo(byte[] dest, int pos) {
+        for (Chunk chunk: chunks) {
+            if (chunk.data != null) {
+                System.arraycopy(chunk.data, 0, dest, pos + chunk.start,
+                        chunk.length);
+            } else {
+                chunk.child.copyTo(dest, pos + chunk.start);
             }
-        } catch (IOException ex) {
-            LOG.log(Level.SEVERE, null, ex);
-            throw new ClassFileException(ex.getMessage());
         }
     }
 
+    /**
+     * Returns the chunk containing a position.
+     */
+    private Chunk chunkAt(int pos) {
+        if (pos < 0 || pos >= count) {
+            throw new IndexOutOfBoundsException("Invalid position: " + pos);
+        }
+        if (pos >= last.start) {
+            return last;
+        }
+        int low = 0;
+        int high = chunks.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (chunks.get(mid).start <= pos) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return chunks.get(low);
+    }
+
     public int getByte(int pos) {
-        return buf[pos] & 0xff;
+        Chunk chunk = chunkAt(pos);
+        if (chunk.data == null) {
+            return chunk.child.getByte(pos - chunk.start);
+        }
+        return chunk.data[pos - chunk.start] & 0xff;
     }
 
     public short getShort(int pos) {
-        return (short) (((buf[pos] & 0xff) << 8) | ((buf[pos + 1] & 0xff)));
+        return (short) ((getByte(pos) << 8) | getByte(pos + 1));
     }
 
     public int getInt(int pos) {
-        return ((buf[pos] & 0xFF) << 24)
-                | ((buf[pos + 1] & 0xFF) << 16)
-                | ((buf[pos + 2] & 0xff) << 8)
-                | ((buf[pos + 3] & 0xff));
+        return (getByte(pos) << 24)
+                | (getByte(pos + 1) << 16)
+                | (getByte(pos + 2) << 8)
+                | getByte(pos + 3);
     }
 
     public void fixupByte(int pos, int value) {
-        buf[pos] = (byte) value;
+        Chunk chunk = chunkAt(pos);
+        if (chunk.data == null) {
+            chunk.child.fixupByte(pos - chunk.start, value);
+        } else {
+            chunk.data[pos - chunk.start] = (byte) value;
+        }
     }
 
     public void fixupShort(int pos, int value) {
-        buf[pos] = (byte) (0xff & (value >>> 8));
-        buf[pos + 1] = (byte) (0xff & value);
+        fixupByte(pos, value >>> 8);
+        fixupByte(pos + 1, value);
     }
 
     public void fixupInt(int pos, int value) {
-        buf[pos] = (byte) (0xff & (value >> 24));
-        buf[pos + 1] = (byte) (0xff & (value >> 16));
-        buf[pos + 2] = (byte) (0xff & (value >> 8));
-        buf[pos + 3] = (byte) (0xff & value);
+        fixupByte(pos, value >> 24);
+        fixupByte(pos + 1, value >> 16);
+        fixupByte(pos + 2, value >> 8);
+        fixupByte(pos + 3, value);
     }
 
     //------------------------------------------------------------------------------
@@ -156,12 +403,10 @@ public class CodeSegment extends ByteArrayOutputStream {
             }
         } else if (value >= -128 && value <= 127) {
             reserveStack(1);
-            write(ByteCode.BIPUSH);
-            write(value);
+            emit(ByteCode.BIPUSH, value);
         } else if (value >= -32768 && value <= 32767) {
             reserveStack(1);
-            write(ByteCode.SIPUSH);
-            writeShort(value);
+            emitShort(ByteCode.SIPUSH, value);
         } else {
             pushConst(cp.addInteger(value));
         }
@@ -218,6 +463,30 @@ public class CodeSegment extends ByteArrayOutputStream {
         pushConst(cp.addString(s));
     }
 
+    public void pushMethodType(String descr) {
+        pushConst(cp.addMethodType(descr));
+    }
+
+    public void pushMethodHandle(int kind, short refIndex) {
+        pushConst(cp.addMethodHandle(kind, refIndex));
+    }
+
+    /**
+     * Pushes a dynamically-computed constant.
+     * @param index index of the Dynamic entry in the constant pool
+     */
+    public void pushDynamic(short index) {
+        if (cp.getBootstrapValueSize(index) == 2) {
+            pushConst2(index);
+        } else {
+            pushConst(index);
+        }
+    }
+
+    public void pushDynamic(short bootstrapIndex, String name, String type) {
+        pushDynamic(cp.addDynamic(bootstrapIndex, name, type));
+    }
+
     //------------------------------------------------------------------------------
     //  local variables
     //------------------------------------------------------------------------------
@@ -423,14 +692,9 @@ public class CodeSegment extends ByteArrayOutputStream {
 
     public void incInt(int index, int increment) {
         if (index <= 255 && increment >= -128 && increment <= 127) {
-            write(ByteCode.IINC);
-            write(index);
-            write(increment);
+            emit(ByteCode.IINC, index, increment);
         } else {
-            write(ByteCode.WIDE);
-            write(ByteCode.IINC);
-            writeShort(index);
-            writeShort(increment);
+            emitWide(ByteCode.IINC, index, increment);
         }
     }
 
@@ -439,14 +703,8 @@ public class CodeSegment extends ByteArrayOutputStream {
     //------------------------------------------------------------------------------
     public void getField(short refIndex) {
         releaseStack(1);
-        String type = cp.getRefType(refIndex);
-        if (type.equals("J") || type.equals("D")) {
-            reserveStack(2);
-        } else {
-            reserveStack(1);
-        }
-        write(ByteCode.GETFIELD);
-        writeShort(refIndex);
+        reserveStack(cp.getRefValueSize(refIndex));
+        emitShort(ByteCode.GETFIELD, refIndex);
     }
 
     public void getField(short classIndex, short natIndex) {
@@ -467,14 +725,8 @@ public class CodeSegment extends ByteArrayOutputStream {
 
     public void putField(short refIndex) {
         releaseStack(1);
-        String type = cp.getRefType(refIndex);
-        if (type.equals("J") || type.equals("D")) {
-            releaseStack(2);
-        } else {
-            releaseStack(1);
-        }
-        write(ByteCode.PUTFIELD);
-        writeShort(refIndex);
+        releaseStack(cp.getRefValueSize(refIndex));
+        emitShort(ByteCode.PUTFIELD, refIndex);
     }
 
     public void putField(short classIndex, short natIndex) {
@@ -494,14 +746,8 @@ public class CodeSegment extends ByteArrayOutputStream {
     }
 
     public void getStatic(short refIndex) {
-        String type = cp.getRefType(refIndex);
-        if (type.equals("J") || type.equals("D")) {
-            reserveStack(2);
-        } else {
-            reserveStack(1);
-        }
-        write(ByteCode.GETSTATIC);
-        writeShort(refIndex);
+        reserveStack(cp.getRefValueSize(refIndex));
+        emitShort(ByteCode.GETSTATIC, refIndex);
     }
 
     public void getStatic(short classIndex, short natIndex) {
@@ -521,14 +767,8 @@ public class CodeSegment extends ByteArrayOutputStream {
     }
 
     public void putStatic(short refIndex) {
-        String type = cp.getRefType(refIndex);
-        if (type.equals("J") || type.equals("D")) {
-            releaseStack(2);
-        } else {
-            releaseStack(1);
-        }
-        write(ByteCode.PUTSTATIC);
-        writeShort(refIndex);
+        releaseStack(cp.getRefValueSize(refIndex));
+        emitShort(ByteCode.PUTSTATIC, refIndex);
     }
 
     public void putStatic(short classIndex, short natIndex) {
@@ -552,11 +792,9 @@ public class CodeSegment extends ByteArrayOutputStream {
     //------------------------------------------------------------------------------
     public void invokeInterface(short refIndex) {
         releaseStack(1); /* for the 'this' reference */
-        int asize = invokeStack(cp.getRefType(refIndex));
-        write(ByteCode.INVOKEINTERFACE);
-        writeShort(refIndex);
-        write(asize + 1);
-        write(0);
+        int asize = invokeStack(cp.getRefArgsSize(refIndex),
+                cp.getRefValueSize(refIndex));
+        emitShort(ByteCode.INVOKEINTERFACE, refIndex, asize + 1, 0);
     }
 
     public void invokeInterface(short classIndex, short natIndex) {
@@ -577,9 +815,8 @@ public class CodeSegment extends ByteArrayOutputStream {
 
     public void invokeSpecial(short refIndex) {
         releaseStack(1); /* for the 'this' reference */
-        invokeStack(cp.getRefType(refIndex));
-        write(ByteCode.INVOKESPECIAL);
-        writeShort(refIndex);
+        invokeStack(cp.getRefArgsSize(refIndex), cp.getRefValueSize(refIndex));
+        emitShort(ByteCode.INVOKESPECIAL, refIndex);
     }
 
     public void invokeSpecial(short classIndex, short natIndex) {
@@ -600,9 +837,8 @@ public class CodeSegment extends ByteArrayOutputStream {
 
     public void invokeVirtual(short refIndex) {
         releaseStack(1); /* for the 'this' reference */
-        invokeStack(cp.getRefType(refIndex));
-        write(ByteCode.INVOKEVIRTUAL);
-        writeShort(refIndex);
+        invokeStack(cp.getRefArgsSize(refIndex), cp.getRefValueSize(refIndex));
+        emitShort(ByteCode.INVOKEVIRTUAL, refIndex);
     }
 
     public void invokeVirtual(short classIndex, short natIndex) {
@@ -622,9 +858,8 @@ public class CodeSegment extends ByteArrayOutputStream {
     }
 
     public void invokeStatic(short refIndex) {
-        invokeStack(cp.getRefType(refIndex));
-        write(ByteCode.INVOKESTATIC);
-        writeShort(refIndex);
+        invokeStack(cp.getRefArgsSize(refIndex), cp.getRefValueSize(refIndex));
+        emitShort(ByteCode.INVOKESTATIC, refIndex);
     }
 
     public void invokeStatic(short classIndex, short natIndex) {
@@ -643,6 +878,16 @@ public class CodeSegment extends ByteArrayOutputStream {
         invokeStatic(cp.addMethodref(className, name, type));
     }
 
+    public void invokeDynamic(short index) {
+        invokeStack(cp.getBootstrapArgsSize(index),
+                cp.getBootstrapValueSize(index));
+        emitShort(ByteCode.INVOKEDYNAMIC, index, 0, 0);
+    }
+
+    public void invokeDynamic(short bootstrapIndex, String name, String type) {
+        invokeDynamic(cp.addInvokeDynamic(bootstrapIndex, name, type));
+    }
+
     public void returnVoid() {
         write(ByteCode.RETURN);
     }
@@ -676,8 +921,7 @@ public class CodeSegment extends ByteArrayOutputStream {
     //  array operations
     //------------------------------------------------------------------------------
     public void makeRefArray(short typeIndex) {
-        write(ByteCode.ANEWARRAY);
-        writeShort(typeIndex);
+        emitShort(ByteCode.ANEWARRAY, typeIndex);
     }
 
     public void makeRefArray(String type) {
@@ -858,8 +1102,7 @@ public class CodeSegment extends ByteArrayOutputStream {
     //  objects
     //------------------------------------------------------------------------------
     public void checkCast(int classIndex) {
-        write(ByteCode.CHECKCAST);
-        writeShort(classIndex);
+        emitShort(ByteCode.CHECKCAST, classIndex);
     }
 
     public void checkCast(String className) {
@@ -868,8 +1111,7 @@ public class CodeSegment extends ByteArrayOutputStream {
 
     public void newObject(int classIndex) {
         reserveStack(1);
-        write(ByteCode.NEW);
-        writeShort(classIndex);
+        emitShort(ByteCode.NEW, classIndex);
     }
 
     public void newObject(String className) {
@@ -1125,8 +1367,7 @@ public class CodeSegment extends ByteArrayOutputStream {
         }
         LabelRef ref = new JumpRef(getLocation());
         addRef(label, ref);
-        write(opcode);
-        writeShort(0);
+        emitShort(opcode, 0);
     }
 
     public void tableSwitch(int min, int max, Label def, Label[] table) {
@@ -1134,17 +1375,25 @@ public class CodeSegment extends ByteArrayOutputStream {
             throw new TableSwitchException();
         }
         int opLocation = getLocation();
-        write(ByteCode.TABLESWITCH);
-        while ((getLocation() % 4) != 0) {
-            write(0);
+        int padding = ByteCode.padding(opLocation);
+        int pos = reserve(1 + padding + 12 + 4*table.length);
+        byte[] data = last.data;
+        data[pos++] = (byte)ByteCode.TABLESWITCH;
+        for (int i = 0; i < padding; ++i) {
+            data[pos++] = 0;
         }
-        addRef(def, new TableSwitchRef(opLocation, getLocation()));
-        writeInt(0);
-        writeInt(min);
-        writeInt(max);
+        int location = opLocation + 1 + padding;
+        addRef(def, new TableSwitchRef(opLocation, location));
+        putInt(data, pos, 0);
+        putInt(data, pos + 4, min);
+        putInt(data, pos + 8, max);
+        pos += 12;
+        location += 12;
         for (int i = 0; i < table.length; ++i) {
-            addRef(table[i], new TableSwitchRef(opLocation, getLocation()));
-            writeInt(0);
+            addRef(table[i], new TableSwitchRef(opLocation, location));
+            putInt(data, pos, 0);
+            pos += 4;
+            location += 4;
         }
     }
 
@@ -1152,15 +1401,111 @@ public class CodeSegment extends ByteArrayOutputStream {
     //  private stuff
     //------------------------------------------------------------------------------
     void writeShort(int value) {
-        write((byte) (value >>> 8));
-        write((byte) value);
+        int pos = reserve(2);
+        putShort(last.data, pos, value);
     }
 
     void writeInt(int value) {
-        write((byte) (value >>> 24));
-        write((byte) (value >>> 16));
-        write((byte) (value >>> 8));
-        write((byte) value);
+        int pos = reserve(4);
+        putInt(last.data, pos, value);
+    }
+
+    /**
+     * Writes an instruction with a one-byte operand.
+     */
+    void emit(int opcode, int operand) {
+        int pos = reserve(2);
+        byte[] data = last.data;
+        data[pos] = (byte)opcode;
+        data[pos + 1] = (byte)operand;
+    }
+
+    /**
+     * Writes an instruction with two one-byte operands.
+     */
+    void emit(int opcode, int operand1, int operand2) {
+        int pos = reserve(3);
+        byte[] data = last.data;
+        data[pos] = (byte)opcode;
+        data[pos + 1] = (byte)operand1;
+        data[pos + 2] = (byte)operand2;
+    }
+
+    /**
+     * Writes an instruction with a two-byte operand.
+     */
+    void emitShort(int opcode, int operand) {
+        int pos = reserve(3);
+        byte[] data = last.data;
+        data[pos] = (byte)opcode;
+        putShort(data, pos + 1, operand);
+    }
+
+    /**
+     * Writes an instruction with a two-byte operand followed by two one-byte
+     * operands, like invokeinterface and invokedynamic.
+     */
+    void emitShort(int opcode, int operand, int operand1, int operand2) {
+        int pos = reserve(5);
+        byte[] data = last.data;
+        data[pos] = (byte)opcode;
+        putShort(data, pos + 1, operand);
+        data[pos + 3] = (byte)operand1;
+        data[pos + 4] = (byte)operand2;
+    }
+
+    /**
+     * Writes a wide instruction with a two-byte local variable index.
+     */
+    void emitWide(int opcode, int index) {
+        int pos = reserve(4);
+        byte[] data = last.data;
+        data[pos] = (byte)ByteCode.WIDE;
+        data[pos + 1] = (byte)opcode;
+        putShort(data, pos + 2, index);
+    }
+
+    /**
+     * Writes a wide instruction with a two-byte local variable index and a
+     * two-byte operand, like wide iinc.
+     */
+    void emitWide(int opcode, int index, int operand) {
+        int pos = reserve(6);
+        byte[] data = last.data;
+        data[pos] = (byte)ByteCode.WIDE;
+        data[pos + 1] = (byte)opcode;
+        putShort(data, pos + 2, index);
+        putShort(data, pos + 4, operand);
+    }
+
+    /**
+     * Reserves room for size bytes in the last chunk of bytes, allocating a
+     * new chunk if needed, so that an instruction is never split across
+     * chunks.
+     * @return the position of the bytes in the array of the last chunk
+     */
+    private int reserve(int size) {
+        Chunk chunk = last;
+        if (chunk == null || chunk.data == null
+                || chunk.data.length - chunk.length < size) {
+            chunk = newChunk(size);
+        }
+        int pos = chunk.length;
+        chunk.length = pos + size;
+        count += size;
+        return pos;
+    }
+
+    private static void putShort(byte[] data, int pos, int value) {
+        data[pos] = (byte)(value >>> 8);
+        data[pos + 1] = (byte)value;
+    }
+
+    private static void putInt(byte[] data, int pos, int value) {
+        data[pos] = (byte)(value >>> 24);
+        data[pos + 1] = (byte)(value >>> 16);
+        data[pos + 2] = (byte)(value >>> 8);
+        data[pos + 3] = (byte)value;
     }
 
     void reserveStack(int count) {
@@ -1177,28 +1522,22 @@ public class CodeSegment extends ByteArrayOutputStream {
     protected void pushConst(int index) {
         reserveStack(1);
         if (index <= 255) {
-            write(ByteCode.LDC);
-            write(index);
+            emit(ByteCode.LDC, index);
         } else {
-            write(ByteCode.LDC_W);
-            writeShort(index);
+            emitShort(ByteCode.LDC_W, index);
         }
     }
 
     protected void pushConst2(int index) {
         reserveStack(2);
-        write(ByteCode.LDC2_W);
-        writeShort(index);
+        emitShort(ByteCode.LDC2_W, index);
     }
 
     protected void localOp(int opcode, int index) {
         if (index <= 255) {
-            write(opcode);
-            write((byte) index);
+            emit(opcode, index);
         } else {
-            write(ByteCode.WIDE);
-            write(opcode);
-            writeShort(index);
+            emitWide(opcode, index);
         }
     }
 
@@ -1208,67 +1547,42 @@ public class CodeSegment extends ByteArrayOutputStream {
      * @return number of slots required by the arguments
      */
     protected int invokeStack(String type) {
-        try {
-            Reader reader = new StringReader(type);
-            int argsSize = 0;
-            int c = reader.read();
-            if (c != '(') {
-                throw new RuntimeException("Invalid method descriptor: " + type);
-            }
-            c = reader.read();
-            while (c >= 0 && c != ')') {
-                switch (c) {
-                    case 'D':
-                    case 'J':
-                        argsSize += 2;
-                        break;
-                    default:
-                        ++argsSize;
-                }
-                while (c == '[') {
-                    c = reader.read();
-                }
-                if (c == 'L') {
-                    do {
-                        c = reader.read();
-                    } while (c >= 0 && c != ';');
-                }
-                if (c < 0) {
-                    break;
-                }
-                c = reader.read();
-            }
-            if (c != ')') {
-                throw new RuntimeException("Invalid method descriptor: " + type);
-            }
-            releaseStack(argsSize);
-            c = reader.read();
-            if (c < 0) {
-                throw new RuntimeException("Invalid method descriptor: " + type);
-            }
-            switch (c) {
-                case 'V':
-                    break;
-                case 'D':
-                case 'J':
-                    reserveStack(2);
-                    break;
-                default:
-                    reserveStack(1);
-            }
-            return argsSize;
-        } catch (IOException e) {
-            /* should never happend */
-            throw new Error(e.toString());
-        }
+        return invokeStack(Descriptor.argsSize(type),
+                Descriptor.returnSize(type));
+    }
+
+    /**
+     * updates the stack pointer for a method invocation
+     * @param argsSize number of slots taken by the arguments
+     * @param returnSize number of slots taken by the return value
+     * @return argsSize
+     */
+    private int invokeStack(int argsSize, int returnSize) {
+        releaseStack(argsSize);
+        reserveStack(returnSize);
+        return argsSize;
     }
 
     void addRef(Label label, LabelRef ref) {
-        fixups.add(ref);
-        label.addRef(ref);
+        label.addRef(this, ref);
     }
 
-    void removeRef(LabelRef ref) {
-        fixups.remove(ref);
+    /**
+     * A part of the code of a segment: bytes written in the segment, or a
+     * child segment committed into it.
+     */
+    private static final class Chunk {
+        /** the position of the chunk in the segment */
+        private final int start;
+        /** the bytes, or null for a child segment */
+        private final byte[] data;
+        private final CodeSegment child;
+        private int length;
+
+        private Chunk(int start, byte[] data, CodeSegment child) {
+            this.start = start;
+            this.data = data;
+            this.child = child;
+        }
     }
 }
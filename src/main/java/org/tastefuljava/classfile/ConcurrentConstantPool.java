@@ -0,0 +1,229 @@
+package org.tastefuljava.classfile;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A constant pool that can be shared by several threads, for instance by
+ * CodeBuilders generating the methods of a class in parallel.
+ * <p>Concurrent calls to the add* methods return stable, deduplicated indices
+ * without any global lock: the entries are deduplicated with concurrent hash
+ * maps, and their slots are reserved with an atomic counter. Reading an entry
+ * whose index has been returned by an add* method is wait-free.</p>
+ * <p>Storing, printing or compacting the pool must not overlap with calls to
+ * the add* methods. Loading is done on the calling thread, and must not
+ * overlap with the other methods either.</p>
+ */
+public class ConcurrentConstantPool extends ConstantPool {
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    /** the largest count that can be written as a u2 */
+    private static final int MAX_COUNT = 0xFFFF;
+
+    /** the entries, in chunks allocated on demand */
+    private final AtomicReferenceArray<AtomicReferenceArray<Entry>> chunks
+            = new AtomicReferenceArray<>((MAX_COUNT >>> CHUNK_BITS) + 1);
+    /** index of the next free slot */
+    private final AtomicInteger next = new AtomicInteger(1);
+    /** maps the entries, but the Utf8 entries, to their index */
+    private final ConcurrentHashMap<Entry,Integer> index
+            = new ConcurrentHashMap<>();
+    /** maps the values of the Utf8 entries to their index */
+    private final ConcurrentHashMap<String,Integer> utf8Index
+            = new ConcurrentHashMap<>();
+
+    public ConcurrentConstantPool() {
+        set(0, NullEntry.INSTANCE);
+    }
+
+    @Override
+    public int getCount() {
+        return next.get();
+    }
+
+    @Override
+    public short addUtf8(String value) {
+        Integer existing = utf8Index.get(value);
+        if (existing != null) {
+            return (short)existing.intValue();
+        }
+        checkNotFrozen();
+        return (short)utf8Index.computeIfAbsent(value, (s) -> {
+            byte[] data = new byte[Utf8.maxLength(s)];
+            int length = Utf8.encode(s, data, 0);
+            Utf8Entry entry = new Utf8Entry(data, 0, length,
+                    Utf8.hash(data, 0, length));
+            entry.value = s;
+            return allocate(entry);
+        }).intValue();
+    }
+
+    @Override
+    short addUtf8(Utf8Entry other) {
+        return addUtf8(other.getValue());
+    }
+
+    @Override
+    short addEntry(Entry entry) {
+        Integer existing = index.get(entry);
+        if (existing != null) {
+            return (short)existing.intValue();
+        }
+        checkNotFrozen();
+        return (short)index.computeIfAbsent(entry, this::allocate).intValue();
+    }
+
+    @Override
+    short addNumber(int tag, long bits) {
+        return addEntry(newNumber(tag, bits));
+    }
+
+    @Override
+    Entry getEntry(int i) {
+        AtomicReferenceArray<Entry> chunk = chunks.get(i >>> CHUNK_BITS);
+        Entry entry = chunk == null ? null : chunk.get(i & (CHUNK_SIZE - 1));
+        if (entry == null) {
+            throw new ClassFileException("Invalid constant pool index: " + i);
+        }
+        return entry;
+    }
+
+    @Override
+    int findEntry(Entry entry) {
+        Integer i = index.get(entry);
+        return i == null ? 0 : i;
+    }
+
+    @Override
+    public short findUtf8(String value) {
+        Integer i = utf8Index.get(value);
+        return i == null ? 0 : (short)i.intValue();
+    }
+
+    @Override
+    int findUtf8(byte[] data, int offset, int length, int hash) {
+        Integer i = utf8Index.get(Utf8.decode(data, offset, length));
+        return i == null ? 0 : i;
+    }
+
+    /**
+     * Loads the pool on the calling thread. The entries are read by a
+     * sequential pool, and then added to this one with the same indices.
+     * Must not overlap with calls to the other methods.
+     */
+    @Override
+    public void load(DataInput input) throws IOException {
+        ConstantPool cp = new ConstantPool();
+        cp.load(input);
+        copy(cp);
+    }
+
+    /**
+     * Loads the pool on the calling thread; the Utf8 entries may refer to
+     * the bytes of the buffer. Must not overlap with calls to the other
+     * methods.
+     */
+    @Override
+    public void load(ByteBuffer buffer) throws IOException {
+        ConstantPool cp = new ConstantPool();
+        cp.load(buffer);
+        copy(cp);
+    }
+
+    /**
+     * Removes all the entries of this pool, keeping its chunks and indexes.
+     * Must not overlap with calls to the other methods.
+     */
+    @Override
+    public void reset() {
+        checkNotFrozen();
+        int count = getCount();
+        for (int c = 0; c <= (count - 1) >>> CHUNK_BITS; ++c) {
+            AtomicReferenceArray<Entry> chunk = chunks.get(c);
+            int n = Math.min(CHUNK_SIZE, count - (c << CHUNK_BITS));
+            for (int i = 0; chunk != null && i < n; ++i) {
+                chunk.set(i, null);
+            }
+        }
+        index.clear();
+        utf8Index.clear();
+        next.set(1);
+        set(0, NullEntry.INSTANCE);
+    }
+
+    @Override
+    void rebuild(int[] order, int[] map) {
+        checkNotFrozen();
+        List<Entry> list = new ArrayList<>(order.length);
+        for (int i: order) {
+            list.add(getEntry(i).remap(map));
+        }
+        reset();
+        for (Entry entry: list) {
+            register(entry);
+        }
+    }
+
+    private void copy(ConstantPool cp) {
+        reset();
+        for (int i = 1; i < cp.getCount(); ++i) {
+            Entry entry = cp.getEntry(i);
+            if (!(entry instanceof NullEntry)) {
+                /* not the second slot of a long or a double */
+                register(entry);
+            }
+        }
+    }
+
+    /**
+     * Allocates an entry and indexes it, unless an equal entry is already
+     * indexed. Must not overlap with calls to the other methods.
+     */
+    private void register(Entry entry) {
+        int i = allocate(entry);
+        if (entry instanceof Utf8Entry) {
+            utf8Index.putIfAbsent(((Utf8Entry)entry).getValue(), i);
+        } else {
+            index.putIfAbsent(entry, i);
+        }
+    }
+
+    /**
+     * Reserves the slots of an entry, and stores the entry. Called at most
+     * once per entry, from the mapping function of the index.
+     */
+    private int allocate(Entry entry) {
+        boolean wide = isWide(entry);
+        int size = wide ? 2 : 1;
+        int i;
+        do {
+            i = next.get();
+            if (i + size > MAX_COUNT) {
+                throw new ClassFileException("Too many constants: "
+                        + (i + size));
+            }
+        } while (!next.compareAndSet(i, i + size));
+        if (wide) {
+            set(i + 1, NullEntry.INSTANCE);
+        }
+        set(i, entry);
+        return i;
+    }
+
+    private void set(int i, Entry entry) {
+        int c = i >>> CHUNK_BITS;
+        AtomicReferenceArray<Entry> chunk = chunks.get(c);
+        if (chunk == null) {
+            chunks.compareAndSet(c, null,
+                    new AtomicReferenceArray<>(CHUNK_SIZE));
+            chunk = chunks.get(c);
+        }
+        chunk.set(i & (CHUNK_SIZE - 1), entry);
+    }
+}
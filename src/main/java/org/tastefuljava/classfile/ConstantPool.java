@@ -1,49 +1,207 @@
 package org.tastefuljava.classfile;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 public class ConstantPool {
     /** constant tag */
-    private static final int CP_CLASS = 7;
+    public static final int CP_CLASS = 7;
     /** constant tag */
-    private static final int CP_FIELDREF = 9;
+    public static final int CP_FIELDREF = 9;
     /** constant tag */
-    private static final int CP_METHODREF = 10;
+    public static final int CP_METHODREF = 10;
     /** constant tag */
-    private static final int CP_INTERFACEMETHODREF = 11;
+    public static final int CP_INTERFACEMETHODREF = 11;
     /** constant tag */
-    private static final int CP_STRING = 8;
+    public static final int CP_STRING = 8;
     /** constant tag */
-    private static final int CP_INTEGER = 3;
+    public static final int CP_INTEGER = 3;
     /** constant tag */
-    private static final int CP_FLOAT = 4;
+    public static final int CP_FLOAT = 4;
     /** constant tag */
-    private static final int CP_LONG = 5;
+    public static final int CP_LONG = 5;
     /** constant tag */
-    private static final int CP_DOUBLE = 6;
+    public static final int CP_DOUBLE = 6;
     /** constant tag */
-    private static final int CP_NAMEANDTYPE = 12;
+    public static final int CP_NAMEANDTYPE = 12;
     /** constant tag */
-    private static final int CP_UTF8 = 1;
+    public static final int CP_UTF8 = 1;
+    /** constant tag */
+    public static final int CP_METHODHANDLE = 15;
+    /** constant tag */
+    public static final int CP_METHODTYPE = 16;
+    /** constant tag */
+    public static final int CP_DYNAMIC = 17;
+    /** constant tag */
+    public static final int CP_INVOKEDYNAMIC = 18;
+    /** constant tag */
+    public static final int CP_MODULE = 19;
+    /** constant tag */
+    public static final int CP_PACKAGE = 20;
+    /** size of the chunks of the Utf8 arena */
+    private static final int ARENA_CHUNK = 8192;
+
+    /** method handle kind */
+    public static final int REF_GETFIELD = 1;
+    /** method handle kind */
+    public static final int REF_GETSTATIC = 2;
+    /** method handle kind */
+    public static final int REF_PUTFIELD = 3;
+    /** method handle kind */
+    public static final int REF_PUTSTATIC = 4;
+    /** method handle kind */
+    public static final int REF_INVOKEVIRTUAL = 5;
+    /** method handle kind */
+    public static final int REF_INVOKESTATIC = 6;
+    /** method handle kind */
+    public static final int REF_INVOKESPECIAL = 7;
+    /** method handle kind */
+    public static final int REF_NEWINVOKESPECIAL = 8;
+    /** method handle kind */
+    public static final int REF_INVOKEINTERFACE = 9;
 
     /** list of the constant pool entries */
     private List<Entry> entries = new ArrayList<>();
+    /** maps each entry but Utf8 entries to its index in the constant pool */
+    private final Map<Entry,Integer> index = new HashMap<>();
+    /** indices of the Integer, Float, Long and Double entries, by tag */
+    private final NumberIndex[] numbers = {
+        new NumberIndex(), new NumberIndex(), new NumberIndex(),
+        new NumberIndex()
+    };
+    /** open-addressing hash table of the indices of the Utf8 entries */
+    private int[] utf8Table = new int[64];
+    /** number of entries in utf8Table */
+    private int utf8Count;
+    /** current chunk of the arena where Utf8 values are stored */
+    private byte[] arena = new byte[0];
+    /** first free byte of the current chunk */
+    private int arenaTop;
+    /** buffer where addUtf8 encodes a value before looking it up */
+    private byte[] scratch = new byte[256];
+    /** false until all the entries of a lazily loaded pool are indexed */
+    private boolean indexed = true;
+    /** raw bytes of a lazily loaded pool */
+    private ByteBuffer raw;
+    /** position of each entry in the raw bytes */
+    private int[] offsets;
+    /** reader used to decode entries from the raw bytes */
+    private BufferInput rawInput;
+    /** frozen pool whose entries are shared by this pool, or null */
+    private ConstantPool template;
+    /** number of entries inherited from the template */
+    private int base;
+    /** true when no more entries can be added */
+    private boolean frozen;
 
     public ConstantPool() {
         entries.add(NullEntry.INSTANCE);
     }
 
+    private ConstantPool(ConstantPool template) {
+        this.template = template;
+        this.base = template.getCount();
+    }
+
     public int getCount() {
-        return entries.size();
+        return base + entries.size();
+    }
+
+    /**
+     * Makes this constant pool immutable, so that it can be used as a
+     * template for other pools. Once frozen, a pool can be safely read and
+     * forked from several threads.
+     */
+    public void freeze() {
+        ensureIndexed();
+        frozen = true;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * Creates a new constant pool that initially contains the same entries as
+     * this one, freezing this pool if needed. The entries and indices of this
+     * pool are shared, not copied: the entries added to the fork are kept in
+     * a separate list and index.
+     * @return the new constant pool
+     */
+    public ConstantPool fork() {
+        freeze();
+        return new ConstantPool(this);
+    }
+
+    /**
+     * Removes all the entries of this pool, keeping its tables, so that it
+     * can be reused without allocating them again. A fork gets back to the
+     * entries of its template.
+     */
+    public void reset() {
+        checkNotFrozen();
+        ConstantPool t = template;
+        int b = base;
+        clear();
+        template = t;
+        base = b;
+        arenaTop = 0;
+        if (t == null) {
+            entries.add(NullEntry.INSTANCE);
+        }
     }
 
     public String toString(short index) {
-        Entry entry = (Entry)entries.get(index);
+        Entry entry = getEntry(index);
         return entry.toString(this);
     }
 
     public short addUtf8(String value) {
-        return addEntry(new Utf8Entry(value));
+        ensureWritable();
+        int max = Utf8.maxLength(value);
+        if (scratch.length < max) {
+            scratch = new byte[Math.max(2*scratch.length, max)];
+        }
+        int length = Utf8.encode(value, scratch, 0);
+        int hash = Utf8.hash(scratch, 0, length);
+        int existing = findUtf8(scratch, 0, length, hash);
+        if (existing != 0) {
+            return (short)existing;
+        }
+        return storeUtf8(scratch, 0, length, hash, value);
+    }
+
+    /**
+     * Adds a Utf8 entry of another pool, copying its bytes if needed.
+     */
+    short addUtf8(Utf8Entry other) {
+        ensureWritable();
+        int existing = findUtf8(other.data, other.offset, other.length,
+                other.hash);
+        if (existing != 0) {
+            return (short)existing;
+        }
+        return storeUtf8(other.data, other.offset, other.length, other.hash,
+                other.value);
+    }
+
+    /**
+     * Copies the bytes of a new Utf8 entry into the arena, and adds it.
+     */
+    private short storeUtf8(byte[] data, int offset, int length, int hash,
+            String value) {
+        if (arena.length - arenaTop < length) {
+            arena = new byte[Math.max(ARENA_CHUNK, length)];
+            arenaTop = 0;
+        }
+        System.arraycopy(data, offset, arena, arenaTop, length);
+        Utf8Entry entry = new Utf8Entry(arena, arenaTop, length, hash);
+        entry.value = value;
+        arenaTop += length;
+        int count = getCount();
+        entries.add(entry);
+        indexUtf8(count, hash);
+        return (short)count;
     }
 
     public short addClass(String className) {
@@ -113,47 +271,183 @@ public class ConstantPool {
     }
 
     public short addInteger(int value) {
-        return addEntry(new IntegerEntry(value));
+        return addNumber(CP_INTEGER, value);
     }
 
     public short addFloat(float value) {
-        return addEntry(new FloatEntry(value));
+        return addNumber(CP_FLOAT, Float.floatToRawIntBits(value));
     }
 
     public short addLong(long value) {
-        return addEntry(new LongEntry(value));
+        return addNumber(CP_LONG, value);
     }
 
     public short addDouble(double value) {
-        return addEntry(new DoubleEntry(value));
+        return addNumber(CP_DOUBLE, Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * Adds a numeric entry given the raw bits of its value. The index of the
+     * pool is probed once, whether the entry is found or added.
+     */
+    short addNumber(int tag, long bits) {
+        ensureWritable();
+        if (template != null) {
+            int i = template.findNumber(tag, bits);
+            if (i != 0) {
+                return (short)i;
+            }
+        }
+        int count = getCount();
+        int existing = numbers[tag - CP_INTEGER].putIfAbsent(bits, count);
+        if (existing != 0) {
+            return (short)existing;
+        }
+        Entry entry = newNumber(tag, bits);
+        entries.add(entry);
+        if (isWide(entry)) {
+            entries.add(NullEntry.INSTANCE);
+        }
+        return (short)count;
+    }
+
+    static Entry newNumber(int tag, long bits) {
+        switch (tag) {
+        case CP_INTEGER:
+            return new IntegerEntry((int)bits);
+        case CP_FLOAT:
+            return new FloatEntry(Float.intBitsToFloat((int)bits));
+        case CP_LONG:
+            return new LongEntry(bits);
+        case CP_DOUBLE:
+            return new DoubleEntry(Double.longBitsToDouble(bits));
+        default:
+            throw new ClassFileException("Not a numeric tag: " + tag);
+        }
     }
 
     public short addString(String value) {
         return addEntry(new StringEntry(addUtf8(value)));
     }
 
+    public short addMethodHandle(int kind, short refIndex) {
+        return addEntry(new MethodHandleEntry(kind, refIndex));
+    }
+
+    public short addMethodType(short descrIndex) {
+        return addEntry(new MethodTypeEntry(descrIndex));
+    }
+
+    public short addMethodType(String descr) {
+        return addMethodType(addUtf8(descr));
+    }
+
+    public short addDynamic(short bootstrapIndex, short natIndex) {
+        return addEntry(new DynamicEntry(bootstrapIndex, natIndex));
+    }
+
+    public short addDynamic(short bootstrapIndex, String name, String type) {
+        return addDynamic(bootstrapIndex, addNameAndType(name, type));
+    }
+
+    public short addInvokeDynamic(short bootstrapIndex, short natIndex) {
+        return addEntry(new InvokeDynamicEntry(bootstrapIndex, natIndex));
+    }
+
+    public short addInvokeDynamic(short bootstrapIndex, String name,
+            String type) {
+        return addInvokeDynamic(bootstrapIndex, addNameAndType(name, type));
+    }
+
+    public short addModule(String name) {
+        return addEntry(new ModuleEntry(addUtf8(name)));
+    }
+
+    public short addPackage(String name) {
+        return addEntry(new PackageEntry(addUtf8(name)));
+    }
+
+    /**
+     * Looks up a Utf8 entry without adding it.
+     * @return the index of the entry, or zero if there is none
+     */
+    public short findUtf8(String value) {
+        ensureIndexed();
+        byte[] buf = new byte[Utf8.maxLength(value)];
+        int length = Utf8.encode(value, buf, 0);
+        return (short)findUtf8(buf, 0, length, Utf8.hash(buf, 0, length));
+    }
+
+    /**
+     * Looks up a Class entry without adding it.
+     * @return the index of the entry, or zero if there is none
+     */
+    public short findClass(String className) {
+        short nameIndex = findUtf8(className);
+        return nameIndex == 0
+                ? 0 : (short)findEntry(new ClassEntry(nameIndex));
+    }
+
+    /**
+     * Returns the tag of an entry, without decoding it if the pool has been
+     * loaded lazily. The second slot of a Long or Double entry has tag 0.
+     */
+    public int getTag(short index) {
+        int i = index & 0xFFFF;
+        if (raw != null && i >= base && entries.get(i - base) == null) {
+            return raw.get(offsets[i]) & 0xFF;
+        }
+        return getEntry(i).getTag();
+    }
+
     public String getUtf8(short index) {
-        Utf8Entry entry = (Utf8Entry)entries.get(index);
-        return entry.value;
+        Utf8Entry entry = (Utf8Entry)getEntry(index);
+        return entry.getValue();
+    }
+
+    public short getStringIndex(short index) {
+        StringEntry entry = (StringEntry)getEntry(index);
+        return entry.stringIndex;
     }
 
     public String getString(short index) {
-        StringEntry entry = (StringEntry)entries.get(index);
+        StringEntry entry = (StringEntry)getEntry(index);
         return getUtf8(entry.stringIndex);
     }
 
+    public short getClassNameIndex(short index) {
+        ClassEntry entry = (ClassEntry)getEntry(index);
+        return entry.nameIndex;
+    }
+
     public String getClassName(short index) {
-        ClassEntry entry = (ClassEntry)entries.get(index);
+        ClassEntry entry = (ClassEntry)getEntry(index);
         return getUtf8(entry.nameIndex);
     }
 
+    /**
+     * Returns the value of an Integer, Float, Long or Double entry.
+     */
+    public Number getNumber(short index) {
+        Entry entry = getEntry(index);
+        if (entry instanceof IntegerEntry) {
+            return ((IntegerEntry)entry).value;
+        } else if (entry instanceof FloatEntry) {
+            return ((FloatEntry)entry).value;
+        } else if (entry instanceof LongEntry) {
+            return ((LongEntry)entry).value;
+        } else {
+            return ((DoubleEntry)entry).value;
+        }
+    }
+
     public short getNameIndex(short index) {
-        NameAndTypeEntry entry = (NameAndTypeEntry)entries.get(index);
+        NameAndTypeEntry entry = (NameAndTypeEntry)getEntry(index);
         return entry.nameIndex;
     }
 
     public short getTypeIndex(short index) {
-        NameAndTypeEntry entry = (NameAndTypeEntry)entries.get(index);
+        NameAndTypeEntry entry = (NameAndTypeEntry)getEntry(index);
         return entry.descrIndex;
     }
 
@@ -166,94 +460,155 @@ public class ConstantPool {
     }
 
     public short getRefClassIndex(short index) {
-        RefEntry entry = (RefEntry)entries.get(index);
+        RefEntry entry = (RefEntry)getEntry(index);
         return entry.classIndex;
     }
 
     public String getRefClassName(short index) {
-        RefEntry entry = (RefEntry)entries.get(index);
-        return getClassName(entry.classIndex);
+        return getMember((RefEntry)getEntry(index)).className;
+    }
+
+    public short getRefNameAndTypeIndex(short index) {
+        RefEntry entry = (RefEntry)getEntry(index);
+        return entry.nameAndTypeIndex;
     }
 
     public short getRefNameIndex(short index) {
-        RefEntry entry = (RefEntry)entries.get(index);
+        RefEntry entry = (RefEntry)getEntry(index);
         return getNameIndex(entry.nameAndTypeIndex);
     }
 
     public String getRefName(short index) {
-        RefEntry entry = (RefEntry)entries.get(index);
-        return getName(entry.nameAndTypeIndex);
+        return getMember((RefEntry)getEntry(index)).name;
     }
 
     public short getRefTypeIndex(short index) {
-        RefEntry entry = (RefEntry)entries.get(index);
+        RefEntry entry = (RefEntry)getEntry(index);
         return getTypeIndex(entry.nameAndTypeIndex);
     }
 
     public String getRefType(short index) {
-        RefEntry entry = (RefEntry)entries.get(index);
-        return getType(entry.nameAndTypeIndex);
+        return getMember((RefEntry)getEntry(index)).type;
     }
 
-    public void load(DataInput input) throws IOException {
-        short count = input.readShort();
-        entries.clear();
-        entries.add(NullEntry.INSTANCE);
-        for (int i = 1; i < count; ++i) {
-            int tag = input.readByte();
-            Entry entry;
-            switch (tag) {
-            case CP_CLASS:
-                entry = new ClassEntry();
-                break;
+    /**
+     * Returns the number of stack slots taken by the arguments of the method
+     * referenced by a Methodref or InterfaceMethodref entry.
+     */
+    public int getRefArgsSize(short index) {
+        return getMember((RefEntry)getEntry(index)).getArgsSize();
+    }
+
+    /**
+     * Returns the number of stack slots taken by the value of the field
+     * referenced by a Fieldref entry, or by the return value of the method
+     * referenced by a Methodref or InterfaceMethodref entry.
+     */
+    public int getRefValueSize(short index) {
+        return getMember((RefEntry)getEntry(index)).valueSize;
+    }
+
+    public int getMethodHandleKind(short index) {
+        MethodHandleEntry entry = (MethodHandleEntry)getEntry(index);
+        return entry.kind;
+    }
 
-            case CP_FIELDREF:
-                entry = new FieldrefEntry();
-                break;
+    public short getMethodHandleRefIndex(short index) {
+        MethodHandleEntry entry = (MethodHandleEntry)getEntry(index);
+        return entry.refIndex;
+    }
 
-            case CP_METHODREF:
-                entry = new MethodrefEntry();
-                break;
+    public String getMethodType(short index) {
+        MethodTypeEntry entry = (MethodTypeEntry)getEntry(index);
+        return getUtf8(entry.descrIndex);
+    }
 
-            case CP_INTERFACEMETHODREF:
-                entry = new InterfaceMethodrefEntry();
-                break;
+    /**
+     * Returns the index in the BootstrapMethods attribute of a Dynamic or
+     * InvokeDynamic entry.
+     */
+    public short getBootstrapIndex(short index) {
+        BootstrapEntry entry = (BootstrapEntry)getEntry(index);
+        return entry.bootstrapIndex;
+    }
 
-            case CP_STRING:
-                entry = new StringEntry();
-                break;
+    public short getBootstrapNameAndTypeIndex(short index) {
+        BootstrapEntry entry = (BootstrapEntry)getEntry(index);
+        return entry.nameAndTypeIndex;
+    }
 
-            case CP_INTEGER:
-                entry = new IntegerEntry();
-                break;
+    public String getBootstrapName(short index) {
+        return getMember((BootstrapEntry)getEntry(index)).name;
+    }
 
-            case CP_FLOAT:
-                entry = new FloatEntry();
-                break;
+    public String getBootstrapType(short index) {
+        return getMember((BootstrapEntry)getEntry(index)).type;
+    }
 
-            case CP_LONG:
-                entry = new LongEntry();
-                break;
+    /**
+     * Returns the number of stack slots taken by the arguments of the call
+     * site of an InvokeDynamic entry.
+     */
+    public int getBootstrapArgsSize(short index) {
+        return getMember((BootstrapEntry)getEntry(index)).getArgsSize();
+    }
 
-            case CP_DOUBLE:
-                entry = new DoubleEntry();
-                break;
+    /**
+     * Returns the number of stack slots taken by the value of a Dynamic
+     * entry, or by the return value of the call site of an InvokeDynamic
+     * entry.
+     */
+    public int getBootstrapValueSize(short index) {
+        return getMember((BootstrapEntry)getEntry(index)).valueSize;
+    }
 
-            case CP_NAMEANDTYPE:
-                entry = new NameAndTypeEntry();
-                break;
+    private Member getMember(RefEntry entry) {
+        Member member = entry.member;
+        if (member == null) {
+            member = new Member(getClassName(entry.classIndex),
+                    getName(entry.nameAndTypeIndex),
+                    getType(entry.nameAndTypeIndex));
+            entry.member = member;
+        }
+        return member;
+    }
 
-            case CP_UTF8:
-                entry = new Utf8Entry();
-                break;
+    private Member getMember(BootstrapEntry entry) {
+        Member member = entry.member;
+        if (member == null) {
+            member = new Member(null, getName(entry.nameAndTypeIndex),
+                    getType(entry.nameAndTypeIndex));
+            entry.member = member;
+        }
+        return member;
+    }
 
-            default:
-                throw new StreamCorruptedException(
-                        "invalid constant pool tag: " + tag);
-            }
+    public String getModuleName(short index) {
+        ModuleEntry entry = (ModuleEntry)getEntry(index);
+        return getUtf8(entry.nameIndex);
+    }
+
+    public String getPackageName(short index) {
+        PackageEntry entry = (PackageEntry)getEntry(index);
+        return getUtf8(entry.nameIndex);
+    }
 
+    public void load(DataInput input) throws IOException {
+        int count = input.readShort() & 0xFFFF;
+        checkNotFrozen();
+        clear();
+        entries.add(NullEntry.INSTANCE);
+        for (int i = 1; i < count; ++i) {
+            int tag = input.readByte();
+            if (tag == CP_UTF8) {
+                entries.add(readUtf8(input));
+                addToIndex(i);
+                continue;
+            }
+            LoadableEntry entry = newEntry(tag);
             entry.load(input);
             entries.add(entry);
+            addToIndex(i);
             if (tag == CP_LONG || tag == CP_DOUBLE) {
                 entries.add(NullEntry.INSTANCE);
                 ++i;
@@ -261,40 +616,532 @@ public class ConstantPool {
         }
     }
 
+    /**
+     * Loads the constant pool lazily from the buffer, starting at its current
+     * position. Only the position of each entry is recorded; the entries are
+     * decoded the first time they are accessed. The position of the buffer is
+     * advanced past the end of the constant pool.
+     * @param buffer the bytes of the class file
+     * @throws IOException if the constant pool is invalid
+     */
+    public void load(ByteBuffer buffer) throws IOException {
+        BufferInput input = new BufferInput(buffer);
+        int count = input.readUnsignedShort();
+        checkNotFrozen();
+        clear();
+        offsets = new int[count + 1];
+        entries.add(NullEntry.INSTANCE);
+        for (int i = 1; i < count; ++i) {
+            offsets[i] = input.getPosition();
+            entries.add(null);
+            if (skipEntry(input)) {
+                entries.add(NullEntry.INSTANCE);
+                offsets[++i] = input.getPosition();
+            }
+        }
+        offsets[count] = input.getPosition();
+        raw = buffer.duplicate();
+        rawInput = input;
+        indexed = false;
+        BufferInput.setPosition(buffer, input.getPosition());
+    }
+
+    /**
+     * Skips an entry, using its tag to compute its length.
+     * @return true if the entry takes two slots
+     */
+    static boolean skipEntry(BufferInput input) throws IOException {
+        int tag = input.readUnsignedByte();
+        switch (tag) {
+        case CP_UTF8:
+            input.skip(input.readUnsignedShort());
+            return false;
+
+        case CP_CLASS:
+        case CP_STRING:
+        case CP_METHODTYPE:
+        case CP_MODULE:
+        case CP_PACKAGE:
+            input.skip(2);
+            return false;
+
+        case CP_METHODHANDLE:
+            input.skip(3);
+            return false;
+
+        case CP_INTEGER:
+        case CP_FLOAT:
+        case CP_FIELDREF:
+        case CP_METHODREF:
+        case CP_INTERFACEMETHODREF:
+        case CP_NAMEANDTYPE:
+        case CP_DYNAMIC:
+        case CP_INVOKEDYNAMIC:
+            input.skip(4);
+            return false;
+
+        case CP_LONG:
+        case CP_DOUBLE:
+            input.skip(8);
+            return true;
+
+        default:
+            throw new StreamCorruptedException(
+                    "invalid constant pool tag: " + tag);
+        }
+    }
+
     public void store(DataOutput output) throws IOException {
-        output.writeShort(entries.size());
-        for (Entry entry: entries) {
-            entry.store(output);
+        int count = getCount();
+        output.writeShort(count);
+        for (int i = 0; i < count; ++i) {
+            if (raw != null && raw.hasArray() && entries.get(i) == null) {
+                /* not decoded: copy the original bytes */
+                output.write(raw.array(), raw.arrayOffset() + offsets[i],
+                        offsets[i + 1] - offsets[i]);
+            } else {
+                getEntry(i).store(output);
+            }
         }
     }
 
-    public void print(PrintStream out) {
-        out.println("number of entries: " + entries.size());
-        int i = 0;
-        for (Entry entry: entries) {
-            out.println(Integer.toString(i++) + " = " + entry.toString(this));
+    /**
+     * Returns the number of bytes written by store.
+     */
+    public int sizeInBytes() {
+        int count = getCount();
+        int size = 2;
+        for (int i = 1; i < count; ++i) {
+            if (raw != null && entries.get(i) == null) {
+                size += offsets[i + 1] - offsets[i];
+            } else {
+                size += getEntry(i).getSize();
+            }
         }
+        return size;
     }
 
-    private short addEntry(Entry entry) {
-        int count = entries.size();
+    public void print(PrintStream out) {
+        int count = getCount();
+        out.println("number of entries: " + count);
         for (int i = 0; i < count; ++i) {
-            if (entry.equals(entries.get(i))) {
-                return (short)i;
+            out.println(Integer.toString(i) + " = "
+                    + getEntry(i).toString(this));
+        }
+    }
+
+    /**
+     * Marks the entries referenced by the entries already marked.
+     * @param used flags indexed by entry index
+     */
+    void markReferences(boolean[] used) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 1; i < used.length; ++i) {
+                if (used[i]) {
+                    for (short ref: getEntry(i).getRefs()) {
+                        if (!used[ref & 0xFFFF]) {
+                            used[ref & 0xFFFF] = true;
+                            changed = true;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the new indices of the entries if the pool is rebuilt with
+     * the given order.
+     * @param order the indices of the entries to keep, in their new order
+     * @return a table mapping the current indices to the new ones; the
+     * entries that are not kept are mapped to zero.
+     */
+    int[] mapIndices(int[] order) {
+        int[] map = new int[getCount()];
+        int next = 1;
+        for (int i: order) {
+            map[i] = next;
+            next += isWide(getEntry(i)) ? 2 : 1;
+        }
+        if (next > 0xFFFF) {
+            throw new ClassFileException("Too many constants: " + next);
+        }
+        return map;
+    }
+
+    /**
+     * Rebuilds the pool with only the given entries, in the given order.
+     * @param order the indices of the entries to keep, in their new order
+     * @param map the result of mapIndices(order)
+     */
+    void rebuild(int[] order, int[] map) {
+        checkNotFrozen();
+        List<Entry> list = new ArrayList<>(order.length);
+        for (int i: order) {
+            list.add(getEntry(i).remap(map));
+        }
+        clear();
+        entries.add(NullEntry.INSTANCE);
+        for (Entry entry: list) {
+            int i = entries.size();
+            entries.add(entry);
+            addToIndex(i);
+            if (isWide(entry)) {
+                entries.add(NullEntry.INSTANCE);
+            }
+        }
+    }
+
+    /**
+     * Adds the entries of another constant pool to this one, typically the
+     * private pool used to generate a method on another thread. Entries that
+     * this pool already contains are not duplicated.
+     * @param source the pool to merge into this one
+     * @return a table mapping the indices of the source pool to the indices
+     * of the same constants in this pool
+     */
+    public int[] merge(ConstantPool source) {
+        return merge(source, null);
+    }
+
+    /**
+     * @param first the indices of the source entries to merge before the
+     * others, typically the operands of ldc instructions, which must remain
+     * below 256; may be null
+     */
+    int[] merge(ConstantPool source, int[] first) {
+        int[] map = new int[source.getCount()];
+        if (first != null) {
+            for (int i: first) {
+                mergeEntry(source, i, map);
+            }
+        }
+        for (int i = 1; i < map.length; ++i) {
+            mergeEntry(source, i, map);
+        }
+        return map;
+    }
+
+    private void mergeEntry(ConstantPool source, int i, int[] map) {
+        if (map[i] != 0) {
+            return;
+        }
+        Entry entry = source.getEntry(i);
+        if (entry instanceof NullEntry) {
+            /* second slot of a long or a double */
+            return;
+        } else if (entry instanceof Utf8Entry) {
+            map[i] = addUtf8((Utf8Entry)entry) & 0xFFFF;
+        } else {
+            for (short ref: entry.getRefs()) {
+                mergeEntry(source, ref & 0xFFFF, map);
+            }
+            map[i] = addEntry(entry.remap(map)) & 0xFFFF;
+        }
+    }
+
+    static boolean isWide(Entry entry) {
+        return entry instanceof LongEntry || entry instanceof DoubleEntry;
+    }
+
+    private static short map(int[] map, short index) {
+        return (short)map[index & 0xFFFF];
+    }
+
+    private void clear() {
+        entries.clear();
+        index.clear();
+        for (NumberIndex map: numbers) {
+            map.clear();
+        }
+        Arrays.fill(utf8Table, 0);
+        utf8Count = 0;
+        indexed = true;
+        raw = null;
+        offsets = null;
+        rawInput = null;
+        template = null;
+        base = 0;
+    }
+
+    Entry getEntry(int i) {
+        if (i < base) {
+            return template.getEntry(i);
+        }
+        Entry entry = entries.get(i - base);
+        if (entry == null) {
+            entry = decode(i);
+            entries.set(i - base, entry);
+        }
+        return entry;
+    }
+
+    private Entry ownEntry(int i) {
+        return entries.get(i - base);
+    }
+
+    void checkNotFrozen() {
+        if (frozen) {
+            throw new ClassFileException("Constant pool is frozen");
+        }
+    }
+
+    private void ensureWritable() {
+        checkNotFrozen();
+        ensureIndexed();
+    }
+
+    private Entry decode(int i) {
+        try {
+            rawInput.setPosition(offsets[i]);
+            int tag = rawInput.readUnsignedByte();
+            if (tag == CP_UTF8 && raw.hasArray()) {
+                /* the entry is a slice of the class bytes */
+                int length = rawInput.readUnsignedShort();
+                byte[] data = raw.array();
+                int offset = raw.arrayOffset() + offsets[i] + 3;
+                return new Utf8Entry(data, offset, length,
+                        Utf8.hash(data, offset, length));
+            } else if (tag == CP_UTF8) {
+                return readUtf8(rawInput);
+            }
+            LoadableEntry entry = newEntry(tag);
+            entry.load(rawInput);
+            return entry;
+        } catch (IOException ex) {
+            throw new ClassFileException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Decodes and indexes all the entries of a lazily loaded pool, after which
+     * the raw bytes are no longer needed.
+     */
+    private void ensureIndexed() {
+        if (!indexed) {
+            for (int i = 1; i < entries.size(); ++i) {
+                getEntry(i);
+                addToIndex(i);
+            }
+            indexed = true;
+            raw = null;
+            offsets = null;
+            rawInput = null;
+        }
+    }
+
+    private void addToIndex(int i) {
+        Entry entry = ownEntry(i);
+        if (entry instanceof Utf8Entry) {
+            Utf8Entry utf8 = (Utf8Entry)entry;
+            if (findUtf8(utf8.data, utf8.offset, utf8.length, utf8.hash) == 0) {
+                indexUtf8(i, utf8.hash);
+            }
+        } else if (entry instanceof NumberEntry) {
+            NumberEntry number = (NumberEntry)entry;
+            numbers[number.getTag() - CP_INTEGER].putIfAbsent(
+                    number.getBits(), i);
+        } else {
+            index.putIfAbsent(entry, i);
+        }
+    }
+
+    /**
+     * Reads a Utf8 entry into the arena.
+     */
+    private Utf8Entry readUtf8(DataInput input) throws IOException {
+        int length = input.readUnsignedShort();
+        if (arena.length - arenaTop < length) {
+            arena = new byte[Math.max(ARENA_CHUNK, length)];
+            arenaTop = 0;
+        }
+        input.readFully(arena, arenaTop, length);
+        Utf8Entry entry = new Utf8Entry(arena, arenaTop, length,
+                Utf8.hash(arena, arenaTop, length));
+        arenaTop += length;
+        return entry;
+    }
+
+    /**
+     * Looks up a Utf8 entry by value.
+     * @return the index of the entry, or zero if not found
+     */
+    int findUtf8(byte[] data, int offset, int length, int hash) {
+        if (template != null) {
+            int i = template.findUtf8(data, offset, length, hash);
+            if (i != 0) {
+                return i;
             }
         }
+        int mask = utf8Table.length - 1;
+        for (int h = mix(hash) & mask; utf8Table[h] != 0; h = (h + 1) & mask) {
+            Utf8Entry entry = (Utf8Entry)ownEntry(utf8Table[h]);
+            if (entry.hash == hash && entry.length == length
+                    && Utf8.equals(entry.data, entry.offset,
+                            data, offset, length)) {
+                return utf8Table[h];
+            }
+        }
+        return 0;
+    }
+
+    private void indexUtf8(int i, int hash) {
+        if (2*(utf8Count + 1) > utf8Table.length) {
+            int[] old = utf8Table;
+            utf8Table = new int[2*old.length];
+            for (int j: old) {
+                if (j != 0) {
+                    insertUtf8(j, ((Utf8Entry)ownEntry(j)).hash);
+                }
+            }
+        }
+        insertUtf8(i, hash);
+        ++utf8Count;
+    }
+
+    private void insertUtf8(int i, int hash) {
+        int mask = utf8Table.length - 1;
+        int h = mix(hash) & mask;
+        while (utf8Table[h] != 0) {
+            h = (h + 1) & mask;
+        }
+        utf8Table[h] = i;
+    }
+
+    private static int mix(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static LoadableEntry newEntry(int tag)
+            throws StreamCorruptedException {
+        switch (tag) {
+        case CP_CLASS:
+            return new ClassEntry();
+        case CP_FIELDREF:
+            return new FieldrefEntry();
+        case CP_METHODREF:
+            return new MethodrefEntry();
+        case CP_INTERFACEMETHODREF:
+            return new InterfaceMethodrefEntry();
+        case CP_STRING:
+            return new StringEntry();
+        case CP_INTEGER:
+            return new IntegerEntry();
+        case CP_FLOAT:
+            return new FloatEntry();
+        case CP_LONG:
+            return new LongEntry();
+        case CP_DOUBLE:
+            return new DoubleEntry();
+        case CP_NAMEANDTYPE:
+            return new NameAndTypeEntry();
+        case CP_METHODHANDLE:
+            return new MethodHandleEntry();
+        case CP_METHODTYPE:
+            return new MethodTypeEntry();
+        case CP_DYNAMIC:
+            return new DynamicEntry();
+        case CP_INVOKEDYNAMIC:
+            return new InvokeDynamicEntry();
+        case CP_MODULE:
+            return new ModuleEntry();
+        case CP_PACKAGE:
+            return new PackageEntry();
+        default:
+            throw new StreamCorruptedException(
+                    "invalid constant pool tag: " + tag);
+        }
+    }
+
+    /**
+     * Looks up an entry other than a Utf8 entry.
+     * @return the index of the entry, or zero if not found
+     */
+    int findEntry(Entry entry) {
+        if (entry instanceof NumberEntry) {
+            NumberEntry number = (NumberEntry)entry;
+            return findNumber(number.getTag(), number.getBits());
+        }
+        if (template != null) {
+            int i = template.findEntry(entry);
+            if (i != 0) {
+                return i;
+            }
+        }
+        Integer i = index.get(entry);
+        return i == null ? 0 : i;
+    }
+
+    short addEntry(Entry entry) {
+        ensureWritable();
+        int existing = findEntry(entry);
+        if (existing != 0) {
+            return (short)existing;
+        }
+        int count = getCount();
         entries.add(entry);
+        addToIndex(count);
+        if (isWide(entry)) {
+            entries.add(NullEntry.INSTANCE);
+        }
         return (short)count;
     }
 
-    private abstract static class Entry {
-        abstract void load(DataInput input) throws IOException;
+    /**
+     * Looks up a numeric entry by the raw bits of its value.
+     * @return the index of the entry, or zero if not found
+     */
+    private int findNumber(int tag, long bits) {
+        if (template != null) {
+            int i = template.findNumber(tag, bits);
+            if (i != 0) {
+                return i;
+            }
+        }
+        return numbers[tag - CP_INTEGER].get(bits);
+    }
+
+    abstract static class Entry {
+        private static final short[] NO_REFS = {};
+
         abstract void store(DataOutput input) throws IOException;
+        abstract int getTag();
+
+        /**
+         * Returns the number of bytes written by store.
+         */
+        abstract int getSize();
         abstract String toString(ConstantPool cp);
+
+        /**
+         * Returns the indices of the entries this entry refers to.
+         */
+        short[] getRefs() {
+            return NO_REFS;
+        }
+
+        /**
+         * Returns a copy of this entry where the indices of the entries
+         * it refers to are replaced using the table.
+         */
+        Entry remap(int[] map) {
+            return this;
+        }
+    }
+
+    /**
+     * An entry that is read field by field into a new instance. Utf8 entries
+     * are not: their bytes are a slice of the arena or of the class bytes.
+     */
+    abstract static class LoadableEntry extends Entry {
+        abstract void load(DataInput input) throws IOException;
     }
 
-    private static class NullEntry extends Entry {
-        private static final NullEntry INSTANCE = new NullEntry();
+    static class NullEntry extends Entry {
+        static final NullEntry INSTANCE = new NullEntry();
 
         @Override
         public boolean equals(Object obj) {
@@ -302,7 +1149,13 @@ public class ConstantPool {
         }
 
         @Override
-        void load(DataInput input) {
+        int getTag() {
+            return 0;
+        }
+
+        @Override
+        int getSize() {
+            return 0;
         }
 
         @Override
@@ -320,7 +1173,7 @@ public class ConstantPool {
         }
     }
 
-    private static class ClassEntry extends Entry {
+    private static class ClassEntry extends LoadableEntry {
         short nameIndex;
 
         ClassEntry() {
@@ -350,21 +1203,79 @@ public class ConstantPool {
             nameIndex = input.readShort();
         }
 
+        @Override
+        int getTag() {
+            return CP_CLASS;
+        }
+
+        @Override
+        int getSize() {
+            return 3;
+        }
+
         @Override
         void store(DataOutput output) throws IOException {
             output.writeByte(CP_CLASS);
             output.writeShort(nameIndex);
         }
 
+        @Override
+        short[] getRefs() {
+            return new short[] {nameIndex};
+        }
+
+        @Override
+        Entry remap(int[] map) {
+            return new ClassEntry(map(map, nameIndex));
+        }
+
         @Override
         String toString(ConstantPool cp) {
             return "class " + cp.toString(nameIndex);
         }
     }
 
-    private static abstract class RefEntry extends Entry {
+    /**
+     * The resolved names and the descriptor facts of a member reference,
+     * computed once per entry. Instances are immutable, so that they can be
+     * shared without synchronization.
+     */
+    private static final class Member {
+        /** the name of the class, or null for a bootstrap entry */
+        final String className;
+        final String name;
+        final String type;
+        /** slots of the arguments of a method, or -1 for a field */
+        final int argsSize;
+        /** slots of the value of a field, or of the return value of a method */
+        final int valueSize;
+
+        Member(String className, String name, String type) {
+            this.className = className;
+            this.name = name;
+            this.type = type;
+            if (type.startsWith("(")) {
+                argsSize = Descriptor.argsSize(type);
+                valueSize = Descriptor.returnSize(type);
+            } else {
+                argsSize = -1;
+                valueSize = Descriptor.valueSize(type);
+            }
+        }
+
+        int getArgsSize() {
+            if (argsSize < 0) {
+                throw new InvalidTypeException(type);
+            }
+            return argsSize;
+        }
+    }
+
+    private static abstract class RefEntry extends LoadableEntry {
         short classIndex;
         short nameAndTypeIndex;
+        /** resolved names, computed on first use */
+        Member member;
 
         RefEntry() {
         }
@@ -399,6 +1310,11 @@ public class ConstantPool {
             nameAndTypeIndex = input.readShort();
         }
 
+        @Override
+        int getSize() {
+            return 5;
+        }
+
         @Override
         void store(DataOutput output) throws IOException {
             output.writeByte(getTag());
@@ -406,7 +1322,10 @@ public class ConstantPool {
             output.writeShort(nameAndTypeIndex);
         }
 
-        abstract int getTag();
+        @Override
+        short[] getRefs() {
+            return new short[] {classIndex, nameAndTypeIndex};
+        }
 
         @Override
         String toString(ConstantPool cp) {
@@ -425,6 +1344,12 @@ public class ConstantPool {
             super(classIndex, nameAndTypeIndex);
         }
 
+        @Override
+        Entry remap(int[] map) {
+            return new FieldrefEntry(map(map, classIndex),
+                    map(map, nameAndTypeIndex));
+        }
+
         @Override
         String toString(ConstantPool cp) {
             return "fieldref " + super.toString(cp);
@@ -445,6 +1370,12 @@ public class ConstantPool {
             super(classIndex, nameAndTypeIndex);
         }
 
+        @Override
+        Entry remap(int[] map) {
+            return new MethodrefEntry(map(map, classIndex),
+                    map(map, nameAndTypeIndex));
+        }
+
         @Override
         String toString(ConstantPool cp) {
             return "methodref " + super.toString(cp);
@@ -465,6 +1396,12 @@ public class ConstantPool {
             super(classIndex, nameAndTypeIndex);
         }
 
+        @Override
+        Entry remap(int[] map) {
+            return new InterfaceMethodrefEntry(map(map, classIndex),
+                    map(map, nameAndTypeIndex));
+        }
+
         @Override
         String toString(ConstantPool cp) {
             return "interfacemethodref " + super.toString(cp);
@@ -476,7 +1413,7 @@ public class ConstantPool {
         }
     }
 
-    private static class StringEntry extends Entry {
+    private static class StringEntry extends LoadableEntry {
         short stringIndex;
 
         StringEntry() {
@@ -506,19 +1443,63 @@ public class ConstantPool {
             stringIndex = input.readShort();
         }
 
+        @Override
+        int getTag() {
+            return CP_STRING;
+        }
+
+        @Override
+        int getSize() {
+            return 3;
+        }
+
         @Override
         void store(DataOutput output) throws IOException {
             output.writeByte(CP_STRING);
             output.writeShort(stringIndex);
         }
 
+        @Override
+        short[] getRefs() {
+            return new short[] {stringIndex};
+        }
+
+        @Override
+        Entry remap(int[] map) {
+            return new StringEntry(map(map, stringIndex));
+        }
+
         @Override
         String toString(ConstantPool cp) {
             return '"' + cp.toString(stringIndex) + '"';
         }
     }
 
-    private static class IntegerEntry extends Entry {
+    /**
+     * An Integer, Float, Long or Double entry. Two such entries are equal if
+     * their values have the same raw bits, so that NaN and -0.0 are kept
+     * distinct from other values.
+     */
+    private static abstract class NumberEntry extends LoadableEntry {
+        abstract long getBits();
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj != null && obj.getClass() == getClass()) {
+                NumberEntry other = (NumberEntry)obj;
+                return this.getBits() == other.getBits();
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(getBits());
+        }
+    }
+
+    private static class IntegerEntry extends NumberEntry {
         int value;
 
         IntegerEntry() {
@@ -529,18 +1510,13 @@ public class ConstantPool {
         }
 
         @Override
-        public boolean equals(Object obj) {
-            if (obj instanceof IntegerEntry) {
-                IntegerEntry other = (IntegerEntry)obj;
-                return this.value == other.value;
-            } else {
-                return false;
-            }
+        int getTag() {
+            return CP_INTEGER;
         }
 
         @Override
-        public int hashCode() {
-            return Integer.hashCode(value);
+        long getBits() {
+            return value;
         }
 
         @Override
@@ -548,6 +1524,11 @@ public class ConstantPool {
             value = input.readInt();
         }
 
+        @Override
+        int getSize() {
+            return 5;
+        }
+
         @Override
         void store(DataOutput output) throws IOException {
             output.writeByte(CP_INTEGER);
@@ -560,7 +1541,7 @@ public class ConstantPool {
         }
     }
 
-    private static class FloatEntry extends Entry {
+    private static class FloatEntry extends NumberEntry {
         float value;
 
         FloatEntry() {
@@ -571,18 +1552,13 @@ public class ConstantPool {
         }
 
         @Override
-        public boolean equals(Object obj) {
-            if (obj instanceof FloatEntry) {
-                FloatEntry other = (FloatEntry)obj;
-                return this.value == other.value;
-            } else {
-                return false;
-            }
+        int getTag() {
+            return CP_FLOAT;
         }
 
         @Override
-        public int hashCode() {
-            return Float.hashCode(value);
+        long getBits() {
+            return Float.floatToRawIntBits(value);
         }
 
         @Override
@@ -590,10 +1566,15 @@ public class ConstantPool {
             value = input.readFloat();
         }
 
+        @Override
+        int getSize() {
+            return 5;
+        }
+
         @Override
         void store(DataOutput output) throws IOException {
             output.writeByte(CP_FLOAT);
-            output.writeFloat(value);
+            output.writeInt(Float.floatToRawIntBits(value));
         }
 
         @Override
@@ -602,7 +1583,7 @@ public class ConstantPool {
         }
     }
 
-    private static class LongEntry extends Entry {
+    private static class LongEntry extends NumberEntry {
         long value;
 
         LongEntry() {
@@ -613,18 +1594,13 @@ public class ConstantPool {
         }
 
         @Override
-        public boolean equals(Object obj) {
-            if (obj instanceof LongEntry) {
-                LongEntry other = (LongEntry)obj;
-                return this.value == other.value;
-            } else {
-                return false;
-            }
+        int getTag() {
+            return CP_LONG;
         }
 
         @Override
-        public int hashCode() {
-            return Long.hashCode(value);
+        long getBits() {
+            return value;
         }
 
         @Override
@@ -632,6 +1608,11 @@ public class ConstantPool {
             value = input.readLong();
         }
 
+        @Override
+        int getSize() {
+            return 9;
+        }
+
         @Override
         void store(DataOutput output) throws IOException {
             output.writeByte(CP_LONG);
@@ -644,7 +1625,7 @@ public class ConstantPool {
         }
     }
 
-    private static class DoubleEntry extends Entry {
+    private static class DoubleEntry extends NumberEntry {
         double value;
 
         DoubleEntry() {
@@ -655,18 +1636,13 @@ public class ConstantPool {
         }
 
         @Override
-        public boolean equals(Object obj) {
-            if (obj instanceof DoubleEntry) {
-                DoubleEntry other = (DoubleEntry)obj;
-                return this.value == other.value;
-            } else {
-                return false;
-            }
+        int getTag() {
+            return CP_DOUBLE;
         }
 
         @Override
-        public int hashCode() {
-            return Double.hashCode(value);
+        long getBits() {
+            return Double.doubleToRawLongBits(value);
         }
 
         @Override
@@ -674,10 +1650,15 @@ public class ConstantPool {
             value = input.readDouble();
         }
 
+        @Override
+        int getSize() {
+            return 9;
+        }
+
         @Override
         void store(DataOutput output) throws IOException {
             output.writeByte(CP_DOUBLE);
-            output.writeDouble(value);
+            output.writeLong(Double.doubleToRawLongBits(value));
         }
 
         @Override
@@ -686,7 +1667,7 @@ public class ConstantPool {
         }
     }
 
-    private static class NameAndTypeEntry extends Entry {
+    private static class NameAndTypeEntry extends LoadableEntry {
         short nameIndex;
         short descrIndex;
 
@@ -723,6 +1704,16 @@ public class ConstantPool {
             descrIndex = input.readShort();
         }
 
+        @Override
+        int getTag() {
+            return CP_NAMEANDTYPE;
+        }
+
+        @Override
+        int getSize() {
+            return 5;
+        }
+
         @Override
         void store(DataOutput output) throws IOException {
             output.writeByte(CP_NAMEANDTYPE);
@@ -730,27 +1721,449 @@ public class ConstantPool {
             output.writeShort(descrIndex);
         }
 
+        @Override
+        short[] getRefs() {
+            return new short[] {nameIndex, descrIndex};
+        }
+
+        @Override
+        Entry remap(int[] map) {
+            return new NameAndTypeEntry(map(map, nameIndex),
+                    map(map, descrIndex));
+        }
+
         @Override
         String toString(ConstantPool cp) {
             return cp.getUtf8(nameIndex) + " " + cp.getUtf8(descrIndex);
         }
     }
 
-    private static class Utf8Entry extends Entry {
+    private static class MethodHandleEntry extends LoadableEntry {
+        int kind;
+        short refIndex;
+
+        MethodHandleEntry() {
+        }
+
+        MethodHandleEntry(int kind, short refIndex) {
+            this.kind = kind;
+            this.refIndex = refIndex;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof MethodHandleEntry) {
+                MethodHandleEntry other = (MethodHandleEntry)obj;
+                return this.kind == other.kind
+                        && this.refIndex == other.refIndex;
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 5;
+            hash = 83 * hash + this.kind;
+            hash = 83 * hash + this.refIndex;
+            return hash;
+        }
+
+        @Override
+        void load(DataInput input) throws IOException {
+            kind = input.readUnsignedByte();
+            refIndex = input.readShort();
+        }
+
+        @Override
+        int getTag() {
+            return CP_METHODHANDLE;
+        }
+
+        @Override
+        int getSize() {
+            return 4;
+        }
+
+        @Override
+        void store(DataOutput output) throws IOException {
+            output.writeByte(CP_METHODHANDLE);
+            output.writeByte(kind);
+            output.writeShort(refIndex);
+        }
+
+        @Override
+        short[] getRefs() {
+            return new short[] {refIndex};
+        }
+
+        @Override
+        Entry remap(int[] map) {
+            return new MethodHandleEntry(kind, map(map, refIndex));
+        }
+
+        @Override
+        String toString(ConstantPool cp) {
+            return "methodhandle " + kindToString(kind) + " "
+                    + cp.toString(refIndex);
+        }
+
+        private static String kindToString(int kind) {
+            switch (kind) {
+            case REF_GETFIELD:
+                return "REF_getField";
+            case REF_GETSTATIC:
+                return "REF_getStatic";
+            case REF_PUTFIELD:
+                return "REF_putField";
+            case REF_PUTSTATIC:
+                return "REF_putStatic";
+            case REF_INVOKEVIRTUAL:
+                return "REF_invokeVirtual";
+            case REF_INVOKESTATIC:
+                return "REF_invokeStatic";
+            case REF_INVOKESPECIAL:
+                return "REF_invokeSpecial";
+            case REF_NEWINVOKESPECIAL:
+                return "REF_newInvokeSpecial";
+            case REF_INVOKEINTERFACE:
+                return "REF_invokeInterface";
+            default:
+                return Integer.toString(kind);
+            }
+        }
+    }
+
+    private static class MethodTypeEntry extends LoadableEntry {
+        short descrIndex;
+
+        MethodTypeEntry() {
+        }
+
+        MethodTypeEntry(short descrIndex) {
+            this.descrIndex = descrIndex;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof MethodTypeEntry) {
+                MethodTypeEntry other = (MethodTypeEntry)obj;
+                return this.descrIndex == other.descrIndex;
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return descrIndex;
+        }
+
+        @Override
+        void load(DataInput input) throws IOException {
+            descrIndex = input.readShort();
+        }
+
+        @Override
+        int getTag() {
+            return CP_METHODTYPE;
+        }
+
+        @Override
+        int getSize() {
+            return 3;
+        }
+
+        @Override
+        void store(DataOutput output) throws IOException {
+            output.writeByte(CP_METHODTYPE);
+            output.writeShort(descrIndex);
+        }
+
+        @Override
+        short[] getRefs() {
+            return new short[] {descrIndex};
+        }
+
+        @Override
+        Entry remap(int[] map) {
+            return new MethodTypeEntry(map(map, descrIndex));
+        }
+
+        @Override
+        String toString(ConstantPool cp) {
+            return "methodtype " + cp.getUtf8(descrIndex);
+        }
+    }
+
+    private static abstract class BootstrapEntry extends LoadableEntry {
+        short bootstrapIndex;
+        short nameAndTypeIndex;
+        /** resolved names, computed on first use */
+        Member member;
+
+        BootstrapEntry() {
+        }
+
+        BootstrapEntry(short bootstrapIndex, short nameAndTypeIndex) {
+            this.bootstrapIndex = bootstrapIndex;
+            this.nameAndTypeIndex = nameAndTypeIndex;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj.getClass() == this.getClass()) {
+                BootstrapEntry other = (BootstrapEntry)obj;
+                return this.bootstrapIndex == other.bootstrapIndex
+                        && this.nameAndTypeIndex == other.nameAndTypeIndex;
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 7;
+            hash = 67 * hash + this.bootstrapIndex;
+            hash = 67 * hash + this.nameAndTypeIndex;
+            return hash;
+        }
+
+        @Override
+        void load(DataInput input) throws IOException {
+            bootstrapIndex = input.readShort();
+            nameAndTypeIndex = input.readShort();
+        }
+
+        @Override
+        int getSize() {
+            return 5;
+        }
+
+        @Override
+        void store(DataOutput output) throws IOException {
+            output.writeByte(getTag());
+            output.writeShort(bootstrapIndex);
+            output.writeShort(nameAndTypeIndex);
+        }
+
+        @Override
+        short[] getRefs() {
+            return new short[] {nameAndTypeIndex};
+        }
+
+        @Override
+        String toString(ConstantPool cp) {
+            return "#" + bootstrapIndex + " "
+                + cp.getName(nameAndTypeIndex) + " "
+                + cp.getType(nameAndTypeIndex);
+        }
+    }
+
+    private static class DynamicEntry extends BootstrapEntry {
+        DynamicEntry() {
+            super();
+        }
+
+        DynamicEntry(short bootstrapIndex, short nameAndTypeIndex) {
+            super(bootstrapIndex, nameAndTypeIndex);
+        }
+
+        @Override
+        Entry remap(int[] map) {
+            return new DynamicEntry(bootstrapIndex,
+                    map(map, nameAndTypeIndex));
+        }
+
+        @Override
+        String toString(ConstantPool cp) {
+            return "dynamic " + super.toString(cp);
+        }
+
+        @Override
+        int getTag() {
+            return CP_DYNAMIC;
+        }
+    }
+
+    private static class InvokeDynamicEntry extends BootstrapEntry {
+        InvokeDynamicEntry() {
+            super();
+        }
+
+        InvokeDynamicEntry(short bootstrapIndex, short nameAndTypeIndex) {
+            super(bootstrapIndex, nameAndTypeIndex);
+        }
+
+        @Override
+        Entry remap(int[] map) {
+            return new InvokeDynamicEntry(bootstrapIndex,
+                    map(map, nameAndTypeIndex));
+        }
+
+        @Override
+        String toString(ConstantPool cp) {
+            return "invokedynamic " + super.toString(cp);
+        }
+
+        @Override
+        int getTag() {
+            return CP_INVOKEDYNAMIC;
+        }
+    }
+
+    private static class ModuleEntry extends LoadableEntry {
+        short nameIndex;
+
+        ModuleEntry() {
+        }
+
+        ModuleEntry(short nameIndex) {
+            this.nameIndex = nameIndex;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof ModuleEntry) {
+                ModuleEntry other = (ModuleEntry)obj;
+                return this.nameIndex == other.nameIndex;
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return nameIndex;
+        }
+
+        @Override
+        void load(DataInput input) throws IOException {
+            nameIndex = input.readShort();
+        }
+
+        @Override
+        int getTag() {
+            return CP_MODULE;
+        }
+
+        @Override
+        int getSize() {
+            return 3;
+        }
+
+        @Override
+        void store(DataOutput output) throws IOException {
+            output.writeByte(CP_MODULE);
+            output.writeShort(nameIndex);
+        }
+
+        @Override
+        short[] getRefs() {
+            return new short[] {nameIndex};
+        }
+
+        @Override
+        Entry remap(int[] map) {
+            return new ModuleEntry(map(map, nameIndex));
+        }
+
+        @Override
+        String toString(ConstantPool cp) {
+            return "module " + cp.toString(nameIndex);
+        }
+    }
+
+    private static class PackageEntry extends LoadableEntry {
+        short nameIndex;
+
+        PackageEntry() {
+        }
+
+        PackageEntry(short nameIndex) {
+            this.nameIndex = nameIndex;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof PackageEntry) {
+                PackageEntry other = (PackageEntry)obj;
+                return this.nameIndex == other.nameIndex;
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return nameIndex;
+        }
+
+        @Override
+        void load(DataInput input) throws IOException {
+            nameIndex = input.readShort();
+        }
+
+        @Override
+        int getTag() {
+            return CP_PACKAGE;
+        }
+
+        @Override
+        int getSize() {
+            return 3;
+        }
+
+        @Override
+        void store(DataOutput output) throws IOException {
+            output.writeByte(CP_PACKAGE);
+            output.writeShort(nameIndex);
+        }
+
+        @Override
+        short[] getRefs() {
+            return new short[] {nameIndex};
+        }
+
+        @Override
+        Entry remap(int[] map) {
+            return new PackageEntry(map(map, nameIndex));
+        }
+
+        @Override
+        String toString(ConstantPool cp) {
+            return "package " + cp.toString(nameIndex);
+        }
+    }
+
+    static class Utf8Entry extends Entry {
+        final byte[] data;
+        final int offset;
+        final int length;
+        final int hash;
         String value;
 
-        Utf8Entry() {
+        Utf8Entry(byte[] data, int offset, int length, int hash) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            this.hash = hash;
         }
 
-        Utf8Entry(String value) {
-            this.value = value;
+        String getValue() {
+            if (value == null) {
+                value = Utf8.decode(data, offset, length);
+            }
+            return value;
         }
 
         @Override
         public boolean equals(Object obj) {
             if (obj instanceof Utf8Entry) {
                 Utf8Entry other = (Utf8Entry)obj;
-                return this.value.equals(other.value);
+                return this.hash == other.hash && this.length == other.length
+                        && Utf8.equals(this.data, this.offset,
+                                other.data, other.offset, length);
             } else {
                 return false;
             }
@@ -758,23 +2171,29 @@ public class ConstantPool {
 
         @Override
         public int hashCode() {
-            return value == null ? 0 : value.hashCode();
+            return hash;
         }
 
         @Override
-        void load(DataInput input) throws IOException {
-            value = input.readUTF();
+        int getTag() {
+            return CP_UTF8;
+        }
+
+        @Override
+        int getSize() {
+            return 3 + length;
         }
 
         @Override
         void store(DataOutput output) throws IOException {
             output.writeByte(CP_UTF8);
-            output.writeUTF(value);
+            output.writeShort(length);
+            output.write(data, offset, length);
         }
 
         @Override
         String toString(ConstantPool cp) {
-            return value;
+            return getValue();
         }
     }
 }
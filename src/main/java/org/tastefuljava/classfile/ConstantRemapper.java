@@ -0,0 +1,479 @@
+package org.tastefuljava.classfile;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Visits the references to the constant pool found in a class: in the class
+ * header, the fields, the methods, and the attributes whose format is known,
+ * including the instructions of the Code attributes. Each reference is passed
+ * to a mapping, and replaced by the index it returns if it is different.
+ * Attribute data is copied before being modified.
+ */
+class ConstantRemapper {
+    /** kind of reference: any reference but the operand of ldc */
+    static final int REF = 0;
+    /** kind of reference: the one-byte operand of an ldc instruction */
+    static final int LDC = 1;
+    /** kind of reference: the operand of an ldc_w instruction */
+    static final int LDC_W = 2;
+
+    private static final Set<String> SUPPORTED = new HashSet<>(Arrays.asList(
+            "Code", "ConstantValue", "Signature", "SourceFile", "NestHost",
+            "Exceptions", "NestMembers", "PermittedSubclasses", "InnerClasses",
+            "EnclosingMethod", "Synthetic", "Deprecated", "LineNumberTable",
+            "SourceDebugExtension", "LocalVariableTable",
+            "LocalVariableTypeTable", "StackMapTable", "BootstrapMethods",
+            "MethodParameters", "RuntimeVisibleAnnotations",
+            "RuntimeInvisibleAnnotations",
+            "RuntimeVisibleParameterAnnotations",
+            "RuntimeInvisibleParameterAnnotations", "AnnotationDefault"));
+
+    interface Mapping {
+        /**
+         * @param index the index of the constant referenced
+         * @param kind REF, LDC or LDC_W
+         * @return the new index of the constant
+         */
+        int map(int index, int kind);
+    }
+
+    private final ConstantPool cp;
+    private final Mapping mapping;
+    /** data of the attribute being processed */
+    private byte[] data;
+    /** true if data is a private copy */
+    private boolean copied;
+
+    /**
+     * @param cp the constant pool the references currently refer to
+     * @param mapping the mapping applied to each reference
+     */
+    ConstantRemapper(ConstantPool cp, Mapping mapping) {
+        this.cp = cp;
+        this.mapping = mapping;
+    }
+
+    /**
+     * Checks that all the attributes of a class have a known format, and can
+     * therefore be remapped.
+     */
+    static boolean isSupported(ConstantPool cp, ClassFile cf) {
+        if (!isSupported(cp, cf.attributes)) {
+            return false;
+        }
+        for (FieldInfo field: cf.fields) {
+            if (!isSupported(cp, Arrays.asList(field.getAttributes()))) {
+                return false;
+            }
+        }
+        for (MethodInfo method: cf.methods) {
+            if (!isSupported(cp, method)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean isSupported(ConstantPool cp, MethodInfo method) {
+        for (AttributeInfo attr: method.getAttributes()) {
+            if (!isSupported(cp, attr)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSupported(ConstantPool cp,
+            List<AttributeInfo> list) {
+        for (AttributeInfo attr: list) {
+            if (!isSupported(cp, attr)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSupported(ConstantPool cp, AttributeInfo attr) {
+        String name = cp.getUtf8(attr.getNameIndex());
+        if (!SUPPORTED.contains(name)) {
+            return false;
+        } else if (!name.equals("Code")) {
+            return true;
+        }
+        /* check the attributes of the code */
+        byte[] code = attr.getData();
+        int pos = 8 + getInt(code, 4);
+        pos += 2 + 8*getShort(code, pos);
+        int count = getShort(code, pos);
+        pos += 2;
+        for (int i = 0; i < count; ++i) {
+            name = cp.getUtf8((short)getShort(code, pos));
+            if (!SUPPORTED.contains(name)) {
+                return false;
+            }
+            pos += 6 + getInt(code, pos + 2);
+        }
+        return true;
+    }
+
+    void remap(ClassFile cf) {
+        short thisClass = map(cf.getThisClass(), REF);
+        if (thisClass != cf.getThisClass()) {
+            cf.setThisClass(thisClass);
+        }
+        short superClass = map(cf.getSuperClass(), REF);
+        if (superClass != cf.getSuperClass()) {
+            cf.setSuperClass(superClass);
+        }
+        for (int i = 0; i < cf.interfaces.size(); ++i) {
+            short index = cf.interfaces.get(i);
+            short mapped = map(index, REF);
+            if (mapped != index) {
+                cf.interfaces.set(i, mapped);
+            }
+        }
+        for (FieldInfo field: cf.fields) {
+            remap(field);
+        }
+        for (MethodInfo method: cf.methods) {
+            remap(method);
+        }
+        for (AttributeInfo attr: cf.attributes) {
+            remap(attr);
+        }
+    }
+
+    void remap(FieldInfo field) {
+        short nameIndex = map(field.getNameIndex(), REF);
+        if (nameIndex != field.getNameIndex()) {
+            field.setNameIndex(nameIndex);
+        }
+        short typeIndex = map(field.getTypeIndex(), REF);
+        if (typeIndex != field.getTypeIndex()) {
+            field.setTypeIndex(typeIndex);
+        }
+        for (AttributeInfo attr: field.getAttributes()) {
+            remap(attr);
+        }
+    }
+
+    void remap(MethodInfo method) {
+        short nameIndex = map(method.getNameIndex(), REF);
+        if (nameIndex != method.getNameIndex()) {
+            method.setNameIndex(nameIndex);
+        }
+        short descrIndex = map(method.getDescrIndex(), REF);
+        if (descrIndex != method.getDescrIndex()) {
+            method.setDescrIndex(descrIndex);
+        }
+        for (AttributeInfo attr: method.getAttributes()) {
+            remap(attr);
+        }
+    }
+
+    void remap(AttributeInfo attr) {
+        String name = cp.getUtf8(attr.getNameIndex());
+        short nameIndex = map(attr.getNameIndex(), REF);
+        if (nameIndex != attr.getNameIndex()) {
+            attr.setNameIndex(nameIndex);
+        }
+        data = attr.getData();
+        copied = false;
+        attribute(name, 0);
+        if (copied) {
+            attr.setData(data);
+        }
+        data = null;
+    }
+
+    private void attribute(String name, int pos) {
+        switch (name) {
+        case "Code":
+            code(pos);
+            break;
+
+        case "ConstantValue":
+        case "Signature":
+        case "SourceFile":
+        case "NestHost":
+            ref(pos);
+            break;
+
+        case "Exceptions":
+        case "NestMembers":
+        case "PermittedSubclasses":
+            for (int i = 0, n = u2(pos); i < n; ++i) {
+                ref(pos + 2 + 2*i);
+            }
+            break;
+
+        case "InnerClasses":
+            for (int i = 0, n = u2(pos); i < n; ++i) {
+                int p = pos + 2 + 8*i;
+                ref(p);
+                ref(p + 2);
+                ref(p + 4);
+            }
+            break;
+
+        case "EnclosingMethod":
+            ref(pos);
+            ref(pos + 2);
+            break;
+
+        case "LocalVariableTable":
+        case "LocalVariableTypeTable":
+            for (int i = 0, n = u2(pos); i < n; ++i) {
+                int p = pos + 2 + 10*i;
+                ref(p + 4);
+                ref(p + 6);
+            }
+            break;
+
+        case "StackMapTable":
+            stackMapTable(pos);
+            break;
+
+        case "BootstrapMethods":
+            pos += 2;
+            for (int i = 0, n = u2(pos - 2); i < n; ++i) {
+                ref(pos);
+                int argc = u2(pos + 2);
+                pos += 4;
+                for (int j = 0; j < argc; ++j) {
+                    ref(pos);
+                    pos += 2;
+                }
+            }
+            break;
+
+        case "MethodParameters":
+            for (int i = 0, n = data[pos] & 0xFF; i < n; ++i) {
+                ref(pos + 1 + 4*i);
+            }
+            break;
+
+        case "RuntimeVisibleAnnotations":
+        case "RuntimeInvisibleAnnotations":
+            annotations(pos);
+            break;
+
+        case "RuntimeVisibleParameterAnnotations":
+        case "RuntimeInvisibleParameterAnnotations":
+            pos += 1;
+            for (int i = 0, n = data[pos - 1] & 0xFF; i < n; ++i) {
+                pos = annotations(pos);
+            }
+            break;
+
+        case "AnnotationDefault":
+            elementValue(pos);
+            break;
+
+        case "Synthetic":
+        case "Deprecated":
+        case "LineNumberTable":
+        case "SourceDebugExtension":
+            break;
+
+        default:
+            throw new ClassFileException("Unsupported attribute: " + name);
+        }
+    }
+
+    private void code(int pos) {
+        int length = getInt(data, pos + 4);
+        int start = pos + 8;
+        int pc = 0;
+        while (pc < length) {
+            int opcode = data[start + pc] & 0xFF;
+            switch (opcode) {
+            case ByteCode.LDC:
+                int index = data[start + pc + 1] & 0xFF;
+                int mapped = mapping.map(index, LDC);
+                if (mapped > 255) {
+                    throw new ClassFileException(
+                            "ldc operand out of range: " + mapped);
+                } else if (mapped != index) {
+                    write(start + pc + 1, (byte)mapped);
+                }
+                break;
+
+            case ByteCode.LDC_W:
+                ref(start + pc + 1, LDC_W);
+                break;
+
+            case ByteCode.LDC2_W:
+            case ByteCode.GETSTATIC:
+            case ByteCode.PUTSTATIC:
+            case ByteCode.GETFIELD:
+            case ByteCode.PUTFIELD:
+            case ByteCode.INVOKEVIRTUAL:
+            case ByteCode.INVOKESPECIAL:
+            case ByteCode.INVOKESTATIC:
+            case ByteCode.INVOKEINTERFACE:
+            case ByteCode.INVOKEDYNAMIC:
+            case ByteCode.NEW:
+            case ByteCode.ANEWARRAY:
+            case ByteCode.CHECKCAST:
+            case ByteCode.INSTANCEOF:
+            case ByteCode.MULTIANEWARRAY:
+                ref(start + pc + 1);
+                break;
+            }
+            pc += ByteCode.instructionLength(data, start, pc);
+        }
+        pos = start + length;
+        int count = u2(pos);
+        pos += 2;
+        for (int i = 0; i < count; ++i) {
+            ref(pos + 6);
+            pos += 8;
+        }
+        count = u2(pos);
+        pos += 2;
+        for (int i = 0; i < count; ++i) {
+            String name = cp.getUtf8((short)u2(pos));
+            ref(pos);
+            attribute(name, pos + 6);
+            pos += 6 + getInt(data, pos + 2);
+        }
+    }
+
+    private void stackMapTable(int pos) {
+        int count = u2(pos);
+        pos += 2;
+        for (int i = 0; i < count; ++i) {
+            int type = data[pos++] & 0xFF;
+            if (type < 64) {
+                /* same_frame */
+            } else if (type < 128) {
+                pos = verificationType(pos);
+            } else if (type == 247) {
+                pos = verificationType(pos + 2);
+            } else if (type >= 248 && type <= 251) {
+                pos += 2;
+            } else if (type >= 252 && type <= 254) {
+                pos += 2;
+                for (int j = 251; j < type; ++j) {
+                    pos = verificationType(pos);
+                }
+            } else if (type == 255) {
+                pos += 2;
+                int locals = u2(pos);
+                pos += 2;
+                for (int j = 0; j < locals; ++j) {
+                    pos = verificationType(pos);
+                }
+                int stack = u2(pos);
+                pos += 2;
+                for (int j = 0; j < stack; ++j) {
+                    pos = verificationType(pos);
+                }
+            } else {
+                throw new ClassFileException("Invalid stack map frame: "
+                        + type);
+            }
+        }
+    }
+
+    private int verificationType(int pos) {
+        switch (data[pos]) {
+        case 7:
+            /* Object_variable_info */
+            ref(pos + 1);
+            return pos + 3;
+        case 8:
+            /* Uninitialized_variable_info */
+            return pos + 3;
+        default:
+            return pos + 1;
+        }
+    }
+
+    private int annotations(int pos) {
+        int count = u2(pos);
+        pos += 2;
+        for (int i = 0; i < count; ++i) {
+            pos = annotation(pos);
+        }
+        return pos;
+    }
+
+    private int annotation(int pos) {
+        ref(pos);
+        int count = u2(pos + 2);
+        pos += 4;
+        for (int i = 0; i < count; ++i) {
+            ref(pos);
+            pos = elementValue(pos + 2);
+        }
+        return pos;
+    }
+
+    private int elementValue(int pos) {
+        int tag = data[pos++];
+        switch (tag) {
+        case 'e':
+            ref(pos);
+            ref(pos + 2);
+            return pos + 4;
+        case '@':
+            return annotation(pos);
+        case '[':
+            int count = u2(pos);
+            pos += 2;
+            for (int i = 0; i < count; ++i) {
+                pos = elementValue(pos);
+            }
+            return pos;
+        default:
+            /* constant value or class */
+            ref(pos);
+            return pos + 2;
+        }
+    }
+
+    private short map(short index, int kind) {
+        int i = index & 0xFFFF;
+        return i == 0 ? 0 : (short)mapping.map(i, kind);
+    }
+
+    private void ref(int pos) {
+        ref(pos, REF);
+    }
+
+    private void ref(int pos, int kind) {
+        int index = u2(pos);
+        if (index != 0) {
+            int mapped = mapping.map(index, kind);
+            if (mapped != index) {
+                write(pos, (byte)(mapped >>> 8));
+                write(pos + 1, (byte)mapped);
+            }
+        }
+    }
+
+    private void write(int pos, byte value) {
+        if (!copied) {
+            data = data.clone();
+            copied = true;
+        }
+        data[pos] = value;
+    }
+
+    private int u2(int pos) {
+        return getShort(data, pos);
+    }
+
+    private static int getShort(byte[] buf, int pos) {
+        return ((buf[pos] & 0xFF) << 8) | (buf[pos + 1] & 0xFF);
+    }
+
+    private static int getInt(byte[] buf, int pos) {
+        return ByteCode.getInt(buf, pos);
+    }
+}
@@ -1,16 +1,700 @@
 package org.tastefuljava.classfile;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Decodes the classes of class files, jars and directories, given by name or
+ * by glob patterns, and writes a javap-style listing or a JSON summary of
+ * each class.
+ * <p>The inputs are read in order by the calling thread, and the classes are
+ * decoded in parallel on a fork-join pool; the output is written in the order
+ * of the input, so it does not depend on the number of threads. A class that
+ * cannot be decoded is reported in the output and in the summary, and does
+ * not stop the other classes.</p>
+ * <pre>
+ * java org.tastefuljava.classfile.Decode [-json] [-quiet] [-threads n]
+ *         [-top n] input...
+ * </pre>
+ */
 public class Decode {
+    private static final Logger LOG = Logger.getLogger(Decode.class.getName());
+    private static final String USAGE = "Usage: Decode [-json] [-quiet]"
+            + " [-threads n] [-top n] input...\n"
+            + "  input   a class file, a jar, a directory or a glob pattern\n"
+            + "  -json   write one JSON object per class instead of text\n"
+            + "  -quiet  only write the summary\n"
+            + "  -threads n  the number of decoding threads\n"
+            + "  -top n  the number of slowest classes in the summary";
+
+    private final ForkJoinPool pool;
+    /** true to write JSON instead of text */
+    private boolean json;
+    /** false to only compute the summary */
+    private boolean output = true;
+    /** the number of slowest classes reported in the summary */
+    private int top = 10;
+    /** maximum number of classes between the reader and the writer */
+    private int window;
+
+    public Decode() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public Decode(ForkJoinPool pool) {
+        this.pool = pool;
+        this.window = 4*pool.getParallelism();
+    }
+
+    public boolean isJson() {
+        return json;
+    }
+
+    public void setJson(boolean newValue) {
+        json = newValue;
+    }
+
+    public boolean isOutput() {
+        return output;
+    }
+
+    public void setOutput(boolean newValue) {
+        output = newValue;
+    }
+
+    public int getTop() {
+        return top;
+    }
+
+    public void setTop(int newValue) {
+        top = newValue;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    public void setWindow(int newValue) {
+        if (newValue < 1) {
+            throw new IllegalArgumentException("Invalid window: " + newValue);
+        }
+        window = newValue;
+    }
 
     public static void main(String[] args) {
+        List<String> inputs = new ArrayList<>();
+        boolean json = false;
+        boolean quiet = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int top = 10;
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                switch (args[i]) {
+                case "-json":
+                    json = true;
+                    break;
+                case "-quiet":
+                    quiet = true;
+                    break;
+                case "-threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "-top":
+                    top = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    if (args[i].startsWith("-")) {
+                        throw new IllegalArgumentException(args[i]);
+                    }
+                    inputs.add(args[i]);
+                    break;
+                }
+            }
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            inputs.clear();
+        }
+        if (inputs.isEmpty()) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        Summary summary;
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(
+                    System.out, StandardCharsets.UTF_8), 0x10000);
+            Decode decode = new Decode(pool);
+            decode.setJson(json);
+            decode.setOutput(!quiet);
+            decode.setTop(top);
+            summary = decode.decode(inputs, out);
+            out.flush();
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, null, e);
+            System.exit(2);
+            return;
+        } finally {
+            pool.shutdown();
+        }
+        System.err.println(summary);
+        System.exit(summary.getFailures().isEmpty() ? 0 : 1);
+    }
+
+    /**
+     * Decodes the classes of a list of inputs, each of which is a class
+     * file, a jar, a directory, whose class files and jars are decoded, or a
+     * glob pattern matching any of those.
+     */
+    public Summary decode(List<String> inputs, Appendable out)
+            throws IOException {
+        Summary summary = new Summary(pool.getParallelism(), top);
+        long start = System.nanoTime();
+        Run run = new Run(out, summary);
+        try {
+            for (String input: inputs) {
+                if (isGlob(input)) {
+                    for (Path path: expand(input)) {
+                        run.read(path);
+                    }
+                } else {
+                    run.read(Paths.get(input));
+                }
+            }
+            run.drain();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        summary.elapsed = System.nanoTime() - start;
+        return summary;
+    }
+
+    private static boolean isGlob(String input) {
+        for (int i = 0; i < input.length(); ++i) {
+            if ("*?[{".indexOf(input.charAt(i)) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the paths matching a glob pattern, in sorted order. Only the
+     * directory preceding the first wildcard is walked.
+     */
+    private static List<Path> expand(String glob) throws IOException {
+        int wildcard = 0;
+        while ("*?[{".indexOf(glob.charAt(wildcard)) < 0) {
+            ++wildcard;
+        }
+        int slash = glob.lastIndexOf('/', wildcard);
+        Path base = Paths.get(slash < 0 ? "" : glob.substring(0, slash + 1));
+        int depth = Integer.MAX_VALUE;
+        if (!glob.contains("**")) {
+            depth = 0;
+            for (int i = slash + 1; i < glob.length(); ++i) {
+                if (glob.charAt(i) == '/') {
+                    ++depth;
+                }
+            }
+            ++depth;
+        }
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher(
+                "glob:" + glob);
+        if (!Files.isDirectory(base)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> stream = Files.walk(base, depth)) {
+            return stream.filter((p) -> matcher.matches(p)
+                    || matcher.matches(p.normalize())).sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Decodes a class. Without output, the class is only parsed down to its
+     * instructions, and no listing is rendered.
+     */
+    private void decode(Item item) {
+        long start = System.nanoTime();
+        if (!output) {
+            try {
+                new ClassParser(Validator.INSTANCE).parse(item.data);
+            } catch (IOException | RuntimeException e) {
+                LOG.log(Level.FINE, item.source, e);
+                item.error = e.toString();
+            }
+            item.nanos = System.nanoTime() - start;
+            return;
+        }
+        StringBuilder buf = new StringBuilder(8*item.size);
         try {
-            for (String arg: args) {
-                ClassFile cf = new ClassFile();
-                cf.load(arg);
-                cf.print(System.out);
+            if (json) {
+                new JsonWriter(buf, item).parse();
+            } else {
+                buf.append("Classfile ").append(item.source).append('\n');
+                new Disassembler(buf).disassemble(item.data);
+                buf.append('\n');
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.log(Level.FINE, item.source, e);
+            item.error = e.toString();
+            buf.setLength(0);
+            error(buf, item);
+        }
+        item.nanos = System.nanoTime() - start;
+        item.text = buf;
+    }
+
+    private void error(StringBuilder buf, Item item) {
+        if (json) {
+            buf.append("{\"source\":");
+            JsonWriter.quote(buf, item.source);
+            buf.append(",\"error\":");
+            JsonWriter.quote(buf, item.error);
+            buf.append("}\n");
+        } else {
+            buf.append("Classfile ").append(item.source).append('\n')
+                    .append("  error: ").append(item.error).append("\n\n");
+        }
+    }
+
+    /**
+     * The state of a call to decode: the classes in flight, in input order.
+     */
+    private class Run {
+        private final Appendable out;
+        private final Summary summary;
+        private final Deque<ForkJoinTask<Item>> pending = new ArrayDeque<>();
+
+        private Run(Appendable out, Summary summary) {
+            this.out = out;
+            this.summary = summary;
+        }
+
+        private void read(Path path) throws IOException {
+            try {
+                if (Files.isDirectory(path)) {
+                    readDirectory(path);
+                } else if (path.toString().endsWith(".class")) {
+                    readFile(path);
+                } else {
+                    readJar(path);
+                }
+            } catch (IOException e) {
+                LOG.log(Level.FINE, path.toString(), e);
+                Item item = new Item(path.toString(), new byte[0]);
+                item.error = e.toString();
+                submitDone(item);
+            }
+        }
+
+        private void readDirectory(Path dir) throws IOException {
+            List<Path> files;
+            try (Stream<Path> stream = Files.walk(dir)) {
+                files = stream.filter(Files::isRegularFile)
+                        .filter((p) -> isArchive(p)
+                                || p.toString().endsWith(".class"))
+                        .sorted().collect(Collectors.toList());
+            }
+            for (Path file: files) {
+                read(file);
+            }
+        }
+
+        private void readFile(Path file) throws IOException {
+            submit(new Item(file.toString(), Files.readAllBytes(file)));
+        }
+
+        private void readJar(Path jar) throws IOException {
+            try (ZipFile zip = new ZipFile(jar.toFile())) {
+                Enumeration<? extends ZipEntry> e = zip.entries();
+                while (e.hasMoreElements()) {
+                    ZipEntry entry = e.nextElement();
+                    if (entry.isDirectory()
+                            || !entry.getName().endsWith(".class")) {
+                        continue;
+                    }
+                    byte[] data;
+                    try (InputStream in = zip.getInputStream(entry)) {
+                        data = ClassBatch.readFully(in, entry.getSize());
+                    }
+                    submit(new Item(jar + "!/" + entry.getName(), data));
+                }
+            }
+        }
+
+        private void submit(Item item) {
+            flushHead();
+            pending.addLast(pool.submit(() -> {
+                decode(item);
+                return item;
+            }));
+        }
+
+        private void submitDone(Item item) {
+            flushHead();
+            StringBuilder buf = new StringBuilder();
+            if (output) {
+                error(buf, item);
+                item.text = buf;
+            }
+            ForkJoinTask<Item> done = ForkJoinTask.adapt(() -> item);
+            done.invoke();
+            pending.addLast(done);
+        }
+
+        private void flushHead() {
+            if (pending.size() >= window) {
+                write(pending.removeFirst().join());
+            }
+        }
+
+        private void drain() {
+            while (!pending.isEmpty()) {
+                write(pending.removeFirst().join());
+            }
+        }
+
+        /**
+         * Writes the output of a class. The errors of the output are thrown
+         * unchecked, so that they are not taken for errors of the input.
+         * The output and the bytes of the class are then dropped, since the
+         * summary may keep the item.
+         */
+        private void write(Item item) {
+            if (item.text != null) {
+                try {
+                    out.append(item.text);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            item.text = null;
+            item.data = null;
+            summary.add(item);
+        }
+    }
+
+    private static boolean isArchive(Path path) {
+        String name = path.toString();
+        return name.endsWith(".jar") || name.endsWith(".zip")
+                || name.endsWith(".war");
+    }
+
+    private static class Item {
+        /** the path of the class, prefixed with the jar if any */
+        private final String source;
+        /** the bytes of the class, or null once written */
+        private byte[] data;
+        /** the size of the class, in bytes */
+        private final int size;
+        /** the output, or null if it is not written */
+        private CharSequence text;
+        /** the exception if the class could not be decoded, or null */
+        private String error;
+        /** the time spent decoding the class, in nanoseconds */
+        private long nanos;
+
+        private Item(String source, byte[] data) {
+            this.source = source;
+            this.data = data;
+            this.size = data.length;
+        }
+    }
+
+    /**
+     * Receives the instructions of the methods without rendering anything,
+     * so that the whole class is decoded.
+     */
+    private static class Validator implements ClassHandler {
+        private static final Validator INSTANCE = new Validator();
+
+        @Override
+        public boolean method(int accessFlags, short nameIndex,
+                short descrIndex) {
+            return true;
+        }
+
+        @Override
+        public boolean code(int maxStack, int maxLocals, int codeLength) {
+            return true;
+        }
+    }
+
+    /**
+     * Writes the JSON summary of a class: its header, its fields and its
+     * methods, with the size of their code.
+     */
+    private static class JsonWriter implements ClassHandler {
+        private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+        private final StringBuilder buf;
+        private final Item item;
+        private ConstantPool cp;
+        /** the separator before the next member or interface */
+        private String sep;
+        /** true while the interfaces are received */
+        private boolean interfaces;
+        /** true while the methods are received */
+        private boolean methods;
+
+        private JsonWriter(StringBuilder buf, Item item) {
+            this.buf = buf;
+            this.item = item;
+        }
+
+        private void parse() throws IOException {
+            new ClassParser(this).parse(item.data);
+        }
+
+        @Override
+        public void header(int minorVersion, int majorVersion,
+                ConstantPool cp) {
+            this.cp = cp;
+            buf.append("{\"source\":");
+            quote(buf, item.source);
+            buf.append(",\"size\":").append(item.size)
+                    .append(",\"version\":\"").append(majorVersion)
+                    .append('.').append(minorVersion)
+                    .append("\",\"constants\":").append(cp.getCount());
+        }
+
+        @Override
+        public void declaration(int accessFlags, short thisClass,
+                short superClass) {
+            buf.append(",\"class\":");
+            quote(buf, cp.getClassName(thisClass));
+            buf.append(",\"access\":").append(accessFlags & 0xFFFF)
+                    .append(",\"super\":");
+            if (superClass == 0) {
+                buf.append("null");
+            } else {
+                quote(buf, cp.getClassName(superClass));
+            }
+            buf.append(",\"interfaces\":[");
+            sep = "";
+            interfaces = true;
+        }
+
+        @Override
+        public void implement(short classIndex) {
+            buf.append(sep);
+            quote(buf, cp.getClassName(classIndex));
+            sep = ",";
+        }
+
+        @Override
+        public boolean field(int accessFlags, short nameIndex,
+                short typeIndex) {
+            if (interfaces) {
+                interfaces = false;
+                buf.append("],\"fields\":[");
+                sep = "";
+            }
+            member(accessFlags, nameIndex, typeIndex);
+            buf.append('}');
+            return false;
+        }
+
+        @Override
+        public boolean method(int accessFlags, short nameIndex,
+                short descrIndex) {
+            startMethods();
+            member(accessFlags, nameIndex, descrIndex);
+            return true;
+        }
+
+        @Override
+        public boolean code(int maxStack, int maxLocals, int codeLength) {
+            buf.append(",\"maxStack\":").append(maxStack)
+                    .append(",\"maxLocals\":").append(maxLocals)
+                    .append(",\"code\":").append(codeLength);
+            return false;
+        }
+
+        @Override
+        public void endMethod() {
+            buf.append('}');
+        }
+
+        @Override
+        public void end() {
+            startMethods();
+            buf.append("]}\n");
+        }
+
+        private void startMethods() {
+            if (interfaces) {
+                interfaces = false;
+                buf.append("],\"fields\":[");
+            }
+            if (!methods) {
+                methods = true;
+                buf.append("],\"methods\":[");
+                sep = "";
+            }
+        }
+
+        private void member(int accessFlags, short nameIndex,
+                short typeIndex) {
+            buf.append(sep).append("{\"name\":");
+            quote(buf, cp.getUtf8(nameIndex));
+            buf.append(",\"descriptor\":");
+            quote(buf, cp.getUtf8(typeIndex));
+            buf.append(",\"access\":").append(accessFlags & 0xFFFF);
+            sep = ",";
+        }
+
+        private static void quote(StringBuilder buf, String s) {
+            buf.append('"');
+            for (int i = 0; i < s.length(); ++i) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') {
+                    buf.append('\\').append(c);
+                } else if (c < 0x20) {
+                    buf.append("\\u00").append(HEX[c >> 4])
+                            .append(HEX[c & 0xF]);
+                } else {
+                    buf.append(c);
+                }
+            }
+            buf.append('"');
+        }
+
+    }
+
+    /**
+     * The statistics of a call to {@link #decode(List, Appendable)}: the
+     * number of classes and bytes decoded, the failures and the slowest
+     * classes.
+     */
+    public static final class Summary {
+        private final int parallelism;
+        private final int top;
+        /** the slowest classes, the fastest first */
+        private final PriorityQueue<Item> slowest = new PriorityQueue<>(
+                Comparator.comparingLong((Item item) -> item.nanos));
+        private final List<String> failures = new ArrayList<>();
+        private long classCount;
+        private long byteCount;
+        /** the time spent decoding, summed over all threads */
+        private long decodeNanos;
+        /** wall clock time of the call, in nanoseconds */
+        private long elapsed;
+
+        private Summary(int parallelism, int top) {
+            this.parallelism = parallelism;
+            this.top = top;
+        }
+
+        private void add(Item item) {
+            if (item.error != null) {
+                failures.add(item.source);
+            }
+            if (item.size == 0) {
+                return;
+            }
+            ++classCount;
+            byteCount += item.size;
+            decodeNanos += item.nanos;
+            if (top > 0) {
+                slowest.add(item);
+                if (slowest.size() > top) {
+                    slowest.remove();
+                }
+            }
+        }
+
+        public long getClassCount() {
+            return classCount;
+        }
+
+        public long getByteCount() {
+            return byteCount;
+        }
+
+        public long getElapsedNanos() {
+            return elapsed;
+        }
+
+        public double getClassesPerSecond() {
+            return elapsed == 0 ? 0 : classCount*1e9/elapsed;
+        }
+
+        public double getBytesPerSecond() {
+            return elapsed == 0 ? 0 : byteCount*1e9/elapsed;
+        }
+
+        /**
+         * Returns the classes and inputs that could not be decoded, in input
+         * order.
+         */
+        public List<String> getFailures() {
+            return new ArrayList<>(failures);
+        }
+
+        /**
+         * Returns the classes that took the longest to decode, the slowest
+         * first.
+         */
+        public List<String> getSlowest() {
+            List<String> result = new ArrayList<>();
+            for (Item item: sortedSlowest()) {
+                result.add(item.source);
+            }
+            return result;
+        }
+
+        private List<Item> sortedSlowest() {
+            List<Item> result = new ArrayList<>(slowest);
+            result.sort(slowest.comparator().reversed());
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder buf = new StringBuilder();
+            buf.append(String.format("%d classes, %.1f MB in %.3f s on %d"
+                    + " threads: %.0f classes/s, %.1f MB/s, %.3f s decoding,"
+                    + " %d failures", classCount, byteCount/1e6, elapsed/1e9,
+                    parallelism, getClassesPerSecond(),
+                    getBytesPerSecond()/1e6, decodeNanos/1e9,
+                    failures.size()));
+            if (!slowest.isEmpty()) {
+                buf.append("\nSlowest classes:");
+                for (Item item: sortedSlowest()) {
+                    buf.append(String.format("\n%10.3f ms %9d bytes  %s",
+                            item.nanos/1e6, item.size, item.source));
+                }
+            }
+            for (String failure: failures) {
+                buf.append("\nFailed: ").append(failure);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+            return buf.toString();
         }
     }
 }
@@ -0,0 +1,69 @@
+package org.tastefuljava.classfile;
+
+/**
+ * Computes the number of stack slots described by field and method
+ * descriptors.
+ */
+final class Descriptor {
+    private Descriptor() {
+    }
+
+    /**
+     * @param type a field descriptor
+     * @return the number of slots taken by a value of that type
+     */
+    static int valueSize(String type) {
+        if (type.isEmpty()) {
+            throw new InvalidTypeException(type);
+        }
+        return slots(type.charAt(0));
+    }
+
+    /**
+     * @param type a method descriptor
+     * @return the number of slots taken by the arguments
+     */
+    static int argsSize(String type) {
+        if (type.isEmpty() || type.charAt(0) != '(') {
+            throw new InvalidTypeException(type);
+        }
+        int size = 0;
+        int pos = 1;
+        int len = type.length();
+        while (pos < len && type.charAt(pos) != ')') {
+            char c = type.charAt(pos);
+            size += slots(c);
+            while (c == '[' && pos + 1 < len) {
+                c = type.charAt(++pos);
+            }
+            if (c == 'L') {
+                pos = type.indexOf(';', pos);
+                if (pos < 0) {
+                    throw new InvalidTypeException(type);
+                }
+            }
+            ++pos;
+        }
+        if (pos + 1 >= len) {
+            throw new InvalidTypeException(type);
+        }
+        return size;
+    }
+
+    /**
+     * @param type a method descriptor
+     * @return the number of slots taken by the return value
+     */
+    static int returnSize(String type) {
+        int pos = type.lastIndexOf(')');
+        if (pos < 0 || pos + 1 >= type.length()) {
+            throw new InvalidTypeException(type);
+        }
+        char c = type.charAt(pos + 1);
+        return c == 'V' ? 0 : slots(c);
+    }
+
+    private static int slots(char c) {
+        return c == 'J' || c == 'D' ? 2 : 1;
+    }
+}
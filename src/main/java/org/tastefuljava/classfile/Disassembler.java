@@ -0,0 +1,650 @@
+package org.tastefuljava.classfile;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * Writes a javap-style listing of classes to an Appendable: the header, the
+ * constant pool, the fields and methods with their attributes, and the
+ * decoded instructions and exception tables of the code, with the constants
+ * they refer to resolved.
+ * <p>The classes are read with a ClassParser, and the listing is written
+ * into a buffer that is flushed to the Appendable whenever it is full, so
+ * no intermediate string is built per line or per class. A disassembler can
+ * be reused for several classes, but not from several threads at the same
+ * time.</p>
+ */
+public class Disassembler implements ClassHandler {
+    private static final int FLUSH_SIZE = 8192;
+    private static final String[] CLASS_FLAGS = {
+        "ACC_PUBLIC", null, null, null, "ACC_FINAL", "ACC_SUPER", null, null,
+        null, "ACC_INTERFACE", "ACC_ABSTRACT", null, "ACC_SYNTHETIC",
+        "ACC_ANNOTATION", "ACC_ENUM", "ACC_MODULE"
+    };
+    private static final String[] FIELD_FLAGS = {
+        "ACC_PUBLIC", "ACC_PRIVATE", "ACC_PROTECTED", "ACC_STATIC",
+        "ACC_FINAL", null, "ACC_VOLATILE", "ACC_TRANSIENT", null, null, null,
+        null, "ACC_SYNTHETIC", null, "ACC_ENUM", null
+    };
+    private static final String[] METHOD_FLAGS = {
+        "ACC_PUBLIC", "ACC_PRIVATE", "ACC_PROTECTED", "ACC_STATIC",
+        "ACC_FINAL", "ACC_SYNCHRONIZED", "ACC_BRIDGE", "ACC_VARARGS",
+        "ACC_NATIVE", null, "ACC_ABSTRACT", "ACC_STRICT", "ACC_SYNTHETIC",
+        null, null, null
+    };
+    private static final String[] TAGS = {
+        null, "Utf8", null, "Integer", "Float", "Long", "Double", "Class",
+        "String", "Fieldref", "Methodref", "InterfaceMethodref",
+        "NameAndType", null, null, "MethodHandle", "MethodType", "Dynamic",
+        "InvokeDynamic", "Module", "Package"
+    };
+    /** the words used by javap to introduce a constant in a comment */
+    private static final String[] KINDS = {
+        null, "Utf8", null, "int", "float", "long", "double", "class",
+        "String", "Field", "Method", "InterfaceMethod", "NameAndType", null,
+        null, "MethodHandle", "MethodType", "Dynamic", "InvokeDynamic",
+        "Module", "Package"
+    };
+    private static final String[] REF_KINDS = {
+        null, "REF_getField", "REF_getStatic", "REF_putField",
+        "REF_putStatic", "REF_invokeVirtual", "REF_invokeStatic",
+        "REF_invokeSpecial", "REF_newInvokeSpecial", "REF_invokeInterface"
+    };
+    private static final String[] ARRAY_TYPES = {
+        null, null, null, null, "boolean", "char", "float", "double", "byte",
+        "short", "int", "long"
+    };
+
+    private final Appendable out;
+    private final StringBuilder buf = new StringBuilder(FLUSH_SIZE + 1024);
+    private final ClassParser parser = new ClassParser(this);
+    /** copy of the code of the current method */
+    private byte[] code = new byte[0];
+    private ConstantPool cp;
+    private int minorVersion;
+    private int majorVersion;
+    /** true once the constant pool has been written */
+    private boolean body;
+    /** true while the attributes of a method are received */
+    private boolean inMethod;
+    /** indentation of the attributes received */
+    private int indent;
+
+    public Disassembler(Appendable out) {
+        this.out = out;
+    }
+
+    public void disassemble(byte[] data) throws IOException {
+        disassemble(ByteBuffer.wrap(data));
+    }
+
+    public void disassemble(Path path) throws IOException {
+        try {
+            parser.parse(path);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        flush();
+    }
+
+    /**
+     * Disassembles the class starting at the position of a buffer, which is
+     * advanced past the class.
+     */
+    public void disassemble(ByteBuffer buffer) throws IOException {
+        try {
+            parser.parse(buffer);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        flush();
+    }
+
+    @Override
+    public void header(int minorVersion, int majorVersion, ConstantPool cp) {
+        this.cp = cp;
+        this.minorVersion = minorVersion;
+        this.majorVersion = majorVersion;
+        body = false;
+        inMethod = false;
+        indent = 2;
+    }
+
+    @Override
+    public void declaration(int accessFlags, short thisClass,
+            short superClass) {
+        buf.append("class ").append(cp.getClassName(thisClass)).append('\n');
+        buf.append("  minor version: ").append(minorVersion).append('\n');
+        buf.append("  major version: ").append(majorVersion).append('\n');
+        buf.append("  flags: ");
+        flags(accessFlags, CLASS_FLAGS);
+        buf.append('\n');
+        buf.append("  this_class: ");
+        ref(thisClass);
+        buf.append("  super_class: ");
+        if (superClass == 0) {
+            buf.append("#0\n");
+        } else {
+            ref(superClass);
+        }
+    }
+
+    @Override
+    public void implement(short classIndex) {
+        buf.append("  interface: ");
+        ref(classIndex);
+    }
+
+    @Override
+    public boolean field(int accessFlags, short nameIndex, short typeIndex) {
+        startBody();
+        buf.append("  field ").append(cp.getUtf8(nameIndex)).append(':')
+                .append(cp.getUtf8(typeIndex)).append('\n');
+        buf.append("    flags: ");
+        flags(accessFlags, FIELD_FLAGS);
+        buf.append('\n');
+        indent = 4;
+        return true;
+    }
+
+    @Override
+    public void endField() {
+        buf.append('\n');
+        indent = 2;
+        maybeFlush();
+    }
+
+    @Override
+    public boolean method(int accessFlags, short nameIndex,
+            short descrIndex) {
+        startBody();
+        buf.append("  method ").append(cp.getUtf8(nameIndex))
+                .append(cp.getUtf8(descrIndex)).append('\n');
+        buf.append("    flags: ");
+        flags(accessFlags, METHOD_FLAGS);
+        buf.append('\n');
+        inMethod = true;
+        indent = 4;
+        return true;
+    }
+
+    @Override
+    public void endMethod() {
+        buf.append('\n');
+        inMethod = false;
+        indent = 2;
+        maybeFlush();
+    }
+
+    @Override
+    public boolean rawCode() {
+        return true;
+    }
+
+    @Override
+    public void attribute(short nameIndex, ByteBuffer data) {
+        startBody();
+        attribute(cp.getUtf8(nameIndex), data.slice(), indent);
+    }
+
+    @Override
+    public void end() {
+        startBody();
+        buf.append("}\n");
+        cp = null;
+    }
+
+    private void startBody() {
+        if (!body) {
+            body = true;
+            constantPool();
+            buf.append("{\n");
+            indent = 2;
+        }
+    }
+
+    private void constantPool() {
+        buf.append("Constant pool:\n");
+        for (int i = 1; i < cp.getCount(); ++i) {
+            short index = (short)i;
+            int tag = cp.getTag(index);
+            if (tag == 0) {
+                continue;
+            }
+            buf.append(' ');
+            pad(Integer.toString(i).length() + 1, 5);
+            buf.append('#').append(i).append(" = ");
+            int start = buf.length();
+            buf.append(TAGS[tag]);
+            pad(buf.length() - start, 19);
+            start = buf.length();
+            switch (tag) {
+            case ConstantPool.CP_CLASS:
+                buf.append('#').append(cp.getClassNameIndex(index));
+                break;
+            case ConstantPool.CP_STRING:
+                buf.append('#').append(cp.getStringIndex(index));
+                break;
+            case ConstantPool.CP_FIELDREF:
+            case ConstantPool.CP_METHODREF:
+            case ConstantPool.CP_INTERFACEMETHODREF:
+                buf.append('#').append(cp.getRefClassIndex(index))
+                        .append(".#")
+                        .append(cp.getRefNameAndTypeIndex(index));
+                break;
+            case ConstantPool.CP_NAMEANDTYPE:
+                buf.append('#').append(cp.getNameIndex(index)).append(":#")
+                        .append(cp.getTypeIndex(index));
+                break;
+            case ConstantPool.CP_METHODHANDLE:
+                buf.append(cp.getMethodHandleKind(index)).append(":#")
+                        .append(cp.getMethodHandleRefIndex(index));
+                break;
+            case ConstantPool.CP_DYNAMIC:
+            case ConstantPool.CP_INVOKEDYNAMIC:
+                buf.append('#').append(cp.getBootstrapIndex(index))
+                        .append(":#")
+                        .append(cp.getBootstrapNameAndTypeIndex(index));
+                break;
+            default:
+                constant(index, tag);
+                buf.append('\n');
+                continue;
+            }
+            pad(buf.length() - start, 15);
+            buf.append("// ");
+            constant(index, tag);
+            buf.append('\n');
+            maybeFlush();
+        }
+    }
+
+    private void attribute(String name, ByteBuffer data, int indent) {
+        if (inMethod && name.equals("Code")) {
+            code(data);
+            return;
+        }
+        indent(indent);
+        buf.append(name).append(':');
+        switch (name) {
+        case "SourceFile":
+        case "Signature":
+            buf.append(' ').append(cp.getUtf8(data.getShort(0))).append('\n');
+            break;
+        case "ConstantValue": {
+            short index = data.getShort(0);
+            buf.append(' ').append(KINDS[cp.getTag(index)]).append(' ');
+            constant(index, cp.getTag(index));
+            buf.append('\n');
+            break;
+        }
+        case "Exceptions":
+            buf.append('\n');
+            for (int i = 0, n = data.getShort(0) & 0xFFFF; i < n; ++i) {
+                indent(indent + 2);
+                buf.append("throws ")
+                        .append(cp.getClassName(data.getShort(2 + 2*i)))
+                        .append('\n');
+            }
+            break;
+        case "LineNumberTable":
+            buf.append('\n');
+            for (int i = 0, n = data.getShort(0) & 0xFFFF; i < n; ++i) {
+                indent(indent + 2);
+                buf.append("line ")
+                        .append(data.getShort(4 + 4*i) & 0xFFFF)
+                        .append(": ")
+                        .append(data.getShort(2 + 4*i) & 0xFFFF)
+                        .append('\n');
+            }
+            break;
+        default:
+            buf.append(' ').append(data.remaining()).append(" bytes\n");
+            break;
+        }
+    }
+
+    private void code(ByteBuffer data) {
+        int maxStack = data.getShort(0) & 0xFFFF;
+        int maxLocals = data.getShort(2) & 0xFFFF;
+        int length = data.getInt(4);
+        indent(4);
+        buf.append("Code:\n");
+        indent(6);
+        buf.append("stack=").append(maxStack).append(", locals=")
+                .append(maxLocals).append('\n');
+        if (code.length < length) {
+            code = new byte[length];
+        }
+        BufferInput.setPosition(data, 8);
+        data.get(code, 0, length);
+        for (int pc = 0; pc < length;
+                pc += ByteCode.instructionLength(code, 0, pc)) {
+            instruction(pc);
+            maybeFlush();
+        }
+        int n = data.getShort() & 0xFFFF;
+        if (n > 0) {
+            indent(6);
+            buf.append("Exception table:\n");
+            indent(9);
+            buf.append("from    to  target type\n");
+            for (int i = 0; i < n; ++i) {
+                indent(8);
+                number(data.getShort() & 0xFFFF, 5);
+                number(data.getShort() & 0xFFFF, 6);
+                number(data.getShort() & 0xFFFF, 6);
+                short type = data.getShort();
+                buf.append("   ");
+                if (type == 0) {
+                    buf.append("any\n");
+                } else {
+                    buf.append("Class ").append(cp.getClassName(type))
+                            .append('\n');
+                }
+            }
+        }
+        boolean saved = inMethod;
+        inMethod = false;
+        for (int i = 0, count = data.getShort() & 0xFFFF; i < count; ++i) {
+            String name = cp.getUtf8(data.getShort());
+            int size = data.getInt();
+            ByteBuffer attr = data.slice();
+            ((Buffer)attr).limit(size);
+            attribute(name, attr, 6);
+            BufferInput.setPosition(data, data.position() + size);
+        }
+        inMethod = saved;
+    }
+
+    private void instruction(int pc) {
+        int opcode = code[pc] & 0xFF;
+        number(pc, 10);
+        buf.append(": ");
+        if (opcode == ByteCode.WIDE) {
+            opcode = code[pc + 1] & 0xFF;
+            buf.append("wide ").append(ByteCode.mnemonic(opcode)).append(' ')
+                    .append(getShort(pc + 2) & 0xFFFF);
+            if (opcode == ByteCode.IINC) {
+                buf.append(", ").append(getShort(pc + 4));
+            }
+            buf.append('\n');
+            return;
+        }
+        int start = buf.length();
+        buf.append(ByteCode.mnemonic(opcode));
+        switch (opcode) {
+        case ByteCode.BIPUSH:
+            buf.append(' ').append(code[pc + 1]);
+            break;
+        case ByteCode.SIPUSH:
+            buf.append(' ').append(getShort(pc + 1));
+            break;
+        case ByteCode.NEWARRAY:
+            buf.append(' ').append(ARRAY_TYPES[code[pc + 1] & 0xF]);
+            break;
+        case ByteCode.ILOAD:
+        case ByteCode.LLOAD:
+        case ByteCode.FLOAD:
+        case ByteCode.DLOAD:
+        case ByteCode.ALOAD:
+        case ByteCode.ISTORE:
+        case ByteCode.LSTORE:
+        case ByteCode.FSTORE:
+        case ByteCode.DSTORE:
+        case ByteCode.ASTORE:
+        case ByteCode.RET:
+            buf.append(' ').append(code[pc + 1] & 0xFF);
+            break;
+        case ByteCode.IINC:
+            buf.append(' ').append(code[pc + 1] & 0xFF).append(", ")
+                    .append(code[pc + 2]);
+            break;
+        case ByteCode.LDC:
+            constantRef(start, (short)(code[pc + 1] & 0xFF), null);
+            break;
+        case ByteCode.LDC_W:
+        case ByteCode.LDC2_W:
+        case ByteCode.GETSTATIC:
+        case ByteCode.PUTSTATIC:
+        case ByteCode.GETFIELD:
+        case ByteCode.PUTFIELD:
+        case ByteCode.INVOKEVIRTUAL:
+        case ByteCode.INVOKESPECIAL:
+        case ByteCode.INVOKESTATIC:
+        case ByteCode.NEW:
+        case ByteCode.ANEWARRAY:
+        case ByteCode.CHECKCAST:
+        case ByteCode.INSTANCEOF:
+            constantRef(start, getShort(pc + 1), null);
+            break;
+        case ByteCode.INVOKEINTERFACE:
+            constantRef(start, getShort(pc + 1), code[pc + 3] & 0xFF);
+            break;
+        case ByteCode.INVOKEDYNAMIC:
+            constantRef(start, getShort(pc + 1), 0);
+            break;
+        case ByteCode.MULTIANEWARRAY:
+            constantRef(start, getShort(pc + 1), code[pc + 3] & 0xFF);
+            break;
+        case ByteCode.GOTO_W:
+        case ByteCode.JSR_W:
+            buf.append(' ').append(pc + ByteCode.getInt(code, pc + 1));
+            break;
+        case ByteCode.TABLESWITCH: {
+            int pos = pc + 1 + ByteCode.padding(pc);
+            int low = ByteCode.getInt(code, pos + 4);
+            int high = ByteCode.getInt(code, pos + 8);
+            buf.append("   { // ").append(low).append(" to ").append(high)
+                    .append('\n');
+            for (int i = 0; i <= high - low; ++i) {
+                switchCase(Integer.toString(low + i),
+                        pc + ByteCode.getInt(code, pos + 12 + 4*i));
+            }
+            switchEnd(pc + ByteCode.getInt(code, pos));
+            return;
+        }
+        case ByteCode.LOOKUPSWITCH: {
+            int pos = pc + 1 + ByteCode.padding(pc);
+            int npairs = ByteCode.getInt(code, pos + 4);
+            buf.append("  { // ").append(npairs).append('\n');
+            for (int i = 0; i < npairs; ++i) {
+                switchCase(Integer.toString(
+                        ByteCode.getInt(code, pos + 8 + 8*i)),
+                        pc + ByteCode.getInt(code, pos + 12 + 8*i));
+            }
+            switchEnd(pc + ByteCode.getInt(code, pos));
+            return;
+        }
+        default:
+            if (opcode >= ByteCode.IFEQ && opcode <= ByteCode.JSR
+                    || opcode == ByteCode.IFNULL
+                    || opcode == ByteCode.IFNONNULL) {
+                buf.append(' ').append(pc + getShort(pc + 1));
+            }
+            break;
+        }
+        buf.append('\n');
+    }
+
+    private void switchCase(String match, int target) {
+        indent(24);
+        pad(match.length(), 11);
+        buf.append(match).append(": ").append(target).append('\n');
+    }
+
+    private void switchEnd(int target) {
+        indent(24);
+        buf.append("    default: ").append(target).append('\n');
+        indent(17);
+        buf.append("}\n");
+    }
+
+    private void constantRef(int start, short index, Integer extra) {
+        int tag = cp.getTag(index);
+        pad(buf.length() - start, 14);
+        buf.append('#').append(index & 0xFFFF);
+        if (extra != null) {
+            buf.append(",  ").append(extra.intValue());
+        }
+        pad(buf.length() - start, 33);
+        buf.append("// ").append(KINDS[tag]).append(' ');
+        constant(index, tag);
+    }
+
+    /**
+     * Appends the value of a constant, with the names it refers to resolved.
+     */
+    private void constant(short index, int tag) {
+        switch (tag) {
+        case ConstantPool.CP_UTF8:
+            escape(cp.getUtf8(index));
+            break;
+        case ConstantPool.CP_INTEGER:
+            buf.append(cp.getNumber(index).intValue());
+            break;
+        case ConstantPool.CP_FLOAT:
+            buf.append(cp.getNumber(index).floatValue()).append('f');
+            break;
+        case ConstantPool.CP_LONG:
+            buf.append(cp.getNumber(index).longValue()).append('l');
+            break;
+        case ConstantPool.CP_DOUBLE:
+            buf.append(cp.getNumber(index).doubleValue()).append('d');
+            break;
+        case ConstantPool.CP_CLASS:
+            buf.append(cp.getClassName(index));
+            break;
+        case ConstantPool.CP_STRING:
+            escape(cp.getString(index));
+            break;
+        case ConstantPool.CP_FIELDREF:
+        case ConstantPool.CP_METHODREF:
+        case ConstantPool.CP_INTERFACEMETHODREF:
+            buf.append(cp.getRefClassName(index)).append('.');
+            member(cp.getRefName(index), cp.getRefType(index));
+            break;
+        case ConstantPool.CP_NAMEANDTYPE:
+            member(cp.getName(index), cp.getType(index));
+            break;
+        case ConstantPool.CP_METHODHANDLE: {
+            short ref = cp.getMethodHandleRefIndex(index);
+            buf.append(REF_KINDS[cp.getMethodHandleKind(index)]).append(' ');
+            constant(ref, cp.getTag(ref));
+            break;
+        }
+        case ConstantPool.CP_METHODTYPE:
+            buf.append(cp.getMethodType(index));
+            break;
+        case ConstantPool.CP_DYNAMIC:
+        case ConstantPool.CP_INVOKEDYNAMIC:
+            buf.append('#').append(cp.getBootstrapIndex(index)).append(':');
+            member(cp.getBootstrapName(index), cp.getBootstrapType(index));
+            break;
+        case ConstantPool.CP_MODULE:
+            buf.append(cp.getModuleName(index));
+            break;
+        case ConstantPool.CP_PACKAGE:
+            buf.append(cp.getPackageName(index));
+            break;
+        default:
+            throw new ClassFileException("Invalid constant tag " + tag);
+        }
+    }
+
+    private void member(String name, String type) {
+        if (name.startsWith("<")) {
+            buf.append('"').append(name).append('"');
+        } else {
+            buf.append(name);
+        }
+        buf.append(':').append(type);
+    }
+
+    private void ref(short index) {
+        buf.append('#').append(index & 0xFFFF);
+        pad(Integer.toString(index & 0xFFFF).length() + 1, 27);
+        buf.append("// ").append(cp.getClassName(index)).append('\n');
+    }
+
+    private void flags(int flags, String[] names) {
+        buf.append("(0x");
+        String hex = Integer.toHexString(flags & 0xFFFF);
+        for (int i = hex.length(); i < 4; ++i) {
+            buf.append('0');
+        }
+        buf.append(hex).append(')');
+        String sep = " ";
+        for (int i = 0; i < names.length; ++i) {
+            if ((flags & (1 << i)) != 0 && names[i] != null) {
+                buf.append(sep).append(names[i]);
+                sep = ", ";
+            }
+        }
+    }
+
+    private void escape(String s) {
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '\n':
+                buf.append("\\n");
+                break;
+            case '\r':
+                buf.append("\\r");
+                break;
+            case '\t':
+                buf.append("\\t");
+                break;
+            default:
+                buf.append(c);
+                break;
+            }
+        }
+    }
+
+    private void indent(int n) {
+        for (int i = 0; i < n; ++i) {
+            buf.append(' ');
+        }
+    }
+
+    /**
+     * Appends spaces after text of the given length, up to the given width,
+     * and at least one.
+     */
+    private void pad(int length, int width) {
+        indent(Math.max(1, width - length));
+    }
+
+    /**
+     * Appends a number right-aligned in the given width.
+     */
+    private void number(int value, int width) {
+        String s = Integer.toString(value);
+        indent(width - s.length());
+        buf.append(s);
+    }
+
+    private short getShort(int pos) {
+        return (short)(((code[pos] & 0xFF) << 8) | (code[pos + 1] & 0xFF));
+    }
+
+    private void maybeFlush() {
+        if (buf.length() >= FLUSH_SIZE) {
+            try {
+                flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        out.append(buf);
+        buf.setLength(0);
+    }
+}
@@ -1,5 +1,6 @@
 package org.tastefuljava.classfile;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -25,6 +26,8 @@ public class FieldInfo {
     private short nameIndex;
     private short typeIndex;
     private final List<AttributeInfo> attributes = new ArrayList<>();
+    /** the bytes of the field as loaded, or null if modified */
+    private ByteBuffer original;
 
     public FieldInfo(int accessFlags, short nameIndex, short typeIndex) {
         this.accessFlags = (short)accessFlags;
@@ -41,6 +44,7 @@ public class FieldInfo {
 
     public void setAccessFlags(short newValue) {
         accessFlags = newValue;
+        original = null;
     }
 
     public short getNameIndex() {
@@ -49,6 +53,7 @@ public class FieldInfo {
 
     public void setNameIndex(short newValue) {
         nameIndex = newValue;
+        original = null;
     }
 
     public short getTypeIndex() {
@@ -57,6 +62,7 @@ public class FieldInfo {
 
     public void setTypeIndex(short newValue) {
         typeIndex = newValue;
+        original = null;
     }
 
     public AttributeInfo[] getAttributes() {
@@ -65,17 +71,43 @@ public class FieldInfo {
 
     public void addAttribute(AttributeInfo attr) {
         attributes.add(attr);
+        original = null;
+    }
+
+    /**
+     * Tells whether the field has been modified, or might have been, since it
+     * was loaded from a buffer. Unmodified fields are stored by copying their
+     * original bytes.
+     */
+    public boolean isModified() {
+        return original == null || AttributeInfo.isModified(attributes);
     }
 
     void load(DataInput input) throws IOException {
+        int start = input instanceof BufferInput
+                ? ((BufferInput)input).getPosition() : -1;
         accessFlags = input.readShort();
         nameIndex = input.readShort();
         typeIndex = input.readShort();
         attributes.clear();
         attributes.addAll(AttributeInfo.loadList(input));
+        original = start < 0 ? null : ((BufferInput)input).sliceFrom(start);
+    }
+
+    /**
+     * Returns the number of bytes written by store.
+     */
+    public int sizeInBytes() {
+        return !isModified()
+                ? original.remaining()
+                : 6 + AttributeInfo.sizeInBytes(attributes);
     }
 
     void store(DataOutput output) throws IOException {
+        if (!isModified()) {
+            BufferOutput.write(output, original);
+            return;
+        }
         output.writeShort(accessFlags);
         output.writeShort(nameIndex);
         output.writeShort(typeIndex);
@@ -0,0 +1,217 @@
+package org.tastefuljava.classfile;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Class loaders for generated classes, one per key chosen by the caller.
+ * <p>All the classes defined with the same key share a class loader, so
+ * they can see each other; the classes of a batch can reference each other
+ * in any order. Dropping a key releases its class loader: once no instance,
+ * class or loader of the group is reachable, the classes can be unloaded and
+ * their Metaspace reclaimed.</p>
+ * <p>The Metaspace used by each group is estimated by measuring the
+ * Metaspace memory pool before and after each batch; the estimate is only
+ * accurate when classes are not loaded concurrently by other threads. When
+ * there is no Metaspace pool, the size of the class files is used.</p>
+ */
+public class GeneratedClassLoaders {
+    private static final Logger LOG
+            = Logger.getLogger(GeneratedClassLoaders.class.getName());
+    private static final MemoryPoolMXBean METASPACE = findMetaspace();
+
+    private final ClassLoader parent;
+    private final Map<Object,GroupLoader> loaders = new ConcurrentHashMap<>();
+
+    public GeneratedClassLoaders(ClassLoader parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Defines a batch of classes in the class loader of a key, creating the
+     * loader if needed.
+     * @return the classes, in the order of the batch
+     */
+    public List<Class<?>> define(Object key, Collection<ClassFile> classes) {
+        Map<String,byte[]> batch = new LinkedHashMap<>();
+        try {
+            for (ClassFile cf: classes) {
+                String name = cf.getClassName().replace('/', '.');
+                if (batch.put(name, cf.toBytes()) != null) {
+                    throw new ClassFileException("Duplicate class " + name);
+                }
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+            throw new ClassFileException(ex.getMessage());
+        }
+        return loaders.computeIfAbsent(key, (k) -> new GroupLoader(parent))
+                .define(batch);
+    }
+
+    public Class<?> define(Object key, ClassFile cf) {
+        return define(key, Collections.singletonList(cf)).get(0);
+    }
+
+    /**
+     * Returns the class loader of a key, or null if no class has been
+     * defined with this key.
+     */
+    public ClassLoader getLoader(Object key) {
+        return loaders.get(key);
+    }
+
+    /**
+     * Forgets the class loader of a key, so that its classes can be unloaded.
+     * @return true if there was a loader for the key
+     */
+    public boolean drop(Object key) {
+        return loaders.remove(key) != null;
+    }
+
+    /**
+     * Returns the usage of each class loader, by key.
+     */
+    public Map<Object,Usage> getUsage() {
+        Map<Object,Usage> result = new HashMap<>();
+        for (Map.Entry<Object,GroupLoader> e: loaders.entrySet()) {
+            result.put(e.getKey(), e.getValue().getUsage());
+        }
+        return result;
+    }
+
+    public Usage getUsage(Object key) {
+        GroupLoader loader = loaders.get(key);
+        return loader == null ? null : loader.getUsage();
+    }
+
+    private static MemoryPoolMXBean findMetaspace() {
+        for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getName().equals("Metaspace")) {
+                return pool;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The number of classes defined by a class loader, the total size of
+     * their class files and the estimated size of their Metaspace.
+     */
+    public static final class Usage {
+        private final int classCount;
+        private final long classBytes;
+        private final long metaspace;
+
+        private Usage(int classCount, long classBytes, long metaspace) {
+            this.classCount = classCount;
+            this.classBytes = classBytes;
+            this.metaspace = metaspace;
+        }
+
+        public int getClassCount() {
+            return classCount;
+        }
+
+        public long getClassBytes() {
+            return classBytes;
+        }
+
+        public long getMetaspaceEstimate() {
+            return metaspace;
+        }
+
+        @Override
+        public String toString() {
+            return classCount + " classes, " + classBytes + " bytes, ~"
+                    + metaspace + " bytes of Metaspace";
+        }
+    }
+
+    private static class GroupLoader extends ClassLoader {
+        /** the classes of the current batch that are not defined yet */
+        private final Map<String,byte[]> pending = new HashMap<>();
+        private int classCount;
+        private long classBytes;
+        private long metaspace;
+
+        private GroupLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        private synchronized List<Class<?>> define(Map<String,byte[]> batch) {
+            for (String name: batch.keySet()) {
+                if (findLoadedClass(name) != null) {
+                    throw new ClassFileException("Duplicate class " + name);
+                }
+            }
+            long before = METASPACE == null
+                    ? 0 : METASPACE.getUsage().getUsed();
+            long size = 0;
+            pending.putAll(batch);
+            List<Class<?>> result = new ArrayList<>(batch.size());
+            try {
+                for (Map.Entry<String,byte[]> e: batch.entrySet()) {
+                    result.add(loadClass(e.getKey()));
+                    size += e.getValue().length;
+                }
+            } catch (ClassNotFoundException | LinkageError ex) {
+                LOG.log(Level.SEVERE, null, ex);
+                throw new ClassFileException(ex.getMessage());
+            } finally {
+                pending.clear();
+            }
+            classCount += result.size();
+            classBytes += size;
+            metaspace += METASPACE == null ? size
+                    : Math.max(0, METASPACE.getUsage().getUsed() - before);
+            return result;
+        }
+
+        private synchronized Usage getUsage() {
+            return new Usage(classCount, classBytes, metaspace);
+        }
+
+        /**
+         * Defines the pending classes of the batch in this loader, before
+         * delegating to the parent, so that a class of the parent cannot
+         * shadow a class of the batch.
+         */
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve)
+                throws ClassNotFoundException {
+            synchronized (getClassLoadingLock(name)) {
+                if (pending.containsKey(name)
+                        && findLoadedClass(name) == null) {
+                    Class<?> cls = findClass(name);
+                    if (resolve) {
+                        resolveClass(cls);
+                    }
+                    return cls;
+                }
+                return super.loadClass(name, resolve);
+            }
+        }
+
+        @Override
+        protected Class<?> findClass(String name)
+                throws ClassNotFoundException {
+            byte[] bytes = pending.remove(name);
+            if (bytes == null) {
+                throw new ClassNotFoundException(name);
+            }
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
@@ -7,6 +7,8 @@ public class Label {
     private boolean defined;
     private int location;
     private final List<LabelRef> refs = new ArrayList<>();
+    /** the segments in which the references were written, in order */
+    private final List<CodeSegment> segments = new ArrayList<>();
 
     public Label() {
     }
@@ -28,6 +30,7 @@ public class Label {
         for (LabelRef ref: refs) {
             copy.refs.add(ref.copy(offset));
         }
+        copy.segments.addAll(segments);
         return copy;
     }
 
@@ -36,14 +39,22 @@ public class Label {
         location = newLoc;
     }
 
+    /**
+     * Fixes the references to this label, which is defined in a segment. A
+     * reference written in a child segment is fixed in the child, with the
+     * location of the label relative to the child.
+     */
     void fixupRefs(CodeSegment code) {
-        for (LabelRef ref: refs) {
-            ref.fixup(code, location);
-            code.removeRef(ref);
+        for (int i = 0; i < refs.size(); ++i) {
+            CodeSegment segment = segments.get(i);
+            refs.get(i).fixup(segment, location - segment.offsetIn(code));
         }
+        refs.clear();
+        segments.clear();
     }
 
-    void addRef(LabelRef ref) {
+    void addRef(CodeSegment segment, LabelRef ref) {
         refs.add(ref);
+        segments.add(segment);
     }
 }
@@ -0,0 +1,343 @@
+package org.tastefuljava.classfile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Rewrites the Code attributes of a method so that some of its ldc
+ * instructions become ldc_w, typically because the constants they load are
+ * renumbered above 255. The instructions that follow are relocated: the
+ * branch and switch offsets, the padding of the switches, the exception
+ * table, and the offsets in the LineNumberTable, LocalVariableTable,
+ * LocalVariableTypeTable and StackMapTable attributes of the code are
+ * adjusted. Branches are not widened: a branch whose offset no longer fits
+ * in 16 bits is an error.
+ */
+final class LdcWidener {
+    private final ConstantPool cp;
+    /** data of the Code attribute */
+    private final byte[] data;
+    /** length of the code */
+    private final int length;
+    /** the new offset of each instruction, or -1 */
+    private final int[] pcs;
+
+    private LdcWidener(ConstantPool cp, byte[] data) {
+        this.cp = cp;
+        this.data = data;
+        this.length = ByteCode.getInt(data, 4);
+        this.pcs = new int[length + 1];
+    }
+
+    /**
+     * Widens the ldc instructions of the Code attributes of a method. The
+     * method is only modified if all its Code attributes can be rewritten.
+     * @param cp the constant pool the method refers to
+     * @param method the method to rewrite
+     * @param wide tells, for each index of cp, whether an ldc loading that
+     * constant must become an ldc_w
+     * @throws ClassFileException if the code is too large, or if a branch
+     * is too long, once the ldc instructions have been widened
+     */
+    static void widen(ConstantPool cp, MethodInfo method, boolean[] wide) {
+        AttributeInfo[] attrs = method.getAttributes();
+        byte[][] widened = new byte[attrs.length][];
+        for (int i = 0; i < attrs.length; ++i) {
+            if (cp.getUtf8(attrs[i].getNameIndex()).equals("Code")) {
+                widened[i] = new LdcWidener(cp, attrs[i].getData())
+                        .widen(wide);
+            }
+        }
+        for (int i = 0; i < attrs.length; ++i) {
+            if (widened[i] != null) {
+                attrs[i].setData(widened[i]);
+            }
+        }
+    }
+
+    private byte[] widen(boolean[] wide) {
+        relocate(wide);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                data.length + 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            /* max_stack and max_locals */
+            out.write(data, 0, 4);
+            out.writeInt(pcs[length]);
+            code(out, wide);
+            int pos = 8 + length;
+            int count = u2(pos);
+            out.writeShort(count);
+            pos += 2;
+            for (int i = 0; i < count; ++i) {
+                out.writeShort(pc(u2(pos)));
+                out.writeShort(pc(u2(pos + 2)));
+                out.writeShort(pc(u2(pos + 4)));
+                out.writeShort(u2(pos + 6));
+                pos += 8;
+            }
+            count = u2(pos);
+            out.writeShort(count);
+            pos += 2;
+            for (int i = 0; i < count; ++i) {
+                int size = ByteCode.getInt(data, pos + 2);
+                byte[] attr = attribute(cp.getUtf8((short)u2(pos)),
+                        pos + 6, size);
+                out.write(data, pos, 2);
+                out.writeInt(attr.length);
+                out.write(attr);
+                pos += 6 + size;
+            }
+        } catch (IOException ex) {
+            throw new ClassFileException(ex.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Computes the new offset of each instruction. Widening only moves
+     * instructions forward, so a single pass is enough: the padding of a
+     * switch only depends on its new offset.
+     */
+    private void relocate(boolean[] wide) {
+        Arrays.fill(pcs, -1);
+        int newPc = 0;
+        int pc = 0;
+        while (pc < length) {
+            pcs[pc] = newPc;
+            int opcode = data[8 + pc] & 0xFF;
+            int size = ByteCode.instructionLength(data, 8, pc);
+            if (opcode == ByteCode.LDC && wide[data[8 + pc + 1] & 0xFF]) {
+                newPc += 3;
+            } else if (opcode == ByteCode.TABLESWITCH
+                    || opcode == ByteCode.LOOKUPSWITCH) {
+                newPc += size - ByteCode.padding(pc)
+                        + ByteCode.padding(newPc);
+            } else {
+                newPc += size;
+            }
+            pc += size;
+        }
+        pcs[length] = newPc;
+        if (newPc > 0xFFFF) {
+            throw new ClassFileException(
+                    "Code too large once ldc is widened: " + newPc);
+        }
+    }
+
+    private void code(DataOutputStream out, boolean[] wide)
+            throws IOException {
+        int pc = 0;
+        while (pc < length) {
+            int opcode = data[8 + pc] & 0xFF;
+            int size = ByteCode.instructionLength(data, 8, pc);
+            switch (opcode) {
+            case ByteCode.LDC:
+                int index = data[8 + pc + 1] & 0xFF;
+                if (wide[index]) {
+                    out.writeByte(ByteCode.LDC_W);
+                    out.writeShort(index);
+                } else {
+                    out.write(data, 8 + pc, size);
+                }
+                break;
+
+            case ByteCode.GOTO_W:
+            case ByteCode.JSR_W:
+                out.writeByte(opcode);
+                out.writeInt(offset(pc, ByteCode.getInt(data, 8 + pc + 1)));
+                break;
+
+            case ByteCode.TABLESWITCH:
+            case ByteCode.LOOKUPSWITCH:
+                switchInstruction(out, opcode, pc);
+                break;
+
+            default:
+                if (opcode >= ByteCode.IFEQ && opcode <= ByteCode.JSR
+                        || opcode == ByteCode.IFNULL
+                        || opcode == ByteCode.IFNONNULL) {
+                    int offset = offset(pc, (short)u2(8 + pc + 1));
+                    if (offset != (short)offset) {
+                        throw new ClassFileException(
+                                "Branch too long once ldc is widened: "
+                                + offset);
+                    }
+                    out.writeByte(opcode);
+                    out.writeShort(offset);
+                } else {
+                    out.write(data, 8 + pc, size);
+                }
+                break;
+            }
+            pc += size;
+        }
+    }
+
+    private void switchInstruction(DataOutputStream out, int opcode, int pc)
+            throws IOException {
+        out.writeByte(opcode);
+        for (int i = ByteCode.padding(pcs[pc]); i > 0; --i) {
+            out.writeByte(0);
+        }
+        int pos = 8 + pc + 1 + ByteCode.padding(pc);
+        out.writeInt(offset(pc, ByteCode.getInt(data, pos)));
+        if (opcode == ByteCode.TABLESWITCH) {
+            int low = ByteCode.getInt(data, pos + 4);
+            int high = ByteCode.getInt(data, pos + 8);
+            out.writeInt(low);
+            out.writeInt(high);
+            for (int i = 0; i < high - low + 1; ++i) {
+                out.writeInt(offset(pc,
+                        ByteCode.getInt(data, pos + 12 + 4*i)));
+            }
+        } else {
+            int npairs = ByteCode.getInt(data, pos + 4);
+            out.writeInt(npairs);
+            for (int i = 0; i < npairs; ++i) {
+                out.writeInt(ByteCode.getInt(data, pos + 8 + 8*i));
+                out.writeInt(offset(pc,
+                        ByteCode.getInt(data, pos + 12 + 8*i)));
+            }
+        }
+    }
+
+    private byte[] attribute(String name, int pos, int size)
+            throws IOException {
+        byte[] result = Arrays.copyOfRange(data, pos, pos + size);
+        switch (name) {
+        case "LineNumberTable":
+            for (int i = 0, n = u2(pos); i < n; ++i) {
+                int p = 2 + 4*i;
+                putShort(result, p, pc(u2(pos + p)));
+            }
+            break;
+
+        case "LocalVariableTable":
+        case "LocalVariableTypeTable":
+            for (int i = 0, n = u2(pos); i < n; ++i) {
+                int p = 2 + 10*i;
+                int start = u2(pos + p);
+                int end = start + u2(pos + p + 2);
+                putShort(result, p, pc(start));
+                putShort(result, p + 2, pc(end) - pc(start));
+            }
+            break;
+
+        case "StackMapTable":
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(size + 16);
+            stackMapTable(new DataOutputStream(bytes), pos);
+            result = bytes.toByteArray();
+            break;
+        }
+        return result;
+    }
+
+    private void stackMapTable(DataOutputStream out, int pos)
+            throws IOException {
+        int count = u2(pos);
+        out.writeShort(count);
+        pos += 2;
+        int offset = -1;
+        int newOffset = -1;
+        for (int i = 0; i < count; ++i) {
+            int type = data[pos++] & 0xFF;
+            int delta;
+            if (type < 128) {
+                delta = type & 63;
+            } else if (type >= 247) {
+                delta = u2(pos);
+                pos += 2;
+            } else {
+                throw new ClassFileException("Invalid stack map frame: "
+                        + type);
+            }
+            offset += delta + 1;
+            int next = pc(offset);
+            delta = next - newOffset - 1;
+            newOffset = next;
+            if (type < 64) {
+                /* same_frame */
+                if (delta < 64) {
+                    out.writeByte(delta);
+                } else {
+                    out.writeByte(251);
+                    out.writeShort(delta);
+                }
+            } else if (type < 128) {
+                /* same_locals_1_stack_item_frame */
+                if (delta < 64) {
+                    out.writeByte(64 + delta);
+                } else {
+                    out.writeByte(247);
+                    out.writeShort(delta);
+                }
+                pos = verificationType(out, pos);
+            } else {
+                out.writeByte(type);
+                out.writeShort(delta);
+                if (type == 247) {
+                    pos = verificationType(out, pos);
+                } else if (type >= 252 && type <= 254) {
+                    for (int j = 251; j < type; ++j) {
+                        pos = verificationType(out, pos);
+                    }
+                } else if (type == 255) {
+                    for (int k = 0; k < 2; ++k) {
+                        int n = u2(pos);
+                        out.writeShort(n);
+                        pos += 2;
+                        for (int j = 0; j < n; ++j) {
+                            pos = verificationType(out, pos);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private int verificationType(DataOutputStream out, int pos)
+            throws IOException {
+        out.writeByte(data[pos]);
+        switch (data[pos]) {
+        case 7:
+            /* Object_variable_info */
+            out.write(data, pos + 1, 2);
+            return pos + 3;
+        case 8:
+            /* Uninitialized_variable_info */
+            out.writeShort(pc(u2(pos + 1)));
+            return pos + 3;
+        default:
+            return pos + 1;
+        }
+    }
+
+    /**
+     * Returns the new offset of an instruction, or of the end of the code.
+     */
+    private int pc(int pc) {
+        if (pc < 0 || pc > length || pcs[pc] < 0) {
+            throw new ClassFileException("Invalid code offset: " + pc);
+        }
+        return pcs[pc];
+    }
+
+    /**
+     * Returns the new offset of a branch from the instruction at pc.
+     */
+    private int offset(int pc, int offset) {
+        return pc(pc + offset) - pcs[pc];
+    }
+
+    private int u2(int pos) {
+        return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+    }
+
+    private static void putShort(byte[] buf, int pos, int value) {
+        buf[pos] = (byte)(value >>> 8);
+        buf[pos + 1] = (byte)value;
+    }
+}
@@ -1,5 +1,6 @@
 package org.tastefuljava.classfile;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -27,6 +28,8 @@ public class MethodInfo {
     private short nameIndex;
     private short descrIndex;
     private List<AttributeInfo> attributes = new ArrayList<>();
+    /** the bytes of the method as loaded, or null if modified */
+    private ByteBuffer original;
 
     public MethodInfo() {
     }
@@ -43,6 +46,7 @@ public class MethodInfo {
 
     public void setAccessFlags(short newValue) {
         accessFlags = newValue;
+        original = null;
     }
 
     public short getNameIndex() {
@@ -51,6 +55,7 @@ public class MethodInfo {
 
     public void setNameIndex(short newValue) {
         nameIndex = newValue;
+        original = null;
     }
 
     public short getDescrIndex() {
@@ -59,6 +64,7 @@ public class MethodInfo {
 
     public void setDescrIndex(short newValue) {
         descrIndex = newValue;
+        original = null;
     }
 
     public AttributeInfo[] getAttributes() {
@@ -67,6 +73,16 @@ public class MethodInfo {
 
     public void addAttribute(AttributeInfo attr) {
         attributes.add(attr);
+        original = null;
+    }
+
+    /**
+     * Tells whether the method has been modified, or might have been, since it
+     * was loaded from a buffer. Unmodified methods are stored by copying their
+     * original bytes.
+     */
+    public boolean isModified() {
+        return original == null || AttributeInfo.isModified(attributes);
     }
 
     public AttributeInfo findAttribute(short nameIndex) {
@@ -79,13 +95,29 @@ public class MethodInfo {
     }
 
     public void load(DataInput input) throws IOException {
+        int start = input instanceof BufferInput
+                ? ((BufferInput)input).getPosition() : -1;
         accessFlags = input.readShort();
         nameIndex = input.readShort();
         descrIndex = input.readShort();
         attributes = AttributeInfo.loadList(input);
+        original = start < 0 ? null : ((BufferInput)input).sliceFrom(start);
+    }
+
+    /**
+     * Returns the number of bytes written by store.
+     */
+    public int sizeInBytes() {
+        return !isModified()
+                ? original.remaining()
+                : 6 + AttributeInfo.sizeInBytes(attributes);
     }
 
     public void store(DataOutput output) throws IOException {
+        if (!isModified()) {
+            BufferOutput.write(output, original);
+            return;
+        }
         output.writeShort(accessFlags);
         output.writeShort(nameIndex);
         output.writeShort(descrIndex);
@@ -0,0 +1,86 @@
+package org.tastefuljava.classfile;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash table mapping the raw bits of numeric constants to
+ * their index in the constant pool. Lookups do not allocate.
+ */
+final class NumberIndex {
+    private static final int INITIAL_SIZE = 16;
+
+    /** raw bits of the constants */
+    private long[] keys;
+    /** indices of the constants, zero for empty slots */
+    private int[] values;
+    /** number of keys in the table */
+    private int size;
+
+    /**
+     * @return the index associated with the key, or zero if there is none
+     */
+    int get(long key) {
+        if (values == null) {
+            return 0;
+        }
+        int mask = values.length - 1;
+        for (int h = mix(key) & mask; values[h] != 0; h = (h + 1) & mask) {
+            if (keys[h] == key) {
+                return values[h];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Associates an index with a key, unless the key is already present. The
+     * table is probed once.
+     * @return the index already associated with the key, or zero if the key
+     * has been added
+     */
+    int putIfAbsent(long key, int value) {
+        if (values == null) {
+            keys = new long[INITIAL_SIZE];
+            values = new int[INITIAL_SIZE];
+        } else if (2*(size + 1) > values.length) {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[2*oldKeys.length];
+            values = new int[2*oldValues.length];
+            size = 0;
+            for (int i = 0; i < oldValues.length; ++i) {
+                if (oldValues[i] != 0) {
+                    insert(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+        return insert(key, value);
+    }
+
+    void clear() {
+        if (values != null) {
+            Arrays.fill(values, 0);
+            size = 0;
+        }
+    }
+
+    private int insert(long key, int value) {
+        int mask = values.length - 1;
+        int h = mix(key) & mask;
+        while (values[h] != 0) {
+            if (keys[h] == key) {
+                return values[h];
+            }
+            h = (h + 1) & mask;
+        }
+        keys[h] = key;
+        values[h] = value;
+        ++size;
+        return 0;
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+}
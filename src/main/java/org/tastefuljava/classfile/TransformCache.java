@@ -0,0 +1,242 @@
+package org.tastefuljava.classfile;
+
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * An on-disk cache of transformed classes, keyed on the SHA-256 hash of the
+ * bytes of the original class and of the identity of the transformation.
+ * <p>Each result is stored in its own file under the cache directory; a class
+ * left unchanged by the transformation is recorded as an empty file. Each
+ * file counts for its size plus a fixed overhead, so that empty files are
+ * accounted for too. When the total exceeds the maximum size, the least
+ * recently used results are deleted. The modification time of a file is
+ * updated when it is used, so the order is kept across runs.</p>
+ * <p>The cache can be used concurrently by several threads.</p>
+ */
+public class TransformCache {
+    private static final Logger LOG
+            = Logger.getLogger(TransformCache.class.getName());
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final byte[] UNCHANGED = {};
+    /** the size counted for each file in addition to its contents */
+    static final long ENTRY_OVERHEAD = 128;
+
+    private final Path dir;
+    private final long maxSize;
+    /** the size of the files, by key, in least recently used order */
+    private final LinkedHashMap<String,Long> files
+            = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalSize;
+
+    /**
+     * Opens a cache directory, creating it if needed.
+     * @param dir the cache directory
+     * @param maxSize the maximum total size of the cached results, in bytes,
+     * including ENTRY_OVERHEAD for each of them
+     */
+    public TransformCache(Path dir, long maxSize) throws IOException {
+        this.dir = dir;
+        this.maxSize = maxSize;
+        Files.createDirectories(dir);
+        List<Path> list = new ArrayList<>();
+        try (Stream<Path> stream = Files.walk(dir, 2)) {
+            stream.filter(Files::isRegularFile).forEach(list::add);
+        }
+        Map<Path,BasicFileAttributes> found = new LinkedHashMap<>();
+        for (Path path: list) {
+            if (path.toString().endsWith(".tmp")) {
+                Files.deleteIfExists(path);
+            } else {
+                found.put(path, Files.readAttributes(path,
+                        BasicFileAttributes.class));
+            }
+        }
+        list = new ArrayList<>(found.keySet());
+        list.sort(Comparator.comparing(
+                (p) -> found.get(p).lastModifiedTime()));
+        for (Path path: list) {
+            long size = found.get(path).size() + ENTRY_OVERHEAD;
+            files.put(path.getParent().getFileName().toString()
+                    + path.getFileName(), size);
+            totalSize += size;
+        }
+        evict();
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized long getSize() {
+        return totalSize;
+    }
+
+    public synchronized int getCount() {
+        return files.size();
+    }
+
+    /**
+     * Computes the key of a class for a transformation. The identity must
+     * change whenever the transformation changes, for instance by including
+     * its version.
+     */
+    public static String key(byte[] data, String transformId) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new ClassFileException(ex.getMessage());
+        }
+        md.update(transformId.getBytes(StandardCharsets.UTF_8));
+        md.update((byte)0);
+        md.update(data);
+        byte[] hash = md.digest();
+        char[] chars = new char[2*hash.length];
+        for (int i = 0; i < hash.length; ++i) {
+            chars[2*i] = HEX[(hash[i] >> 4) & 0xF];
+            chars[2*i+1] = HEX[hash[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Returns the transformed bytes of a class, data itself if the
+     * transformation left the class unchanged, or null if the result is not
+     * in the cache.
+     */
+    public byte[] get(byte[] data, String transformId) throws IOException {
+        return get(key(data, transformId), data);
+    }
+
+    /**
+     * Returns the transformed bytes of a class given its key, data itself if
+     * the transformation left the class unchanged, or null if the result is
+     * not in the cache.
+     */
+    public byte[] get(String key, byte[] data) throws IOException {
+        synchronized (this) {
+            if (files.get(key) == null) {
+                return null;
+            }
+        }
+        Path path = path(key);
+        byte[] result;
+        try {
+            result = Files.readAllBytes(path);
+            Files.setLastModifiedTime(path,
+                    FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException ex) {
+            // evicted in the meantime
+            return null;
+        }
+        return result.length == 0 ? data : result;
+    }
+
+    /**
+     * Records the result of a transformation.
+     * @param data the original bytes of the class
+     * @param transformId the identity of the transformation
+     * @param result the transformed bytes, or null if the class was left
+     * unchanged
+     */
+    public void put(byte[] data, String transformId, byte[] result)
+            throws IOException {
+        put(key(data, transformId), result);
+    }
+
+    /**
+     * Records the result of a transformation given the key of the class.
+     * @param key the key computed by {@link #key(byte[], String)}
+     * @param result the transformed bytes, or null if the class was left
+     * unchanged
+     */
+    public void put(String key, byte[] result) throws IOException {
+        byte[] content = result == null ? UNCHANGED : result;
+        Path path = path(key);
+        Files.createDirectories(path.getParent());
+        Path tmp = Files.createTempFile(path.getParent(), null, ".tmp");
+        try {
+            Files.write(tmp, content);
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        synchronized (this) {
+            long size = content.length + ENTRY_OVERHEAD;
+            Long old = files.put(key, size);
+            totalSize += size - (old == null ? 0 : old);
+        }
+        evict();
+    }
+
+    /**
+     * Wraps an instrumentation transformer, so that the cache is looked up
+     * before it is called.
+     */
+    public ClassFileTransformer wrap(ClassFileTransformer transformer,
+            String transformId) {
+        return new ClassFileTransformer() {
+            @Override
+            public byte[] transform(ClassLoader loader, String className,
+                    Class<?> classBeingRedefined,
+                    ProtectionDomain protectionDomain, byte[] classfileBuffer)
+                    throws IllegalClassFormatException {
+                String key = key(classfileBuffer, transformId);
+                byte[] result;
+                try {
+                    result = get(key, classfileBuffer);
+                } catch (IOException ex) {
+                    LOG.log(Level.WARNING, "Cannot read transform cache", ex);
+                    result = null;
+                }
+                if (result != null) {
+                    return result == classfileBuffer ? null : result;
+                }
+                result = transformer.transform(loader, className,
+                        classBeingRedefined, protectionDomain, classfileBuffer);
+                try {
+                    put(key, result);
+                } catch (IOException ex) {
+                    LOG.log(Level.WARNING, "Cannot write transform cache", ex);
+                }
+                return result;
+            }
+        };
+    }
+
+    private Path path(String key) {
+        return dir.resolve(key.substring(0, 2)).resolve(key.substring(2));
+    }
+
+    private synchronized void evict() throws IOException {
+        Iterator<Map.Entry<String,Long>> it = files.entrySet().iterator();
+        while (totalSize > maxSize && it.hasNext()) {
+            Map.Entry<String,Long> e = it.next();
+            totalSize -= e.getValue();
+            it.remove();
+            Files.deleteIfExists(path(e.getKey()));
+        }
+    }
+}
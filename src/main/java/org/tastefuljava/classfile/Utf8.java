@@ -0,0 +1,120 @@
+package org.tastefuljava.classfile;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encoding, decoding and hashing of the modified UTF-8 format used by the
+ * constant pool.
+ */
+final class Utf8 {
+    /** maximum length of an encoded string */
+    static final int MAX_LENGTH = 0xFFFF;
+
+    private Utf8() {
+    }
+
+    /**
+     * Returns the maximum number of bytes needed to encode a string.
+     */
+    static int maxLength(String s) {
+        return 3*s.length();
+    }
+
+    /**
+     * Encodes a string in the buffer.
+     * @return the number of bytes written
+     */
+    static int encode(String s, byte[] buf, int offset) {
+        int len = s.length();
+        int pos = offset;
+        int i = 0;
+        /* fast path for ASCII strings */
+        while (i < len) {
+            char c = s.charAt(i);
+            if (c == 0 || c >= 0x80) {
+                break;
+            }
+            buf[pos++] = (byte)c;
+            ++i;
+        }
+        for (; i < len; ++i) {
+            char c = s.charAt(i);
+            if (c != 0 && c < 0x80) {
+                buf[pos++] = (byte)c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte)(0xC0 | (c >> 6));
+                buf[pos++] = (byte)(0x80 | (c & 0x3F));
+            } else {
+                buf[pos++] = (byte)(0xE0 | (c >> 12));
+                buf[pos++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+                buf[pos++] = (byte)(0x80 | (c & 0x3F));
+            }
+        }
+        int result = pos - offset;
+        if (result > MAX_LENGTH) {
+            throw new ClassFileException("UTF8 string too long: " + result);
+        }
+        return result;
+    }
+
+    static String decode(byte[] buf, int offset, int length) {
+        int end = offset + length;
+        int pos = offset;
+        /* fast path for ASCII strings */
+        while (pos < end && buf[pos] > 0) {
+            ++pos;
+        }
+        if (pos == end) {
+            return new String(buf, offset, length, StandardCharsets.ISO_8859_1);
+        }
+        char[] chars = new char[length];
+        int n = 0;
+        for (int i = offset; i < pos; ++i) {
+            chars[n++] = (char)buf[i];
+        }
+        while (pos < end) {
+            int c = buf[pos++] & 0xFF;
+            if (c < 0x80) {
+                chars[n++] = (char)c;
+            } else if ((c & 0xE0) == 0xC0 && pos < end) {
+                int c2 = buf[pos++] & 0xFF;
+                checkContinuation(c2);
+                chars[n++] = (char)(((c & 0x1F) << 6) | (c2 & 0x3F));
+            } else if ((c & 0xF0) == 0xE0 && pos + 1 < end) {
+                int c2 = buf[pos++] & 0xFF;
+                int c3 = buf[pos++] & 0xFF;
+                checkContinuation(c2);
+                checkContinuation(c3);
+                chars[n++] = (char)(((c & 0x0F) << 12) | ((c2 & 0x3F) << 6)
+                        | (c3 & 0x3F));
+            } else {
+                throw new ClassFileException("Malformed UTF8 string");
+            }
+        }
+        return new String(chars, 0, n);
+    }
+
+    static int hash(byte[] buf, int offset, int length) {
+        int h = 0;
+        for (int i = offset; i < offset + length; ++i) {
+            h = 31*h + buf[i];
+        }
+        return h;
+    }
+
+    static boolean equals(byte[] buf1, int offset1, byte[] buf2, int offset2,
+            int length) {
+        for (int i = 0; i < length; ++i) {
+            if (buf1[offset1 + i] != buf2[offset2 + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void checkContinuation(int c) {
+        if ((c & 0xC0) != 0x80) {
+            throw new ClassFileException("Malformed UTF8 string");
+        }
+    }
+}
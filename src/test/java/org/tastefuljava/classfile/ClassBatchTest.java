@@ -0,0 +1,129 @@
+package org.tastefuljava.classfile;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ClassBatchTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    public ClassBatchTest() {
+    }
+
+    @Test
+    public void testProcess() throws IOException {
+        Path in = folder.newFolder("in").toPath();
+        Class<?>[] classes = {
+            ClassFile.class, ConstantPool.class, ClassParser.class,
+            ClassHeader.class, CodeBuilder.class, Utf8.class
+        };
+        List<String> names = new ArrayList<>();
+        for (Class<?> cls: classes) {
+            String name = cls.getName().replace('.', '/') + ".class";
+            Path path = in.resolve(name);
+            Files.createDirectories(path.getParent());
+            Files.write(path, ConstantPoolTest.readClass(cls));
+            names.add(name);
+        }
+        byte[] broken = {(byte)0xCA, (byte)0xFE, 0, 0};
+        Files.write(in.resolve("Broken.class"), broken);
+        names.add("Broken.class");
+        byte[] text = "not a class".getBytes(StandardCharsets.UTF_8);
+        Files.write(in.resolve("readme.txt"), text);
+        names.add("readme.txt");
+        names.sort(null);
+
+        ForkJoinPool pool = new ForkJoinPool(3);
+        ClassBatch batch = new ClassBatch((cf) -> {
+            if (cf.getClassName().endsWith("/Utf8")) {
+                throw new IllegalStateException("rejected");
+            }
+            cf.setAccessFlags((short)(cf.getAccessFlags()
+                    | ClassFile.ACC_FINAL));
+            return true;
+        }, pool);
+        batch.setWindow(2);
+        Path out = folder.getRoot().toPath().resolve("out.jar");
+        ClassBatch.Statistics stats;
+        try {
+            stats = batch.process(in, out);
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(names.size(), stats.getEntryCount());
+        assertEquals(names.size(), stats.getStage("read").getCount());
+        assertEquals(names.size(), stats.getStage("write").getCount());
+        assertEquals(0, stats.getStage("cache").getCount());
+        assertEquals(classes.length, stats.getStage("parse").getCount());
+        assertEquals(classes.length - 1,
+                stats.getStage("transform").getCount());
+        assertTrue(stats.getElapsedNanos() > 0);
+        assertEquals(classes.length - 1,
+                stats.getStage("store").getCount());
+        List<String> failures = stats.getFailures();
+        failures.sort(null);
+        assertEquals(Arrays.asList("Broken.class",
+                "org/tastefuljava/classfile/Utf8.class"), failures);
+
+        List<String> written = new ArrayList<>();
+        try (ZipFile zip = new ZipFile(out.toFile())) {
+            Enumeration<? extends ZipEntry> e = zip.entries();
+            while (e.hasMoreElements()) {
+                written.add(e.nextElement().getName());
+            }
+            assertArrayEquals(broken, read(zip, "Broken.class"));
+            assertArrayEquals(text, read(zip, "readme.txt"));
+            assertArrayEquals(ConstantPoolTest.readClass(Utf8.class),
+                    read(zip, "org/tastefuljava/classfile/Utf8.class"));
+            ClassFile cf = new ClassFile();
+            cf.load(read(zip, "org/tastefuljava/classfile/ClassFile.class"));
+            assertTrue((cf.getAccessFlags() & ClassFile.ACC_FINAL) != 0);
+        }
+        assertEquals(names, written);
+    }
+
+    @Test
+    public void testEntryOutsideOfOutput() throws IOException {
+        Path in = folder.getRoot().toPath().resolve("in.jar");
+        try (ZipOutputStream zip = new ZipOutputStream(
+                Files.newOutputStream(in))) {
+            zip.putNextEntry(new ZipEntry("../evil.txt"));
+            zip.write("evil".getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+        }
+        Path out = folder.newFolder("out").toPath();
+        ForkJoinPool pool = new ForkJoinPool(1);
+        try {
+            new ClassBatch((cf) -> true, pool).process(in, out);
+            fail("Entry written outside of the output directory");
+        } catch (ClassFileException ex) {
+            // expected
+        } finally {
+            pool.shutdown();
+        }
+        assertFalse(Files.exists(out.resolve("../evil.txt")));
+    }
+
+    private static byte[] read(ZipFile zip, String name) throws IOException {
+        return ClassBatch.readFully(zip.getInputStream(zip.getEntry(name)),
+                zip.getEntry(name).getSize());
+    }
+}
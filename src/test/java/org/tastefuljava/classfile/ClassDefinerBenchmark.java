@@ -0,0 +1,49 @@
+package org.tastefuljava.classfile;
+
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.Callable;
+import org.junit.Test;
+
+/**
+ * Times the definition of classes with each strategy; run with
+ * mvn test -Pbenchmark.
+ */
+public class ClassDefinerBenchmark {
+    private static final String PKG = "org/tastefuljava/classfile/";
+    private static final int COUNT = 2000;
+
+    public ClassDefinerBenchmark() {
+    }
+
+    @Test
+    public void benchmarkDefine() throws Exception {
+        benchmark("reflective", () -> ClassDefiner.reflective(
+                new ClassLoader(getClass().getClassLoader()) {
+                }));
+        benchmark("lookup", () -> ClassDefiner.lookup(
+                MethodHandles.lookup()));
+        if (ClassDefiner.isHiddenSupported(false)) {
+            benchmark("hidden", () -> ClassDefiner.hidden(
+                    MethodHandles.lookup(), null, false));
+        }
+    }
+
+    private static void benchmark(String name,
+            Callable<ClassDefiner> definers) throws Exception {
+        byte[][] classes = new byte[COUNT][];
+        for (int round = 0; round < 3; ++round) {
+            for (int i = 0; i < COUNT; ++i) {
+                classes[i] = ClassDefinerTest.generate(
+                        PKG + "Bench$" + name + round + "$" + i, "value");
+            }
+            ClassDefiner definer = definers.call();
+            long start = System.nanoTime();
+            for (byte[] bytes: classes) {
+                definer.define(bytes);
+            }
+            long time = System.nanoTime() - start;
+            System.out.println(name + ": " + (long)(COUNT*1e9/time)
+                    + " classes/s");
+        }
+    }
+}
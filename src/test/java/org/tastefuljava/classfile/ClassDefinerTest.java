@@ -0,0 +1,70 @@
+package org.tastefuljava.classfile;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.Callable;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class ClassDefinerTest {
+    private static final String PKG = "org/tastefuljava/classfile/";
+
+    public ClassDefinerTest() {
+    }
+
+    @Test
+    public void testStrategies() throws Exception {
+        ClassLoader cl = new ClassLoader(getClass().getClassLoader()) {
+        };
+        check(ClassDefiner.reflective(cl), "Reflective", true);
+        check(ClassDefiner.lookup(MethodHandles.lookup()), "Lookup", true);
+        if (ClassDefiner.isHiddenSupported(false)) {
+            check(ClassDefiner.hidden(MethodHandles.lookup(), null, true),
+                    "Hidden", false);
+        }
+        if (ClassDefiner.isHiddenSupported(true)) {
+            check(ClassDefiner.hidden(MethodHandles.lookup(), "data", true),
+                    "HiddenData", false);
+        }
+    }
+
+    private static void check(ClassDefiner definer, String name,
+            boolean visible) throws Exception {
+        Class<?> cls = definer.define(generate(PKG + "Defined$" + name,
+                "value " + name));
+        assertEquals("value " + name, ((Callable<?>)cls.newInstance()).call());
+        assertTrue(cls.getName().startsWith(
+                "org.tastefuljava.classfile.Defined$" + name));
+        if (visible) {
+            assertEquals(cls, Class.forName(cls.getName(), false,
+                    cls.getClassLoader()));
+        } else {
+            assertFalse(cls.getName().equals(
+                    "org.tastefuljava.classfile.Defined$" + name));
+        }
+    }
+
+    static byte[] generate(String className, String value)
+            throws IOException {
+        ClassFilePool pool = ClassFilePool.get();
+        ClassFile cf = pool.newClassFile(className);
+        ConstantPool cp = cf.getConstantPool();
+        cf.setMajorVersion((short)52);
+        cf.addInterface("java/util/concurrent/Callable");
+        CodeBuilder cb = pool.newCodeBuilder(1);
+        cb.loadRef(0);
+        cb.invokeSpecial("java/lang/Object", "<init>", "()V");
+        cb.returnVoid();
+        cf.addMethod(MethodInfo.ACC_PUBLIC, "<init>", "()V").addAttribute(
+                new AttributeInfo(cp.addUtf8("Code"), cb.getBytes()));
+        cb = pool.newCodeBuilder(1);
+        cb.pushString(value);
+        cb.returnRef();
+        cf.addMethod(MethodInfo.ACC_PUBLIC, "call", "()Ljava/lang/Object;")
+                .addAttribute(new AttributeInfo(cp.addUtf8("Code"),
+                        cb.getBytes()));
+        return cf.toBytes();
+    }
+}
@@ -0,0 +1,54 @@
+package org.tastefuljava.classfile;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import static org.junit.Assert.assertArrayEquals;
+import org.junit.Test;
+
+/**
+ * Times the loading of class files and the generation of code; run with
+ * mvn test -Pbenchmark.
+ */
+public class ClassFileBenchmark {
+    public ClassFileBenchmark() {
+    }
+
+    @Test
+    public void benchmarkLoad() throws Exception {
+        byte[] data = ConstantPoolTest.readClass(ConstantPoolTest.class);
+        for (int n = 0; n < 3; ++n) {
+            long start = System.nanoTime();
+            for (int i = 0; i < 2000; ++i) {
+                new ClassFile().load(new ByteArrayInputStream(data));
+            }
+            long stream = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < 2000; ++i) {
+                new ClassFile().load(ByteBuffer.wrap(data));
+            }
+            long buffer = System.nanoTime() - start;
+            System.out.println("load: stream " + stream/2000 + " ns, buffer "
+                    + buffer/2000 + " ns");
+        }
+        ClassFile cf = new ClassFile();
+        cf.load(ByteBuffer.wrap(data));
+        assertArrayEquals(data, cf.toBytes());
+    }
+
+    @Test
+    public void benchmarkEmit() throws Exception {
+        ConstantPool cp = new ConstantPool();
+        CodeBuilder cb = new CodeBuilder(cp, 1);
+        for (int round = 0; round < 3; ++round) {
+            long start = System.nanoTime();
+            int count = 0;
+            for (int n = 0; n < 50; ++n) {
+                cb.reset(1);
+                count += ClassFileTest.emit(cb, cp, 2000);
+            }
+            long time = System.nanoTime() - start;
+            System.out.println("emit: " + (long)(count*1e9/time)
+                    + " instructions/s");
+        }
+    }
+}
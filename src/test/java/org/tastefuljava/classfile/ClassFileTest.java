@@ -1,8 +1,31 @@
 package org.tastefuljava.classfile;
 
 import java.io.IOException;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 import org.junit.After;
 import org.junit.AfterClass;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -46,6 +69,446 @@ public class ClassFileTest {
         System.out.println("Instance ran");
     }
 
+    @Test
+    public void testInvokeDynamic() throws Exception {
+        ClassFile cf = new ClassFile(new ConstantPool(), "TestCase$0002");
+        cf.addInterface("java/util/concurrent/Callable");
+        cf.setMajorVersion((short)51);
+        createConstructor(cf);
+        ConstantPool cp = cf.getConstantPool();
+        short bsm = cf.addBootstrapMethod(cp.addMethodHandle(
+                ConstantPool.REF_INVOKESTATIC, cp.addMethodref(
+                        "org/tastefuljava/classfile/ClassFileTest",
+                        "bootstrap",
+                        "(Ljava/lang/invoke/MethodHandles$Lookup;"
+                        + "Ljava/lang/String;Ljava/lang/invoke/MethodType;"
+                        + "Ljava/lang/Object;)Ljava/lang/invoke/CallSite;")),
+                cp.addString("Hello indy!!!"));
+        CodeBuilder cb = new CodeBuilder(cp, 1);
+        cb.invokeDynamic(bsm, "hello", "()Ljava/lang/String;");
+        cb.returnRef();
+        MethodInfo mi = cf.addMethod(MethodInfo.ACC_PUBLIC, "call",
+                "()Ljava/lang/Object;");
+        mi.addAttribute(new AttributeInfo(cp.addUtf8("Code"), cb.getBytes()));
+        cf.print(System.out);
+        Callable<?> c = (Callable<?>)cf.define().newInstance();
+        assertEquals("Hello indy!!!", c.call());
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        ClassFile cf = new ClassFile(new ConstantPool(), "TestCase$0003");
+        cf.addInterface("java/util/concurrent/Callable");
+        cf.setMajorVersion((short)48);
+        ConstantPool cp = cf.getConstantPool();
+        for (int i = 0; i < 300; ++i) {
+            cp.addUtf8("junk" + i);
+        }
+        assertFalse(cf.hasInterface("java/lang/Runnable"));
+        assertEquals(0, cp.findClass("java/lang/Runnable"));
+        createConstructor(cf);
+        CodeBuilder cb = new CodeBuilder(cp, 1);
+        cb.pushString("compacted");
+        cb.returnRef();
+        MethodInfo mi = cf.addMethod(MethodInfo.ACC_PUBLIC, "call",
+                "()Ljava/lang/Object;");
+        mi.addAttribute(new AttributeInfo(cp.addUtf8("Code"), cb.getBytes()));
+        int before = cf.toBytes().length;
+        cf.setCompactOnStore(true);
+        byte[] bytes = cf.toBytes();
+        assertTrue(bytes.length < before - 300*5);
+        assertEquals(0, cp.findUtf8("junk0"));
+        assertTrue(cp.findUtf8("compacted") > 0);
+        assertEquals("compacted", cp.getString((short)1));
+        Callable<?> c = (Callable<?>)new TestLoader().define(bytes)
+                .newInstance();
+        assertEquals("compacted", c.call());
+    }
+
+    @Test
+    public void testCompactLoaded() throws Exception {
+        byte[] data = ConstantPoolTest.readClass(ConstantPoolTest.class);
+        ClassFile cf = new ClassFile();
+        cf.load(data);
+        assertTrue(cf.compact());
+        Class<?> cls = new TestLoader().define(cf.toBytes());
+        assertEquals(ConstantPoolTest.class.getName(), cls.getName());
+        cls.getMethod("testDeduplication").invoke(cls.newInstance());
+        cls.getMethod("testLazyLoad").invoke(cls.newInstance());
+    }
+
+    @Test
+    public void testLoadBuffer() throws Exception {
+        byte[] data = ConstantPoolTest.readClass(ConstantPoolTest.class);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length + 8);
+        direct.putInt(42);
+        direct.put(data);
+        direct.putInt(43);
+        ((Buffer)direct).flip();
+        assertEquals(42, direct.getInt());
+        ClassFile cf = new ClassFile();
+        cf.load(direct);
+        assertEquals(43, direct.getInt());
+        assertArrayEquals(data, cf.toBytes());
+        AttributeInfo attr = cf.getMethods()[0].getAttributes()[0];
+        assertEquals(attr.getLength(), attr.getBuffer().remaining());
+        assertEquals(attr.getLength(), attr.getData().length);
+
+        Path path = Files.createTempFile("test", ".class");
+        try {
+            Files.write(path, data);
+            cf = new ClassFile();
+            cf.load(path);
+            assertEquals(ConstantPoolTest.class.getName().replace('.', '/'),
+                    cf.getClassName());
+            assertArrayEquals(data, cf.toBytes());
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void testSizeInBytes() throws Exception {
+        ClassFile cf = new ClassFile(new ConstantPool(), "TestCase$0005");
+        createConstructor(cf);
+        createRunMethod(cf);
+        cf.addField(FieldInfo.ACC_PRIVATE, "x", "J");
+        byte[] bytes = cf.toBytes();
+        assertEquals(bytes.length, cf.sizeInBytes());
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 4)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putShort((short)0);
+        cf.store(buffer);
+        assertEquals(bytes.length + 2, buffer.position());
+        assertEquals(ByteOrder.LITTLE_ENDIAN, buffer.order());
+        assertArrayEquals(bytes, Arrays.copyOfRange(buffer.array(), 2,
+                bytes.length + 2));
+        ConstantPool cp = new ConstantPool();
+        CodeBuilder cb = new CodeBuilder(cp, 1);
+        cb.pushString("size");
+        cb.returnRef();
+        cb.addException((short)0, (short)2, (short)2, "java/lang/Error");
+        assertEquals(cb.sizeInBytes(), cb.getBytes().length);
+    }
+
+    @Test
+    public void testPassThrough() throws Exception {
+        byte[] data = ConstantPoolTest.readClass(ConstantPoolTest.class);
+        ClassFile cf = new ClassFile();
+        cf.load(data);
+        MethodInfo[] methods = cf.getMethods();
+        for (MethodInfo mi: methods) {
+            assertFalse(mi.isModified());
+        }
+        assertArrayEquals(data, cf.toBytes());
+        MethodInfo mi = methods[1];
+        mi.setAccessFlags(mi.getAccessFlags());
+        assertTrue(mi.isModified());
+        assertFalse(methods[2].isModified());
+        assertArrayEquals(data, cf.toBytes());
+        AttributeInfo code = methods[2].getAttributes()[0];
+        code.getData()[0] ^= 1;
+        assertTrue(methods[2].isModified());
+        assertTrue(code.isModified());
+        byte[] bytes = cf.toBytes();
+        assertEquals(data.length, bytes.length);
+        assertFalse(Arrays.equals(data, bytes));
+    }
+
+    @Test
+    public void testMergeMethods() throws Exception {
+        ClassFile cf = new ClassFile(new ConstantPool(), "TestCase$0004");
+        cf.setMajorVersion((short)48);
+        cf.addInterface("java/util/concurrent/Callable");
+        createConstructor(cf);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<ConstantPool>> pools = new ArrayList<>();
+            List<MethodInfo> methods = new ArrayList<>();
+            for (int i = 0; i < 8; ++i) {
+                final MethodInfo mi = new MethodInfo();
+                final int n = i;
+                methods.add(mi);
+                pools.add(executor.submit(() -> {
+                    ConstantPool cp = new ConstantPool();
+                    CodeBuilder cb = new CodeBuilder(cp, 1);
+                    if (n == 0) {
+                        mi.setNameIndex(cp.addUtf8("call"));
+                        cb.loadRef(0);
+                        cb.invokeVirtual("TestCase$0004", "m7",
+                                "()Ljava/lang/Object;");
+                    } else {
+                        mi.setNameIndex(cp.addUtf8("m" + n));
+                        for (int j = 0; j < 10; ++j) {
+                            cb.pushString("value" + n);
+                            cb.pop();
+                        }
+                        cb.pushString("value" + n);
+                    }
+                    cb.returnRef();
+                    mi.setAccessFlags(MethodInfo.ACC_PUBLIC);
+                    mi.setDescrIndex(cp.addUtf8("()Ljava/lang/Object;"));
+                    mi.addAttribute(new AttributeInfo(
+                            cp.addUtf8("Code"), cb.getBytes()));
+                    return cp;
+                }));
+            }
+            for (int i = 0; i < methods.size(); ++i) {
+                cf.addMethod(methods.get(i), pools.get(i).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Class<?> cls = new TestLoader().define(cf.toBytes());
+        Callable<?> c = (Callable<?>)cls.newInstance();
+        assertEquals("value7", c.call());
+        assertEquals("value3", cls.getMethod("m3").invoke(c));
+    }
+
+    @Test
+    public void testMergeWideLdc() throws Exception {
+        ClassFile cf = new ClassFile(new ConstantPool(), "TestCase$0008");
+        ConstantPool cp = cf.getConstantPool();
+        cf.setMajorVersion((short)52);
+        for (int i = 0; i < 300; ++i) {
+            cp.addString("filler" + i);
+        }
+        assertTrue(cp.getCount() > 256);
+        ClassFile source = new ClassFile();
+        source.load(ConstantPoolTest.readClass(Wide.class));
+        MethodInfo mi = source.findMethod(MethodInfo.ACC_STATIC, "describe",
+                "(I)Ljava/lang/String;");
+        cf.addMethod(mi, source.getConstantPool());
+        StringBuilder text = new StringBuilder();
+        cf.disassemble(text);
+        assertTrue(text.indexOf("ldc_w") >= 0);
+        Class<?> cls = new TestLoader().define(cf.toBytes());
+        Method describe = cls.getDeclaredMethod("describe", int.class);
+        describe.setAccessible(true);
+        assertEquals(Wide.describe(0), describe.invoke(null, 0));
+        assertEquals(Wide.describe(5), describe.invoke(null, 5));
+        assertEquals(Wide.describe(-1), describe.invoke(null, -1));
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        ClassFilePool pool = ClassFilePool.get();
+        TestLoader loader = new TestLoader();
+        for (int i = 0; i < 3; ++i) {
+            String name = "TestCase$0005_" + i;
+            ClassFile cf = pool.newClassFile(name);
+            generateCallable(cf, () -> pool.newCodeBuilder(1), "value" + i);
+            byte[] pooled = cf.toBytes();
+            cf = new ClassFile(new ConstantPool(), name);
+            ConstantPool cp = cf.getConstantPool();
+            generateCallable(cf, () -> new CodeBuilder(cp, 1), "value" + i);
+            assertArrayEquals(cf.toBytes(), pooled);
+            Callable<?> c = (Callable<?>)loader.define(pooled).newInstance();
+            assertEquals("value" + i, c.call());
+        }
+        assertTrue(pool == ClassFilePool.get());
+    }
+
+    @Test
+    public void testSegments() throws Exception {
+        ClassFile cf = new ClassFile(new ConstantPool(), "TestCase$0006");
+        ConstantPool cp = cf.getConstantPool();
+        cf.setMajorVersion((short)48);
+        CodeBuilder nested = new CodeBuilder(cp, 1);
+        generateSelect(nested, nested.newSegment(), true);
+        CodeBuilder flat = new CodeBuilder(cp, 1);
+        generateSelect(flat, flat, false);
+        byte[] code = nested.getBytes();
+        assertArrayEquals(flat.getBytes(), code);
+        MethodInfo mi = cf.addMethod((short)(MethodInfo.ACC_PUBLIC
+                | MethodInfo.ACC_STATIC), "select", "(I)I");
+        mi.addAttribute(new AttributeInfo(cp.addUtf8("Code"), code));
+        Class<?> cls = new TestLoader().define(cf.toBytes());
+        Method select = cls.getMethod("select", int.class);
+        assertEquals(10, select.invoke(null, 0));
+        assertEquals(20, select.invoke(null, 1));
+        assertEquals(30, select.invoke(null, 2));
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testSegmentToString() throws Exception {
+        CodeBuilder cb = new CodeBuilder(new ConstantPool(), 1);
+        CodeSegment seg = cb.newSegment();
+        seg.write("bc".getBytes(StandardCharsets.US_ASCII));
+        cb.write('a');
+        seg.commit();
+        assertEquals("abc", cb.toString());
+        assertEquals("abc", cb.toString("US-ASCII"));
+        assertEquals("abc", cb.toString(StandardCharsets.US_ASCII));
+        assertEquals("abc", cb.toString(0));
+    }
+
+    @Test
+    public void testTableSwitch() throws Exception {
+        ClassFile cf = new ClassFile(new ConstantPool(), "TestCase$0007");
+        ConstantPool cp = cf.getConstantPool();
+        cf.setMajorVersion((short)48);
+        CodeBuilder cb = new CodeBuilder(cp, 1);
+        Label[] table = {new Label(), new Label(), new Label()};
+        Label def = new Label();
+        cb.loadInt(0);
+        cb.tableSwitch(1, 3, def, table);
+        for (int i = 0; i < table.length; ++i) {
+            cb.define(table[i]);
+            cb.pushInt(10*(i + 1));
+            cb.returnInt();
+        }
+        cb.define(def);
+        cb.pushInt(-1);
+        cb.returnInt();
+        MethodInfo mi = cf.addMethod((short)(MethodInfo.ACC_PUBLIC
+                | MethodInfo.ACC_STATIC), "select", "(I)I");
+        mi.addAttribute(new AttributeInfo(cp.addUtf8("Code"),
+                cb.getBytes()));
+        Class<?> cls = new TestLoader().define(cf.toBytes());
+        Method select = cls.getMethod("select", int.class);
+        assertEquals(-1, select.invoke(null, 0));
+        assertEquals(10, select.invoke(null, 1));
+        assertEquals(30, select.invoke(null, 3));
+        assertEquals(-1, select.invoke(null, 4));
+    }
+
+    @Test
+    public void testEmitReusedBuilder() throws Exception {
+        ConstantPool cp = new ConstantPool();
+        CodeBuilder cb = new CodeBuilder(cp, 1);
+        int iterations = 2000;
+        for (int n = 0; n < 2; ++n) {
+            cb.reset(1);
+            emit(cb, cp, iterations);
+        }
+        byte[] code = cb.getBytes();
+        int length = ByteCode.getInt(code, 4);
+        int instructions = 0;
+        for (int pc = 0; pc < length;
+                pc += ByteCode.instructionLength(code, 8, pc)) {
+            ++instructions;
+        }
+        assertEquals(7*iterations + 1, instructions);
+        assertEquals(ByteCode.RETURN, code[8 + length - 1] & 0xFF);
+    }
+
+    /**
+     * Emits a loop body repeated a number of times, followed by a return.
+     * @return the number of instructions emitted
+     */
+    static int emit(CodeBuilder cb, ConstantPool cp, int iterations) {
+        short field = cp.addFieldref("Bench", "value", "I");
+        short method = cp.addMethodref("Bench", "compute", "(II)I");
+        for (int i = 0; i < iterations; ++i) {
+            cb.loadRef(0);
+            cb.loadRef(0);
+            cb.getField(field);
+            cb.pushInt(i);
+            cb.invokeStatic(method);
+            cb.putField(field);
+            cb.incInt(0, 1);
+        }
+        cb.returnVoid();
+        return 7*iterations + 1;
+    }
+
+    /**
+     * Generates x == 0 ? 10 : x == 1 ? 20 : 30, with the code of the first
+     * two cases in a child segment and in a grandchild segment, that jump to
+     * labels of their own segment and of the root segment.
+     */
+    private static void generateSelect(CodeBuilder cb, CodeSegment child,
+            boolean nested) {
+        Label other = new Label();
+        cb.pushInt(5);
+        cb.pop();
+        Label notZero = new Label();
+        child.loadInt(0);
+        child.jump(ByteCode.IFNE, notZero);
+        child.pushInt(10);
+        child.returnInt();
+        child.define(notZero);
+        CodeSegment grandChild = nested ? child.newSegment() : child;
+        grandChild.loadInt(0);
+        grandChild.pushInt(1);
+        grandChild.jump(ByteCode.IF_ICMPNE, other);
+        grandChild.pushInt(20);
+        grandChild.returnInt();
+        if (nested) {
+            grandChild.commit();
+            child.commit();
+        }
+        cb.define(other);
+        cb.pushInt(30);
+        cb.returnInt();
+    }
+
+    private static void generateCallable(ClassFile cf,
+            Supplier<CodeBuilder> builders, String value) throws IOException {
+        ConstantPool cp = cf.getConstantPool();
+        cf.setMajorVersion((short)48);
+        cf.addInterface("java/util/concurrent/Callable");
+        CodeBuilder init = builders.get();
+        init.loadRef(0);
+        init.invokeSpecial("java/lang/Object", "<init>", "()V");
+        init.returnVoid();
+        MethodInfo mi = cf.addMethod(MethodInfo.ACC_PUBLIC, "<init>", "()V");
+        mi.addAttribute(new AttributeInfo(cp.addUtf8("Code"),
+                init.getBytes()));
+        CodeBuilder call = builders.get();
+        call.pushString(value);
+        call.returnRef();
+        mi = cf.addMethod(MethodInfo.ACC_PUBLIC, "call",
+                "()Ljava/lang/Object;");
+        mi.addAttribute(new AttributeInfo(cp.addUtf8("Code"),
+                call.getBytes()));
+    }
+
+    private static class Wide {
+        static String describe(int n) {
+            String result = "none";
+            for (int i = 0; i < n; ++i) {
+                switch (i % 3) {
+                case 0:
+                    result = "zero";
+                    break;
+                case 1:
+                    result = "one";
+                    break;
+                default:
+                    result = "two";
+                    break;
+                }
+            }
+            try {
+                if (n < 0) {
+                    throw new IllegalArgumentException("negative");
+                }
+            } catch (IllegalArgumentException e) {
+                return "caught";
+            }
+            return result + n;
+        }
+    }
+
+    private static class TestLoader extends ClassLoader {
+        TestLoader() {
+            super(ClassFileTest.class.getClassLoader());
+        }
+
+        Class<?> define(byte[] bytes) {
+            return defineClass(null, bytes, 0, bytes.length);
+        }
+    }
+
+    public static CallSite bootstrap(MethodHandles.Lookup lookup, String name,
+            MethodType type, Object value) {
+        return new ConstantCallSite(
+                MethodHandles.constant(Object.class, value).asType(type));
+    }
+
     private void createRunMethod(ClassFile cf) throws IOException {
         ConstantPool cp = cf.getConstantPool();
         CodeBuilder cb = new CodeBuilder(cp, 1);
@@ -0,0 +1,86 @@
+package org.tastefuljava.classfile;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ClassHeaderTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    public ClassHeaderTest() {
+    }
+
+    @Test
+    public void testScan() throws IOException {
+        byte[] data = ConstantPoolTest.readClass(Sample.class);
+        ClassFile cf = new ClassFile();
+        cf.load(data);
+        ClassHeader header = ClassHeader.scan(data);
+        ConstantPool cp = cf.getConstantPool();
+        assertEquals(cf.getMajorVersion(), header.getMajorVersion());
+        assertEquals(cf.getMinorVersion(), header.getMinorVersion());
+        assertEquals(cf.getAccessFlags() & 0xFFFF, header.getAccessFlags());
+        assertEquals(cf.getClassName(), header.getClassName());
+        assertEquals(cp.getClassName(cf.getSuperClass()),
+                header.getSuperClassName());
+        assertArrayEquals(new String[] {
+            "java/lang/Runnable", "java/io/Serializable"
+        }, header.getInterfaces());
+        assertFalse(header.isInterface());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length + 3);
+        ((Buffer)direct.put(new byte[3]).put(data)).position(3);
+        header = ClassHeader.scan(direct);
+        assertEquals(3, direct.position());
+        assertEquals(cf.getClassName(), header.getClassName());
+    }
+
+    @Test
+    public void testScanPath() throws IOException {
+        Path path = folder.newFile("Sample.class").toPath();
+        Files.write(path, ConstantPoolTest.readClass(Sample.class));
+        ClassHeader header = ClassHeader.scan(path);
+        assertEquals("org/tastefuljava/classfile/ClassHeaderTest$Sample",
+                header.getClassName());
+        assertEquals(2, header.getInterfaces().length);
+    }
+
+    @Test
+    public void testObject() throws IOException {
+        ClassHeader header = ClassHeader.scan(
+                ConstantPoolTest.readClass(Object.class));
+        assertEquals("java/lang/Object", header.getClassName());
+        assertNull(header.getSuperClassName());
+        assertEquals(0, header.getInterfaces().length);
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void testWrongTag() throws IOException {
+        ClassFile cf = new ClassFile(new ConstantPool(), "Sample");
+        cf.setThisClass(cf.getConstantPool().addUtf8("Sample"));
+        ClassHeader.scan(cf.toBytes());
+    }
+
+    private static class Sample implements Runnable, Serializable {
+        private static final long serialVersionUID = 1L;
+        private final long value = 1234567890123L;
+        private final double ratio = 3.5;
+
+        @Override
+        public void run() {
+            System.out.println(value*ratio);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package org.tastefuljava.classfile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ClassHierarchyTest {
+    private static final String PKG = "org/tastefuljava/classfile/";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    public ClassHierarchyTest() {
+    }
+
+    @Test
+    public void testHierarchy() throws IOException {
+        Path dir = folder.newFolder("classes").toPath();
+        for (Class<?> cls: new Class<?>[] {
+                ClassFileException.class, InvalidTypeException.class,
+                TableSwitchException.class, ConstantPool.class,
+                ConcurrentConstantPool.class}) {
+            Path path = dir.resolve(cls.getName().replace('.', '/')
+                    + ".class");
+            Files.createDirectories(path.getParent());
+            Files.write(path, ConstantPoolTest.readClass(cls));
+        }
+        Path jar = folder.getRoot().toPath().resolve("lib.jar");
+        try (ZipOutputStream out = new ZipOutputStream(
+                Files.newOutputStream(jar))) {
+            for (Class<?> cls: new Class<?>[] {
+                    ClassHandler.class, Handler.class}) {
+                out.putNextEntry(new ZipEntry(
+                        cls.getName().replace('.', '/') + ".class"));
+                out.write(ConstantPoolTest.readClass(cls));
+            }
+        }
+        List<Path> classpath = Arrays.asList(dir, jar);
+        ClassHierarchy index = new ClassHierarchy();
+        assertTrue(index.update(classpath));
+        check(index);
+        assertFalse(index.update(classpath));
+
+        Path file = folder.getRoot().toPath().resolve("index.dat");
+        index.save(file);
+        ClassHierarchy loaded = ClassHierarchy.load(file);
+        check(loaded);
+        assertFalse(loaded.update(classpath));
+
+        Path changed = dir.resolve(PKG + "ConstantPool.class");
+        Files.setLastModifiedTime(changed, FileTime.fromMillis(
+                Files.getLastModifiedTime(changed).toMillis() - 10000));
+        assertTrue(loaded.update(classpath));
+        check(loaded);
+        assertTrue(loaded.update(Collections.singletonList(dir)));
+        assertFalse(loaded.contains(PKG + "ClassHandler"));
+        assertEquals(5, loaded.size());
+    }
+
+    @Test
+    public void testCycle() throws IOException {
+        Path dir = folder.newFolder("cycle").toPath();
+        String[][] classes = {
+            {"A", "B", "I"}, {"B", "A", "J"}, {"I", "J"}, {"J", "I"}
+        };
+        for (String[] names: classes) {
+            ClassFile cf = new ClassFile(new ConstantPool(), names[0],
+                    names[1]);
+            for (int i = 2; i < names.length; ++i) {
+                cf.addInterface(names[i]);
+            }
+            Files.write(dir.resolve(names[0] + ".class"), cf.toBytes());
+        }
+        ClassHierarchy index = new ClassHierarchy();
+        index.update(Collections.singletonList(dir));
+        assertEquals(4, index.size());
+        assertTrue(index.isSubtype("A", "J"));
+        assertFalse(index.isSubtype("A", "C"));
+        assertFalse(index.isSubtype("I", "A"));
+        assertEquals("java/lang/Object", index.getCommonSuperClass("A", "C"));
+    }
+
+    private static void check(ClassHierarchy index) {
+        assertEquals(7, index.size());
+        assertEquals(PKG + "ClassFileException",
+                index.getSuperClass(PKG + "InvalidTypeException"));
+        assertNull(index.getSuperClass("java/lang/String"));
+        assertTrue(index.isInterface(PKG + "ClassHandler"));
+        assertFalse(index.isInterface(PKG + "ConstantPool"));
+        assertArrayEquals(new String[] {PKG + "ClassHandler"},
+                index.getInterfaces(PKG + "ClassHierarchyTest$Handler"));
+        assertTrue(index.isSubtype(PKG + "ConcurrentConstantPool",
+                PKG + "ConstantPool"));
+        assertTrue(index.isSubtype(PKG + "TableSwitchException",
+                "java/lang/RuntimeException"));
+        assertFalse(index.isSubtype(PKG + "ConstantPool",
+                PKG + "ClassHandler"));
+        assertEquals(Arrays.asList(PKG + "ClassHierarchyTest$Handler"),
+                index.getDirectSubtypes(PKG + "ClassHandler"));
+        assertEquals(2, index.getDirectSubtypes(
+                PKG + "ClassFileException").size());
+        assertEquals(PKG + "ClassFileException", index.getCommonSuperClass(
+                PKG + "InvalidTypeException", PKG + "TableSwitchException"));
+        assertEquals(PKG + "ConstantPool", index.getCommonSuperClass(
+                PKG + "ConstantPool", PKG + "ConcurrentConstantPool"));
+        assertEquals("java/lang/Object", index.getCommonSuperClass(
+                PKG + "ConstantPool", PKG + "InvalidTypeException"));
+        assertEquals("java/lang/Object", index.getCommonSuperClass(
+                PKG + "ClassHandler", PKG + "ConstantPool"));
+        assertFalse(index.isInterface("java/util/ArrayList"));
+        assertEquals("java/lang/Object", index.getCommonSuperClass(
+                "java/util/ArrayList", PKG + "ConstantPool"));
+        assertEquals("java/lang/Object", index.getCommonSuperClass(
+                PKG + "InvalidTypeException", "java/util/ArrayList"));
+    }
+
+    private static class Handler implements ClassHandler {
+    }
+}
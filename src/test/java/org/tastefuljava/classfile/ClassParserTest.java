@@ -0,0 +1,108 @@
+package org.tastefuljava.classfile;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class ClassParserTest {
+    public ClassParserTest() {
+    }
+
+    @Test
+    public void testEvents() throws IOException {
+        byte[] data = ConstantPoolTest.readClass(ConstantPoolTest.class);
+        ClassFile cf = new ClassFile();
+        cf.load(data);
+        List<String> methods = new ArrayList<>();
+        Set<String> called = new HashSet<>();
+        int[] counts = new int[4];
+        new ClassParser(new ClassHandler() {
+            private ConstantPool cp;
+
+            @Override
+            public void header(int minorVersion, int majorVersion,
+                    ConstantPool cp) {
+                this.cp = cp;
+            }
+
+            @Override
+            public boolean constants() {
+                return true;
+            }
+
+            @Override
+            public void constant(int index, int tag) {
+                ++counts[0];
+            }
+
+            @Override
+            public boolean method(int accessFlags, short nameIndex,
+                    short descrIndex) {
+                methods.add(cp.getUtf8(nameIndex));
+                return true;
+            }
+
+            @Override
+            public boolean code(int maxStack, int maxLocals, int length) {
+                ++counts[1];
+                return true;
+            }
+
+            @Override
+            public void instruction(int pc, int opcode, int operand) {
+                if (opcode == ByteCode.INVOKESTATIC) {
+                    called.add(cp.getRefName((short)operand));
+                }
+            }
+
+            @Override
+            public void endCode() {
+                ++counts[2];
+            }
+
+            @Override
+            public void attribute(short nameIndex, ByteBuffer data) {
+                ++counts[3];
+            }
+        }).parse(data);
+        assertEquals(cf.getMethods().length, methods.size());
+        assertTrue(methods.contains("testLazyLoad"));
+        assertTrue(called.contains("assertEquals"));
+        assertEquals(counts[1], counts[2]);
+        assertTrue(counts[0] > 0 && counts[0] < cf.getConstantPool().getCount());
+        assertTrue(counts[3] > 0);
+    }
+
+    @Test
+    public void testSkip() throws IOException {
+        byte[] data = ConstantPoolTest.readClass(ConstantPoolTest.class);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        ((Buffer)buffer.put(data)).flip();
+        int[] counts = new int[2];
+        new ClassParser(new ClassHandler() {
+            @Override
+            public boolean method(int accessFlags, short nameIndex,
+                    short descrIndex) {
+                ++counts[0];
+                return false;
+            }
+
+            @Override
+            public void instruction(int pc, int opcode, int operand) {
+                ++counts[1];
+            }
+        }).parse(buffer);
+        ClassFile cf = new ClassFile();
+        cf.load(data);
+        assertEquals(cf.getMethods().length, counts[0]);
+        assertEquals(0, counts[1]);
+        assertEquals(data.length, buffer.position());
+    }
+}
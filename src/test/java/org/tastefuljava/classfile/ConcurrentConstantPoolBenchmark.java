@@ -0,0 +1,56 @@
+package org.tastefuljava.classfile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Times the concurrent constant pool with an increasing number of threads;
+ * run with mvn test -Pbenchmark.
+ */
+public class ConcurrentConstantPoolBenchmark {
+    private static final int CONSTANTS = 5000;
+
+    public ConcurrentConstantPoolBenchmark() {
+    }
+
+    @Test
+    public void benchmarkScaling() throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= cores; threads *= 2) {
+            ConstantPool cp = new ConcurrentConstantPool();
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                long start = System.nanoTime();
+                List<Future<?>> results = new ArrayList<>();
+                for (int t = 0; t < threads; ++t) {
+                    final int first = t*CONSTANTS/threads;
+                    final int last = (t + 1)*CONSTANTS/threads;
+                    results.add(executor.submit(() -> {
+                        for (int n = 0; n < 10; ++n) {
+                            for (int i = first; i < last; ++i) {
+                                cp.addMethodref("C" + (i % 100), "m" + i,
+                                        "()V");
+                            }
+                        }
+                    }));
+                }
+                for (Future<?> result: results) {
+                    result.get();
+                }
+                long time = System.nanoTime() - start;
+                System.out.println(threads + " thread(s): "
+                        + 10L*CONSTANTS*1000000000L/time + " adds/s");
+            } finally {
+                executor.shutdown();
+            }
+            /* 100 classes, their names, and for each method a Methodref,
+               a NameAndType and a name; the descriptor is shared */
+            assertEquals(1 + 2*100 + 3*CONSTANTS + 1, cp.getCount());
+        }
+    }
+}
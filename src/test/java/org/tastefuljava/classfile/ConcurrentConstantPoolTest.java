@@ -0,0 +1,130 @@
+package org.tastefuljava.classfile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class ConcurrentConstantPoolTest {
+    private static final int THREADS = 8;
+    private static final int CONSTANTS = 2000;
+
+    public ConcurrentConstantPoolTest() {
+    }
+
+    @Test
+    public void testStress() throws Exception {
+        ConstantPool cp = new ConcurrentConstantPool();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<short[]>> results = new ArrayList<>();
+            for (int t = 0; t < THREADS; ++t) {
+                final int seed = t;
+                results.add(executor.submit(() -> addAll(cp, seed)));
+            }
+            short[] expected = results.get(0).get();
+            for (Future<short[]> result: results) {
+                assertArrayEquals(expected, result.get());
+            }
+            /* 3 Utf8, a Class, a NameAndType, a Methodref, a Long (2 slots)
+               per constant */
+            assertEquals(1 + CONSTANTS*8, cp.getCount());
+            ConstantPool copy = reload(cp);
+            assertEquals(cp.getCount(), copy.getCount());
+            for (int i = 0; i < CONSTANTS; ++i) {
+                assertEquals("C" + i, copy.getClassName(expected[4*i]));
+                assertEquals("m" + i, copy.getRefName(expected[4*i + 1]));
+                assertEquals("(" + pad(i) + ")V",
+                        copy.getRefType(expected[4*i + 1]));
+                assertEquals(expected[4*i + 2], copy.findUtf8("C" + i));
+                assertEquals(expected[4*i + 3], copy.addLong(i));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testLoad() throws IOException {
+        byte[] data = ConstantPoolTest.readClass(ConstantPool.class);
+        ClassFile cf = new ClassFile();
+        cf.load(data);
+        ConstantPool expected = cf.getConstantPool();
+        ClassFile loaded = new ClassFile(new ConcurrentConstantPool(),
+                "Dummy");
+        loaded.load(data);
+        ConstantPool cp = loaded.getConstantPool();
+        assertTrue(cp instanceof ConcurrentConstantPool);
+        assertEquals(expected.getCount(), cp.getCount());
+        assertEquals(cf.getClassName(), loaded.getClassName());
+        assertEquals(expected.findUtf8("Code"), cp.addUtf8("Code"));
+        assertEquals(expected.getCount(), cp.getCount());
+        assertArrayEquals(data, loaded.toBytes());
+        loaded = new ClassFile(new ConcurrentConstantPool(), "Dummy");
+        loaded.load(new ByteArrayInputStream(data));
+        assertArrayEquals(data, loaded.toBytes());
+    }
+
+    @Test
+    public void testTooManyConstants() {
+        ConstantPool cp = new ConcurrentConstantPool();
+        int i = 0;
+        try {
+            while (true) {
+                cp.addInteger(i++);
+            }
+        } catch (ClassFileException e) {
+            // expected
+        }
+        assertEquals(0xFFFF, cp.getCount());
+        assertEquals(0xFFFE, cp.addInteger(0xFFFD) & 0xFFFF);
+    }
+
+    private static ConstantPool reload(ConstantPool cp) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(baos)) {
+            cp.store(out);
+        }
+        ConstantPool copy = new ConstantPool();
+        copy.load(new DataInputStream(
+                new ByteArrayInputStream(baos.toByteArray())));
+        return copy;
+    }
+
+    private static short[] addAll(ConstantPool cp, int seed) {
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < CONSTANTS; ++i) {
+            order.add(i);
+        }
+        Collections.shuffle(order, new Random(seed));
+        short[] result = new short[4*CONSTANTS];
+        for (int i: order) {
+            result[4*i] = cp.addClass("C" + i);
+            result[4*i + 1] = cp.addMethodref(
+                    "C" + i, "m" + i, "(" + pad(i) + ")V");
+            result[4*i + 2] = cp.addUtf8("C" + i);
+            result[4*i + 3] = cp.addLong(i);
+        }
+        return result;
+    }
+
+    private static String pad(int n) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < n; ++i) {
+            buf.append('I');
+        }
+        return buf.toString();
+    }
+}
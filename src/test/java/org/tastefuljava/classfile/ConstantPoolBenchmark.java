@@ -0,0 +1,49 @@
+package org.tastefuljava.classfile;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Times the constant pool; run with mvn test -Pbenchmark.
+ */
+public class ConstantPoolBenchmark {
+    private static final int ENTRIES = 60000;
+    private static final int STEP = 10000;
+
+    public ConstantPoolBenchmark() {
+    }
+
+    @Test
+    public void benchmarkAddEntries() {
+        ConstantPool cp = new ConstantPool();
+        for (int n = 0; n < ENTRIES; n += STEP) {
+            long start = System.nanoTime();
+            for (int i = n; i < n + STEP; ++i) {
+                cp.addUtf8("name" + i);
+            }
+            long time = System.nanoTime() - start;
+            System.out.println("entries " + n + ".." + (n + STEP)
+                    + ": " + time/STEP + " ns/add");
+        }
+        assertEquals(ENTRIES + 1, cp.getCount());
+    }
+
+    @Test
+    public void benchmarkAddNumbers() {
+        ConstantPool cp = new ConstantPool();
+        for (int i = 0; i < STEP; ++i) {
+            cp.addInteger(i);
+            cp.addLong(i);
+        }
+        long start = System.nanoTime();
+        for (int n = 0; n < 100; ++n) {
+            for (int i = 0; i < STEP; ++i) {
+                cp.addInteger(i);
+                cp.addLong(i);
+            }
+        }
+        long time = System.nanoTime() - start;
+        System.out.println("numbers: " + time/(200*STEP) + " ns/hit");
+        assertEquals(3*STEP + 1, cp.getCount());
+    }
+}
@@ -0,0 +1,288 @@
+package org.tastefuljava.classfile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class ConstantPoolTest {
+    private static final int MANY_ENTRIES = 60000;
+    private static final int MANY_NUMBERS = 10000;
+
+    public ConstantPoolTest() {
+    }
+
+    @Test
+    public void testDeduplication() {
+        ConstantPool cp = new ConstantPool();
+        short utf8 = cp.addUtf8("java/lang/Object");
+        short cls = cp.addClass("java/lang/Object");
+        short ref = cp.addMethodref("java/lang/Object", "<init>", "()V");
+        assertEquals(utf8, cp.addUtf8("java/lang/Object"));
+        assertEquals(cls, cp.addClass("java/lang/Object"));
+        assertEquals(ref, cp.addMethodref("java/lang/Object", "<init>", "()V"));
+        assertNotEquals(ref,
+                cp.addInterfaceMethodref("java/lang/Object", "<init>", "()V"));
+    }
+
+    @Test
+    public void testLongTakesTwoSlots() {
+        ConstantPool cp = new ConstantPool();
+        short l = cp.addLong(42L);
+        short i = cp.addInteger(42);
+        assertEquals(l + 2, i);
+        assertEquals(l, cp.addLong(42L));
+    }
+
+    @Test
+    public void testNumbers() throws IOException {
+        ConstantPool cp = new ConstantPool();
+        short zero = cp.addDouble(0.0);
+        short negZero = cp.addDouble(-0.0);
+        short nan = cp.addDouble(Double.NaN);
+        short fnan = cp.addFloat(Float.NaN);
+        short one = cp.addInteger(1);
+        short bits = cp.addFloat(Float.intBitsToFloat(1));
+        short payload = cp.addDouble(
+                Double.longBitsToDouble(0x7FF8000000000001L));
+        short fpayload = cp.addFloat(Float.intBitsToFloat(0x7FC00001));
+        assertTrue(payload != nan);
+        assertTrue(fpayload != fnan);
+        assertTrue(zero != negZero);
+        assertTrue(one != bits);
+        assertEquals(nan, cp.addDouble(Double.NaN));
+        assertEquals(fnan, cp.addFloat(Float.NaN));
+        assertEquals(negZero, cp.addDouble(-0.0));
+        ConstantPool loaded = reload(cp);
+        assertEquals(zero, loaded.addDouble(0.0));
+        assertEquals(negZero, loaded.addDouble(-0.0));
+        assertEquals(nan, loaded.addDouble(Double.NaN));
+        assertEquals(bits, loaded.addFloat(Float.intBitsToFloat(1)));
+        assertEquals(payload, loaded.addDouble(
+                Double.longBitsToDouble(0x7FF8000000000001L)));
+        assertEquals(fpayload,
+                loaded.addFloat(Float.intBitsToFloat(0x7FC00001)));
+        assertEquals(one, loaded.addInteger(1));
+        assertEquals(cp.getCount(), loaded.getCount());
+        ConstantPool fork = loaded.fork();
+        assertEquals(fnan, fork.addFloat(Float.NaN));
+        assertEquals(cp.getCount(), fork.getCount());
+    }
+
+    @Test
+    public void testMemberFacts() throws IOException {
+        ConstantPool cp = new ConstantPool();
+        short f = cp.addFieldref("a/B", "f", "J");
+        short m = cp.addMethodref("a/B", "m", "(I[JLjava/lang/String;D)J");
+        short v = cp.addInterfaceMethodref("a/C", "v", "([[Ljava/lang/Object;)V");
+        assertEquals(2, cp.getRefValueSize(f));
+        assertEquals(5, cp.getRefArgsSize(m));
+        assertEquals(2, cp.getRefValueSize(m));
+        assertEquals(1, cp.getRefArgsSize(v));
+        assertEquals(0, cp.getRefValueSize(v));
+        ConstantPool loaded = reload(cp);
+        assertEquals("a/B", loaded.getRefClassName(m));
+        assertEquals("m", loaded.getRefName(m));
+        assertEquals("(I[JLjava/lang/String;D)J", loaded.getRefType(m));
+        assertEquals(5, loaded.getRefArgsSize(m));
+        assertEquals(2, loaded.fork().getRefValueSize(f));
+    }
+
+    @Test
+    public void testIndexAfterLoad() throws IOException {
+        ConstantPool cp = new ConstantPool();
+        short cls = cp.addClass("a/B");
+        short d = cp.addDouble(1.5);
+        short str = cp.addString("hello");
+        ConstantPool loaded = reload(cp);
+        assertEquals(cp.getCount(), loaded.getCount());
+        assertEquals(cls, loaded.addClass("a/B"));
+        assertEquals(d, loaded.addDouble(1.5));
+        assertEquals(str, loaded.addString("hello"));
+        assertEquals(cp.getCount(), loaded.getCount());
+    }
+
+    @Test
+    public void testUtf8() throws IOException {
+        String[] values = {"", "abc", "caf\u00e9", "a\u0000b", "\u20ac\u00ff",
+                "\ud83d\ude00"};
+        ConstantPool cp = new ConstantPool();
+        short[] indices = new short[values.length];
+        for (int i = 0; i < values.length; ++i) {
+            indices[i] = cp.addUtf8(values[i]);
+        }
+        ConstantPool loaded = reload(cp);
+        for (int i = 0; i < values.length; ++i) {
+            assertEquals(indices[i], cp.addUtf8(values[i]));
+            assertEquals(values[i], loaded.getUtf8(indices[i]));
+            assertEquals(indices[i], loaded.addUtf8(values[i]));
+        }
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(expected)) {
+            out.writeShort(2);
+            out.writeByte(1);
+            out.writeUTF(values[3]);
+        }
+        ConstantPool single = new ConstantPool();
+        single.addUtf8(values[3]);
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(actual)) {
+            single.store(out);
+        }
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+    }
+
+    @Test
+    public void testModernEntries() throws IOException {
+        ConstantPool cp = new ConstantPool();
+        short ref = cp.addMethodref("a/B", "f", "(I)V");
+        short mh = cp.addMethodHandle(ConstantPool.REF_INVOKESTATIC, ref);
+        short mt = cp.addMethodType("(I)V");
+        short dyn = cp.addDynamic((short)0, "x", "J");
+        short indy = cp.addInvokeDynamic((short)1, "run", "()V");
+        short mod = cp.addModule("a.b");
+        short pkg = cp.addPackage("a/b");
+        ConstantPool loaded = reload(cp);
+        assertEquals(ConstantPool.REF_INVOKESTATIC,
+                loaded.getMethodHandleKind(mh));
+        assertEquals(ref, loaded.getMethodHandleRefIndex(mh));
+        assertEquals("(I)V", loaded.getMethodType(mt));
+        assertEquals(0, loaded.getBootstrapIndex(dyn));
+        assertEquals("J", loaded.getBootstrapType(dyn));
+        assertEquals(1, loaded.getBootstrapIndex(indy));
+        assertEquals("run", loaded.getBootstrapName(indy));
+        assertEquals("a.b", loaded.getModuleName(mod));
+        assertEquals("a/b", loaded.getPackageName(pkg));
+        assertEquals(indy, loaded.addInvokeDynamic((short)1, "run", "()V"));
+        assertNotEquals(indy, loaded.addDynamic((short)1, "run", "()V"));
+        for (short i = 1; i < cp.getCount(); ++i) {
+            assertEquals(cp.toString(i), loaded.toString(i));
+        }
+    }
+
+    @Test
+    public void testLoadLambdas() throws IOException {
+        byte[] data = readClass(java.util.stream.Collectors.class);
+        ClassFile cf = new ClassFile();
+        cf.load(data);
+        assertArrayEquals(data, cf.toBytes());
+        cf.getConstantPool().print(new java.io.PrintStream(
+                new ByteArrayOutputStream()));
+    }
+
+    @Test
+    public void testFork() throws IOException {
+        ConstantPool template = new ConstantPool();
+        short obj = template.addClass("java/lang/Object");
+        short init = template.addMethodref("java/lang/Object", "<init>", "()V");
+        int count = template.getCount();
+        ConstantPool fork1 = template.fork();
+        ConstantPool fork2 = template.fork();
+        assertTrue(template.isFrozen());
+        assertEquals(count, fork1.getCount());
+        assertEquals(obj, fork1.addClass("java/lang/Object"));
+        assertEquals(init,
+                fork2.addMethodref("java/lang/Object", "<init>", "()V"));
+        short a = fork1.addClass("a/A");
+        short b = fork2.addUtf8("b/B");
+        assertEquals(count, a - 1);
+        assertEquals(count, b);
+        assertEquals(a, fork1.addClass("a/A"));
+        assertEquals("a/A", fork1.getClassName(a));
+        assertEquals("b/B", fork2.getUtf8(b));
+        assertEquals(count, template.getCount());
+        ConstantPool loaded = reload(fork1);
+        assertEquals(fork1.getCount(), loaded.getCount());
+        assertEquals("java/lang/Object", loaded.getRefClassName(init));
+        assertEquals("a/A", loaded.getClassName(a));
+        ConstantPool fork3 = fork1.fork();
+        assertEquals(a, fork3.addClass("a/A"));
+        assertEquals(init,
+                fork3.addMethodref("java/lang/Object", "<init>", "()V"));
+    }
+
+    @Test(expected = ClassFileException.class)
+    public void testFrozen() {
+        ConstantPool cp = new ConstantPool();
+        cp.addUtf8("a");
+        cp.freeze();
+        cp.addUtf8("b");
+    }
+
+    @Test
+    public void testLazyLoad() throws IOException {
+        byte[] data = readClass(ConstantPoolTest.class);
+        ClassFile lazy = new ClassFile();
+        lazy.load(data);
+        assertEquals(ConstantPoolTest.class.getName().replace('.', '/'),
+                lazy.getClassName());
+        assertArrayEquals(data, lazy.toBytes());
+        ClassFile eager = new ClassFile();
+        eager.load(new ByteArrayInputStream(data));
+        ConstantPool cp = lazy.getConstantPool();
+        for (short i = 1; i < cp.getCount(); ++i) {
+            assertEquals(eager.getConstantPool().toString(i), cp.toString(i));
+        }
+        int count = cp.getCount();
+        assertEquals(lazy.getThisClass(), cp.addClass(lazy.getClassName()));
+        assertEquals(count, cp.getCount());
+        assertArrayEquals(data, lazy.toBytes());
+    }
+
+    @Test
+    public void testManyEntries() {
+        ConstantPool cp = new ConstantPool();
+        for (int i = 0; i < MANY_ENTRIES; ++i) {
+            assertEquals(i + 1, cp.addUtf8("name" + i) & 0xFFFF);
+        }
+        assertEquals(MANY_ENTRIES + 1, cp.getCount());
+        for (int i = 0; i < MANY_ENTRIES; ++i) {
+            assertEquals(i + 1, cp.addUtf8("name" + i) & 0xFFFF);
+        }
+        assertEquals(MANY_ENTRIES + 1, cp.getCount());
+    }
+
+    @Test
+    public void testManyNumbers() {
+        ConstantPool cp = new ConstantPool();
+        for (int i = 0; i < MANY_NUMBERS; ++i) {
+            assertEquals(3*i + 1, cp.addInteger(i) & 0xFFFF);
+            assertEquals(3*i + 2, cp.addLong(i) & 0xFFFF);
+        }
+        for (int i = 0; i < MANY_NUMBERS; ++i) {
+            assertEquals(3*i + 1, cp.addInteger(i) & 0xFFFF);
+            assertEquals(3*i + 2, cp.addLong(i) & 0xFFFF);
+        }
+        assertEquals(3*MANY_NUMBERS + 1, cp.getCount());
+    }
+
+    static byte[] readClass(Class<?> cls) throws IOException {
+        String name = "/" + cls.getName().replace('.', '/') + ".class";
+        try (InputStream in = cls.getResourceAsStream(name)) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+                baos.write(buf, 0, n);
+            }
+            return baos.toByteArray();
+        }
+    }
+
+    private static ConstantPool reload(ConstantPool cp) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(baos)) {
+            cp.store(out);
+        }
+        ConstantPool result = new ConstantPool();
+        result.load(new DataInputStream(
+                new ByteArrayInputStream(baos.toByteArray())));
+        return result;
+    }
+}
@@ -0,0 +1,123 @@
+package org.tastefuljava.classfile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DecodeTest {
+    private static final Class<?>[] CLASSES = {
+        ClassFile.class, ConstantPool.class, ClassParser.class,
+        Disassembler.class, CodeBuilder.class, Utf8.class
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    public DecodeTest() {
+    }
+
+    @Test
+    public void testDecode() throws IOException {
+        Path dir = folder.newFolder("classes").toPath();
+        for (Class<?> cls: CLASSES) {
+            Path path = dir.resolve(cls.getName().replace('.', '/')
+                    + ".class");
+            Files.createDirectories(path.getParent());
+            Files.write(path, ConstantPoolTest.readClass(cls));
+        }
+        Files.write(dir.resolve("Broken.class"),
+                new byte[] {(byte)0xCA, (byte)0xFE, 0, 0});
+        Path jar = folder.getRoot().toPath().resolve("lib.jar");
+        try (ZipOutputStream out = new ZipOutputStream(
+                Files.newOutputStream(jar))) {
+            for (Class<?> cls: CLASSES) {
+                out.putNextEntry(new ZipEntry(
+                        cls.getName().replace('.', '/') + ".class"));
+                out.write(ConstantPoolTest.readClass(cls));
+                out.closeEntry();
+            }
+            out.putNextEntry(new ZipEntry("readme.txt"));
+            out.closeEntry();
+        }
+        List<String> inputs = Arrays.asList(dir.toString(),
+                folder.getRoot() + "/*.jar",
+                folder.getRoot() + "/missing.jar");
+
+        StringBuilder sequential = new StringBuilder();
+        decode(1, false, inputs, sequential);
+        StringBuilder parallel = new StringBuilder();
+        Decode.Summary summary = decode(4, false, inputs, parallel);
+        assertTrue(summary.getElapsedNanos() > 0);
+        assertTrue(summary.getByteCount() > 0);
+        assertTrue(summary.getClassesPerSecond() > 0);
+        assertTrue(summary.toString().contains("\nFailed: "
+                + folder.getRoot() + "/missing.jar"));
+        assertEquals(sequential.toString(), parallel.toString());
+        assertEquals(2*CLASSES.length + 1, summary.getClassCount());
+        assertEquals(Arrays.asList(dir.resolve("Broken.class").toString(),
+                folder.getRoot() + "/missing.jar"), summary.getFailures());
+        assertEquals(3, summary.getSlowest().size());
+        String text = parallel.toString();
+        assertTrue(text.startsWith("Classfile " + dir.resolve("Broken.class")
+                + "\n  error: "));
+        assertTrue(text.contains("Classfile " + jar
+                + "!/org/tastefuljava/classfile/Utf8.class\n"
+                + "class org/tastefuljava/classfile/Utf8\n"));
+
+        StringBuilder json = new StringBuilder();
+        summary = decode(4, true, inputs, json);
+        String[] lines = json.toString().split("\n");
+        assertEquals(2*CLASSES.length + 2, lines.length);
+        assertTrue(lines[0].startsWith("{\"source\":\"" + dir
+                + "/Broken.class\",\"error\":"));
+        assertTrue(lines[lines.length - 2].startsWith("{\"source\":\"" + jar
+                + "!/org/tastefuljava/classfile/Utf8.class\",\"size\":"));
+        assertTrue(lines[lines.length - 2].contains(
+                ",\"class\":\"org/tastefuljava/classfile/Utf8\","
+                + "\"access\":48,\"super\":\"java/lang/Object\","
+                + "\"interfaces\":[],\"fields\":[{\"name\":\"MAX_LENGTH\""));
+        assertTrue(lines[lines.length - 2].contains(
+                "{\"name\":\"<init>\",\"descriptor\":\"()V\",\"access\":2,"
+                + "\"maxStack\":1,\"maxLocals\":1,\"code\":5}"));
+        assertTrue(lines[lines.length - 1].startsWith("{\"source\":\""
+                + folder.getRoot() + "/missing.jar\",\"error\":"));
+
+        StringBuilder quiet = new StringBuilder();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            Decode decode = new Decode(pool);
+            decode.setOutput(false);
+            summary = decode.decode(inputs, quiet);
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(0, quiet.length());
+        assertEquals(2*CLASSES.length + 1, summary.getClassCount());
+        assertEquals(Arrays.asList(dir.resolve("Broken.class").toString(),
+                folder.getRoot() + "/missing.jar"), summary.getFailures());
+    }
+
+    private Decode.Summary decode(int threads, boolean json,
+            List<String> inputs, Appendable out) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            Decode decode = new Decode(pool);
+            decode.setJson(json);
+            decode.setTop(3);
+            decode.setWindow(2);
+            return decode.decode(inputs, out);
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
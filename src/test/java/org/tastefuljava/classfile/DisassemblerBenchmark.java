@@ -0,0 +1,60 @@
+package org.tastefuljava.classfile;
+
+import java.io.IOException;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Times the disassembler on a few large classes; run with
+ * mvn test -Pbenchmark.
+ */
+public class DisassemblerBenchmark {
+    public DisassemblerBenchmark() {
+    }
+
+    @Test
+    public void benchmarkDisassemble() throws IOException {
+        Class<?>[] classes = DisassemblerTest.LARGE_CLASSES;
+        byte[][] data = new byte[classes.length][];
+        for (int i = 0; i < classes.length; ++i) {
+            data[i] = ConstantPoolTest.readClass(classes[i]);
+        }
+        CountingAppendable out = new CountingAppendable();
+        Disassembler dis = new Disassembler(out);
+        int count = 0;
+        long start = System.nanoTime();
+        for (int n = 0; n < 20; ++n) {
+            for (byte[] bytes: data) {
+                dis.disassemble(bytes);
+                ++count;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        assertTrue(out.count > 0);
+        System.out.println("Disassembler: " + count*1000000000L/elapsed
+                + " classes/s, " + out.count*1000000000L/elapsed
+                + " chars/s");
+    }
+
+    private static class CountingAppendable implements Appendable {
+        private long count;
+
+        @Override
+        public Appendable append(CharSequence csq) {
+            count += csq.length();
+            return this;
+        }
+
+        @Override
+        public Appendable append(CharSequence csq, int start, int end) {
+            count += end - start;
+            return this;
+        }
+
+        @Override
+        public Appendable append(char c) {
+            ++count;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.tastefuljava.classfile;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.function.IntSupplier;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class DisassemblerTest {
+    static final Class<?>[] LARGE_CLASSES = {
+        String.class, java.util.HashMap.class,
+        java.util.concurrent.ConcurrentHashMap.class, ClassFile.class,
+        ConstantPool.class, Disassembler.class
+    };
+
+    public DisassemblerTest() {
+    }
+
+    @Test
+    public void testDisassemble() throws IOException {
+        StringBuilder out = new StringBuilder();
+        new Disassembler(out).disassemble(
+                ConstantPoolTest.readClass(Sample.class));
+        String text = out.toString();
+        assertContains(text, "class org/tastefuljava/classfile/"
+                + "DisassemblerTest$Sample\n");
+        assertContains(text, "flags: (0x0020) ACC_SUPER\n");
+        assertContains(text, "// java/lang/Object.\"<init>\":()V\n");
+        assertContains(text, " = Utf8               values\n");
+        assertContains(text, "invokespecial #");
+        assertContains(text, "// Method java/lang/Object.\"<init>\":()V\n");
+        assertContains(text, "      100000: 30\n");
+        assertContains(text, "// long 1234567890123l\n");
+        assertContains(text, "// String a\\tb\n");
+        assertContains(text, "tableswitch   { // 0 to 3\n");
+        assertContains(text, "lookupswitch  { // 2\n");
+        assertContains(text, "        1000: ");
+        assertContains(text, "iinc 4, 1\n");
+        assertContains(text, "newarray int\n");
+        assertContains(text, "invokedynamic #");
+        assertContains(text, "Exception table:\n");
+        assertContains(text, "Class java/lang/IllegalStateException\n");
+        assertContains(text, "LineNumberTable:\n");
+        assertContains(text, "SourceFile: DisassemblerTest.java\n");
+        assertTrue(text.endsWith("}\n"));
+    }
+
+    @Test
+    public void testClassFile() throws IOException {
+        ClassFile cf = new ClassFile();
+        cf.load(ConstantPoolTest.readClass(Sample.class));
+        StringWriter out = new StringWriter();
+        cf.disassemble(out);
+        StringBuilder expected = new StringBuilder();
+        new Disassembler(expected).disassemble(cf.toBytes());
+        assertTrue(out.toString().contentEquals(expected));
+    }
+
+    @Test
+    public void testLargeClasses() throws IOException {
+        for (Class<?> cls: LARGE_CLASSES) {
+            StringBuilder out = new StringBuilder();
+            new Disassembler(out).disassemble(
+                    ConstantPoolTest.readClass(cls));
+            String text = out.toString();
+            assertContains(text, "class " + cls.getName().replace('.', '/'));
+            assertTrue(text.endsWith("}\n"));
+        }
+    }
+
+    private static void assertContains(String text, String expected) {
+        assertTrue("Missing: " + expected, text.contains(expected));
+    }
+
+    private static class Sample {
+        private static final long BIG = 1234567890123L;
+        private int[] values;
+
+        int select(int key) {
+            switch (key) {
+            case 0: return 10;
+            case 1: return 20;
+            case 2: return 30;
+            case 3: return 40;
+            default: return -1;
+            }
+        }
+
+        int sparse(int key) {
+            switch (key) {
+            case 1000: return 1;
+            case 100000: return 2;
+            default: return 0;
+            }
+        }
+
+        long sum(int n) {
+            values = new int[n];
+            long total = BIG;
+            for (int i = 0; i < n; ++i) {
+                total += values[i];
+            }
+            return total;
+        }
+
+        String guarded(IntSupplier supplier) {
+            try {
+                return "a\tb" + supplier.getAsInt();
+            } catch (IllegalStateException e) {
+                return null;
+            }
+        }
+
+        IntSupplier supplier() {
+            return () -> values.length;
+        }
+    }
+}
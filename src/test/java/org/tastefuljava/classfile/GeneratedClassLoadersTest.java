@@ -0,0 +1,93 @@
+package org.tastefuljava.classfile;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class GeneratedClassLoadersTest {
+    public GeneratedClassLoadersTest() {
+    }
+
+    @Test
+    public void testGroups() throws Exception {
+        GeneratedClassLoaders loaders = new GeneratedClassLoaders(
+                getClass().getClassLoader());
+        List<Class<?>> classes = loaders.define("a", Arrays.asList(
+                generate("gen/B", "gen/A", null),
+                generate("gen/A", "java/lang/Object", "value A")));
+        assertEquals("value A",
+                ((Callable<?>)classes.get(0).newInstance()).call());
+        assertSame(classes.get(1), classes.get(0).getSuperclass());
+        Class<?> other = loaders.define("b",
+                generate("gen/A", "java/lang/Object", "value A"));
+        assertNotSame(classes.get(1), other);
+        assertSame(loaders.getLoader("b"), other.getClassLoader());
+        assertEquals(2, loaders.getUsage("a").getClassCount());
+        assertEquals(1, loaders.getUsage("b").getClassCount());
+        assertTrue(loaders.getUsage("a").getMetaspaceEstimate() >= 0);
+        assertTrue(loaders.getUsage("a").getClassBytes() > 0);
+        assertEquals(2, loaders.getUsage().size());
+        assertEquals(loaders.getUsage("b").getClassBytes(),
+                loaders.getUsage().get("b").getClassBytes());
+        try {
+            loaders.define("a", generate("gen/A", "java/lang/Object", "x"));
+            throw new AssertionError("Duplicate class defined");
+        } catch (ClassFileException e) {
+            // expected
+        }
+
+        WeakReference<Class<?>> ref = new WeakReference<>(other);
+        other = null;
+        assertTrue(loaders.drop("b"));
+        assertNull(loaders.getUsage("b"));
+        for (int i = 0; i < 10 && ref.get() != null; ++i) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(ref.get());
+    }
+
+    @Test
+    public void testShadowing() throws Exception {
+        GeneratedClassLoaders loaders = new GeneratedClassLoaders(
+                getClass().getClassLoader());
+        String name = GeneratedClassLoadersTest.class.getName();
+        Class<?> cls = loaders.define("a", generate(name.replace('.', '/'),
+                "java/lang/Object", "generated"));
+        assertNotSame(GeneratedClassLoadersTest.class, cls);
+        assertSame(loaders.getLoader("a"), cls.getClassLoader());
+        assertEquals("generated", ((Callable<?>)cls.newInstance()).call());
+    }
+
+    private static ClassFile generate(String className, String superName,
+            String value) throws IOException {
+        ClassFile cf = new ClassFile(new ConstantPool(), className,
+                superName);
+        ConstantPool cp = cf.getConstantPool();
+        cf.setMajorVersion((short)52);
+        CodeBuilder cb = new CodeBuilder(cp, 1);
+        cb.loadRef(0);
+        cb.invokeSpecial(superName, "<init>", "()V");
+        cb.returnVoid();
+        cf.addMethod(MethodInfo.ACC_PUBLIC, "<init>", "()V").addAttribute(
+                new AttributeInfo(cp.addUtf8("Code"), cb.getBytes()));
+        if (value != null) {
+            cf.addInterface("java/util/concurrent/Callable");
+            cb = new CodeBuilder(cp, 1);
+            cb.pushString(value);
+            cb.returnRef();
+            cf.addMethod(MethodInfo.ACC_PUBLIC, "call",
+                    "()Ljava/lang/Object;").addAttribute(new AttributeInfo(
+                            cp.addUtf8("Code"), cb.getBytes()));
+        }
+        return cf;
+    }
+}
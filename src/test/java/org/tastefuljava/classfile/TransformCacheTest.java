@@ -0,0 +1,124 @@
+package org.tastefuljava.classfile;
+
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.ProtectionDomain;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TransformCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    public TransformCacheTest() {
+    }
+
+    @Test
+    public void testCache() throws IOException {
+        Path dir = folder.newFolder("cache").toPath();
+        long overhead = TransformCache.ENTRY_OVERHEAD;
+        TransformCache cache = new TransformCache(dir, 100 + 2*overhead);
+        byte[] a = {1, 2, 3};
+        byte[] b = {4, 5, 6};
+        assertNull(cache.get(a, "t1"));
+        cache.put(a, "t1", new byte[60]);
+        cache.put(b, "t1", null);
+        assertArrayEquals(new byte[60], cache.get(a, "t1"));
+        assertSame(b, cache.get(b, "t1"));
+        assertNull(cache.get(a, "t2"));
+        assertEquals(60 + 2*overhead, cache.getSize());
+
+        cache = new TransformCache(dir, 100 + 2*overhead);
+        assertEquals(2, cache.getCount());
+        assertArrayEquals(new byte[60], cache.get(a, "t1"));
+        cache.put(b, "t2", new byte[50]);
+        assertNull(cache.get(a, "t1"));
+        assertEquals(50 + overhead, cache.getSize());
+    }
+
+    @Test
+    public void testUnchangedEvicted() throws IOException {
+        TransformCache cache = new TransformCache(
+                folder.newFolder("cache").toPath(),
+                3*TransformCache.ENTRY_OVERHEAD);
+        for (int i = 0; i < 10; ++i) {
+            cache.put(new byte[] {(byte)i}, "t", null);
+        }
+        assertEquals(3, cache.getCount());
+        assertEquals(3*TransformCache.ENTRY_OVERHEAD, cache.getSize());
+    }
+
+    @Test
+    public void testWrap() throws Exception {
+        TransformCache cache = new TransformCache(
+                folder.newFolder("cache").toPath(), 1000);
+        AtomicInteger calls = new AtomicInteger();
+        ClassFileTransformer t = cache.wrap(new ClassFileTransformer() {
+            @Override
+            public byte[] transform(ClassLoader loader, String className,
+                    Class<?> classBeingRedefined,
+                    ProtectionDomain protectionDomain,
+                    byte[] classfileBuffer)
+                    throws IllegalClassFormatException {
+                calls.incrementAndGet();
+                return classfileBuffer[0] == 0 ? null : new byte[] {42};
+            }
+        }, "t");
+        for (int i = 0; i < 3; ++i) {
+            assertNull(t.transform(null, "A", null, null, new byte[] {0}));
+            assertArrayEquals(new byte[] {42},
+                    t.transform(null, "B", null, null, new byte[] {1}));
+        }
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testBatch() throws IOException {
+        Path in = folder.newFolder("in").toPath();
+        Class<?>[] classes = {
+            ClassFile.class, ConstantPool.class, ClassParser.class
+        };
+        for (Class<?> cls: classes) {
+            Files.write(in.resolve(cls.getSimpleName() + ".class"),
+                    ConstantPoolTest.readClass(cls));
+        }
+        TransformCache cache = new TransformCache(
+                folder.newFolder("cache").toPath(), 1 << 20);
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            ClassBatch batch = new ClassBatch((cf) -> {
+                cf.setAccessFlags((short)(cf.getAccessFlags()
+                        | ClassFile.ACC_FINAL));
+                return !cf.getClassName().endsWith("/ClassParser");
+            }, pool);
+            batch.setCache(cache, "final-1");
+            Path out1 = folder.getRoot().toPath().resolve("out1.jar");
+            ClassBatch.Statistics cold = batch.process(in, out1);
+            assertEquals(3, cold.getStage("parse").getCount());
+            assertEquals(0, cold.getStage("cache").getCount());
+            Path out2 = folder.getRoot().toPath().resolve("out2.jar");
+            ClassBatch.Statistics warm = batch.process(in, out2);
+            assertEquals(0, warm.getStage("parse").getCount());
+            assertEquals(0, warm.getStage("store").getCount());
+            assertEquals(3, warm.getStage("cache").getCount());
+            assertEquals(cold.getStage("read").getBytes(),
+                    warm.getStage("cache").getBytes());
+            assertTrue(warm.getFailures().isEmpty());
+            assertEquals(cold.getStage("write").getBytes(),
+                    warm.getStage("write").getBytes());
+        } finally {
+            pool.shutdown();
+        }
+    }
+}